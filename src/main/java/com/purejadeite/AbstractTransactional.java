@@ -1,5 +1,6 @@
 package com.purejadeite;
 
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * トランザクションをサポートしたクラス。
@@ -9,21 +10,13 @@ package com.purejadeite;
  */
 public abstract class AbstractTransactional {
 
-	protected static final Object LOCK = new Object();
-
-	private Thread transactionThread;
+	// トランザクションを開始したスレッド(インスタンス毎)
+	private final AtomicReference<Thread> transactionThread = new AtomicReference<>();
 
 	// トランザクション関連
 	// --------------------------------------------------------------------
 	public boolean beginTransaction() {
-		synchronized (LOCK) {
-			if (transactionThread == null) {
-				transactionThread = Thread.currentThread();
-				return true;
-			} else {
-				return false;
-			}
-		}
+		return transactionThread.compareAndSet(null, Thread.currentThread());
 	}
 
 	public boolean commit() {
@@ -43,7 +36,7 @@ public abstract class AbstractTransactional {
 	protected abstract boolean rollbackImple();
 
 	public void endTransaction() {
-		transactionThread = null;
+		transactionThread.set(null);
 	}
 
 }
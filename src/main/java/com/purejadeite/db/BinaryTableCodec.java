@@ -0,0 +1,287 @@
+package com.purejadeite.db;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * テーブルを独自のバイナリ形式で読み書きします。
+ * フィールド名はファイル内で最初に現れた時のみ書き出し、以降は辞書の番号で参照します。
+ *
+ * <pre>
+ * ファイル   : "PJDB" バージョン(1byte) レコード* 終端(0x00)
+ * レコード   : 0x01 フィールド数(varint) フィールド*
+ * フィールド : 名称の参照(varint) 値
+ *              名称の参照が0の場合は続けて名称(文字列)があり、辞書の次の番号になる
+ *              それ以外の場合は辞書の番号+1
+ * 値         : 型(1byte) 型毎のデータ
+ * </pre>
+ *
+ * @author mitsuhiroseino
+ *
+ */
+public class BinaryTableCodec implements DbTableCodec {
+
+	/**
+	 * 形式の名称
+	 */
+	public static final String NAME = "binary";
+
+	/**
+	 * JSON->Objectマッパー(JSONで表現できる値へ変換する為に使用)
+	 */
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	// ファイルの先頭
+	private static final byte[] MAGIC = { 'P', 'J', 'D', 'B' };
+
+	// 形式のバージョン
+	private static final int VERSION = 1;
+
+	// レコードの開始
+	private static final int RECORD = 1;
+
+	// 終端
+	private static final int END = 0;
+
+	// 値の型
+	private static final int NULL = 0;
+	private static final int FALSE = 1;
+	private static final int TRUE = 2;
+	private static final int INTEGER = 3;
+	private static final int DOUBLE = 4;
+	private static final int STRING = 5;
+	private static final int LIST = 6;
+	private static final int MAP = 7;
+	private static final int BIG_INTEGER = 8;
+	private static final int BIG_DECIMAL = 9;
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public String getExtension() {
+		return "pjdb";
+	}
+
+	@Override
+	public void read(InputStream in, Consumer<Map<String, Object>> consumer)
+			throws IOException {
+		DataInputStream input = new DataInputStream(in);
+		byte[] magic = new byte[MAGIC.length];
+		int length = input.read(magic);
+		if (length <= 0) {
+			// 空のファイル
+			return;
+		}
+		input.readFully(magic, length, magic.length - length);
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (magic[i] != MAGIC[i]) {
+				throw new IOException("バイナリ形式のテーブルではありません");
+			}
+		}
+		int version = input.readUnsignedByte();
+		if (version != VERSION) {
+			throw new IOException("サポートしていないバージョンです:" + version);
+		}
+		List<String> names = new ArrayList<>();
+		while (input.readUnsignedByte() == RECORD) {
+			int size = (int) readVarLong(input);
+			Map<String, Object> record = new HashMap<>((int) (size / 0.75f) + 1);
+			for (int i = 0; i < size; i++) {
+				int ref = (int) readVarLong(input);
+				String name;
+				if (ref == 0) {
+					name = readString(input);
+					names.add(name);
+				} else {
+					name = names.get(ref - 1);
+				}
+				record.put(name, readValue(input));
+			}
+			consumer.accept(record);
+		}
+	}
+
+	@Override
+	public void write(OutputStream out, Collection<Map<String, Object>> records)
+			throws IOException {
+		DataOutputStream output = new DataOutputStream(out);
+		output.write(MAGIC);
+		output.writeByte(VERSION);
+		Map<String, Integer> names = new HashMap<>();
+		for (Map<String, Object> record : records) {
+			output.writeByte(RECORD);
+			writeVarLong(output, record.size());
+			for (Map.Entry<String, Object> field : record.entrySet()) {
+				String name = field.getKey();
+				Integer ref = names.get(name);
+				if (ref == null) {
+					writeVarLong(output, 0);
+					writeString(output, name);
+					names.put(name, Integer.valueOf(names.size() + 1));
+				} else {
+					writeVarLong(output, ref.intValue());
+				}
+				writeValue(output, field.getValue());
+			}
+		}
+		output.writeByte(END);
+		output.flush();
+	}
+
+	// 値を読み込む(読み込み専用のテーブルのファイルでも使用する)
+	Object readValue(DataInputStream input) throws IOException {
+		int type = input.readUnsignedByte();
+		switch (type) {
+		case NULL:
+			return null;
+		case FALSE:
+			return Boolean.FALSE;
+		case TRUE:
+			return Boolean.TRUE;
+		case INTEGER:
+			// JSONと同じくintに収まる値はInteger
+			long value = readZigZag(input);
+			if (Integer.MIN_VALUE <= value && value <= Integer.MAX_VALUE) {
+				return Integer.valueOf((int) value);
+			}
+			return Long.valueOf(value);
+		case DOUBLE:
+			return Double.valueOf(input.readDouble());
+		case STRING:
+			return readString(input);
+		case LIST:
+			int listSize = (int) readVarLong(input);
+			List<Object> list = new ArrayList<>(listSize);
+			for (int i = 0; i < listSize; i++) {
+				list.add(readValue(input));
+			}
+			return list;
+		case MAP:
+			int mapSize = (int) readVarLong(input);
+			Map<String, Object> map = new LinkedHashMap<>();
+			for (int i = 0; i < mapSize; i++) {
+				String key = readString(input);
+				map.put(key, readValue(input));
+			}
+			return map;
+		case BIG_INTEGER:
+			return new BigInteger(readString(input));
+		case BIG_DECIMAL:
+			return new BigDecimal(readString(input));
+		default:
+			throw new IOException("不正な値の型です:" + type);
+		}
+	}
+
+	// 値を書き出す(読み込み専用のテーブルのファイルでも使用する)
+	void writeValue(DataOutputStream output, Object value)
+			throws IOException {
+		if (value == null) {
+			output.writeByte(NULL);
+		} else if (value instanceof Boolean) {
+			output.writeByte(((Boolean) value).booleanValue() ? TRUE : FALSE);
+		} else if (value instanceof Integer || value instanceof Long
+				|| value instanceof Short || value instanceof Byte) {
+			output.writeByte(INTEGER);
+			writeZigZag(output, ((Number) value).longValue());
+		} else if (value instanceof Double || value instanceof Float) {
+			output.writeByte(DOUBLE);
+			output.writeDouble(((Number) value).doubleValue());
+		} else if (value instanceof String) {
+			output.writeByte(STRING);
+			writeString(output, (String) value);
+		} else if (value instanceof BigInteger) {
+			output.writeByte(BIG_INTEGER);
+			writeString(output, value.toString());
+		} else if (value instanceof BigDecimal) {
+			output.writeByte(BIG_DECIMAL);
+			writeString(output, value.toString());
+		} else if (value instanceof Collection) {
+			Collection<?> list = (Collection<?>) value;
+			output.writeByte(LIST);
+			writeVarLong(output, list.size());
+			for (Object item : list) {
+				writeValue(output, item);
+			}
+		} else if (value instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			output.writeByte(MAP);
+			writeVarLong(output, map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				writeString(output, String.valueOf(entry.getKey()));
+				writeValue(output, entry.getValue());
+			}
+		} else {
+			// その他の値はJSON形式で保存した場合と同じ値へ変換する
+			writeValue(output, MAPPER.convertValue(value, Object.class));
+		}
+	}
+
+	String readString(DataInputStream input) throws IOException {
+		int length = (int) readVarLong(input);
+		byte[] bytes = new byte[length];
+		input.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	void writeString(DataOutputStream output, String value)
+			throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(output, bytes.length);
+		output.write(bytes);
+	}
+
+	private long readZigZag(DataInputStream input) throws IOException {
+		long value = readVarLong(input);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private void writeZigZag(DataOutputStream output, long value)
+			throws IOException {
+		writeVarLong(output, (value << 1) ^ (value >> 63));
+	}
+
+	long readVarLong(DataInputStream input) throws IOException {
+		long value = 0;
+		int shift = 0;
+		while (true) {
+			int b = input.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+			shift += 7;
+			if (63 < shift) {
+				throw new IOException("不正な数値です");
+			}
+		}
+	}
+
+	void writeVarLong(DataOutputStream output, long value)
+			throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			output.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		output.writeByte((int) value);
+	}
+
+}
@@ -1,23 +1,43 @@
 package com.purejadeite.db;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
-import java.text.ParseException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.purejadeite.AbstractTransactional;
 import com.purejadeite.FileIoException;
@@ -28,7 +48,7 @@ import com.purejadeite.FileIoException;
  * @author mitsuhiroseino
  *
  */
-public class Db extends AbstractTransactional {
+public class Db extends AbstractTransactional implements AutoCloseable {
 
 	/**
 	 * ロガー
@@ -39,6 +59,12 @@ public class Db extends AbstractTransactional {
 	 */
 	private static final ObjectMapper MAPPER = new ObjectMapper();
 
+	// スキーマの「storage」でレコードをフィールド毎の配列で保持することを指定する値
+	private static final String STORAGE_COLUMNAR = "columnar";
+
+	// スキーマの「storage」で読み込み専用のテーブルをメモリへマップしたファイルから参照することを指定する値
+	private static final String STORAGE_MAPPED = "mapped";
+
 	// データ保存用フォルダ
 	private File rootDir;
 
@@ -49,16 +75,81 @@ public class Db extends AbstractTransactional {
 	private File schemasFile;
 
 	// テーブルファイル
-	private Map<String, File> tableFiles = new HashMap<>();
+	private Map<String, File> tableFiles = new ConcurrentHashMap<>();
 
 	// テーブル
-	private Map<String, List<Map<String, Object>>> tables = new HashMap<>();
+	private Map<String, DbTable> tables = new ConcurrentHashMap<>();
+
+	// テーブル毎のロック
+	private ConcurrentMap<String, ReadWriteLock> locks = new ConcurrentHashMap<>();
+
+	// テーブル名->IDの発行
+	private ConcurrentMap<String, DbIdAllocator> ids = new ConcurrentHashMap<>();
 
-	// 最新のID
-	private Map<String, Long> ids = new HashMap<>();
+	// コミット済みのテーブルのバージョン
+	private Map<String, Long> versions = new ConcurrentHashMap<>();
+
+	// テーブル毎のファイルへの書き出し用のロック
+	private ConcurrentMap<String, Object> persistLocks = new ConcurrentHashMap<>();
+
+	// コミット済みでファイルへの書き出しを待っているテーブル->書き出すと完了するFuture
+	private ConcurrentMap<String, CompletableFuture<Void>> unsavedTables = new ConcurrentHashMap<>();
+
+	// スレッド毎の作業用テーブル
+	private ThreadLocal<Map<String, DbTable>> workingTables = new ThreadLocal<Map<String, DbTable>>() {
+		@Override
+		protected Map<String, DbTable> initialValue() {
+			return new HashMap<>();
+		}
+	};
 
 	// スキーマ
-	private Map<String, Map<String, Object>> schemas = null;
+	private volatile Map<String, Map<String, Object>> schemas = null;
+
+	// 正式な名称・別名->正式な名称
+	private volatile Map<String, String> tableNames = new HashMap<>();
+
+	// コミット時に変更のみをログファイルへ追記するか
+	private boolean walMode = false;
+
+	// ログファイルへの追記をまとめて行う
+	private final DbGroupCommit groupCommit = new DbGroupCommit();
+
+	// コミットされた変更をリスナーへ通知する
+	private final DbChangeFeed changeFeed = new DbChangeFeed();
+
+	// スキーマで指定の無いテーブルのファイル形式
+	private String tableFormat = JsonTableCodec.NAME;
+
+	// スナップショット分離を行うか
+	private boolean snapshotIsolation = false;
+
+	// 検索・削除の結果を複製したレコードで返すか
+	private boolean copyRecords = true;
+
+	// 検索条件を型付きで比較するか
+	private boolean typedMatching = false;
+
+	// 並列に走査するレコード数の下限(0以下は並列に走査しない)
+	private int parallelScanThreshold = 0;
+
+	// メモリ上に保持するレコード数の上限(0以下は無制限)
+	private long maxCachedRows = 0;
+
+	// テーブルに最後にアクセスした順番
+	private Map<String, Long> accesses = new ConcurrentHashMap<>();
+
+	// アクセスの通番
+	private AtomicLong accessCount = new AtomicLong();
+
+	// テーブルがメモリ上にあった回数
+	private AtomicLong hitCount = new AtomicLong();
+
+	// テーブルをファイルから読み込んだ回数
+	private AtomicLong missCount = new AtomicLong();
+
+	// テーブルをメモリ上から破棄した回数
+	private AtomicLong evictionCount = new AtomicLong();
 
 	public Db(String dbDirPath) throws DbException {
 		this(dbDirPath, null);
@@ -85,45 +176,292 @@ public class Db extends AbstractTransactional {
 				schemas = loadSchemas(schemasFile);
 			}
 		}
+		tableNames = getTableNames(schemas);
 		// テーブルのファイルを確保
-		tableFiles = getTableFiles(rootDir, schemasFile);
+		tableFiles.putAll(getTableFiles(rootDir, schemasFile));
 		dir = new DbDir(rootDir, "files");
 	}
 
+	/**
+	 * コミット時に変更のみをログファイルへ追記するかを取得します
+	 *
+	 * @return 追記する場合はtrue
+	 */
+	public boolean isWalMode() {
+		return walMode;
+	}
+
+	/**
+	 * コミット時に変更のみをログファイルへ追記するかを設定します。
+	 * trueの場合、コミットではテーブル毎の「テーブル名.wal」へ変更を追記し、
+	 * テーブルのファイルは{@link #checkpoint()}でのみ書き直します。
+	 * ログファイルはモードに関わらずテーブルの読み込み時に反映されます。
+	 * 同時に行われたコミットの追記はまとめて書き込み、ディスクへの書き込みはログファイル毎に1回のみ待ちます。
+	 *
+	 * @param walMode
+	 *            追記する場合はtrue
+	 */
+	public void setWalMode(boolean walMode) {
+		this.walMode = walMode;
+	}
+
+	/**
+	 * スキーマで指定の無いテーブルのファイル形式を取得します
+	 *
+	 * @return 形式の名称
+	 */
+	public String getTableFormat() {
+		return tableFormat;
+	}
+
+	/**
+	 * スキーマで指定の無いテーブルのファイル形式を設定します。
+	 * テーブル毎の形式はスキーマの「format」で指定します。
+	 * 既存のファイルは拡張子から判断した形式で読み込み、次に保存する際に指定の形式へ置き換えます。
+	 *
+	 * @param tableFormat
+	 *            形式の名称(json, binary または{@link DbTableCodecs}へ登録した形式)
+	 */
+	public void setTableFormat(String tableFormat) {
+		this.tableFormat = DbTableCodecs.get(tableFormat).getName();
+	}
+
+	/**
+	 * 検索・削除の結果を複製したレコードで返すかを取得します
+	 *
+	 * @return 複製したレコードで返す場合はtrue
+	 */
+	public boolean isCopyRecords() {
+		return copyRecords;
+	}
+
+	/**
+	 * 検索・削除の結果を複製したレコードで返すかを設定します。
+	 * trueの場合(デフォルト)は常に複製したレコードを返します。
+	 * falseの場合、結果のレコードはテーブルのレコードを共有し、初めて変更した時に複製します。
+	 * 結果のレコードは変更できますが{@link java.util.HashMap}ではありません。
+	 *
+	 * @param copyRecords
+	 *            複製したレコードで返す場合はtrue
+	 */
+	public void setCopyRecords(boolean copyRecords) {
+		this.copyRecords = copyRecords;
+	}
+
+	/**
+	 * スナップショット分離を行うかを取得します
+	 *
+	 * @return 行う場合はtrue
+	 */
+	public boolean isSnapshotIsolation() {
+		return snapshotIsolation;
+	}
+
+	/**
+	 * スナップショット分離を行うかを設定します。テーブルを操作する前に設定してください。
+	 * trueの場合、更新したスレッドはテーブルの作業用の複製を持ち、コミットまで他のスレッドからは見えません。
+	 * 他のスレッドはコミット済みのテーブルをブロックされずに参照します。
+	 * コミット時に、複製した後で他のスレッドが同じテーブルをコミットしていた場合は競合とし、
+	 * そのスレッドの変更を破棄してfalseを返します。
+	 * また、トランザクションは複数のスレッドで同時に開始できます。
+	 * レコードに添付したファイルは分離の対象外です。
+	 *
+	 * @param snapshotIsolation
+	 *            行う場合はtrue
+	 */
+	public void setSnapshotIsolation(boolean snapshotIsolation) {
+		this.snapshotIsolation = snapshotIsolation;
+	}
+
+	/**
+	 * 検索条件を型付きで比較するかを取得します
+	 *
+	 * @return 型付きで比較する場合はtrue
+	 */
+	public boolean isTypedMatching() {
+		return typedMatching;
+	}
+
+	/**
+	 * 検索条件を型付きで比較するかを設定します。テーブルを操作する前に設定してください。
+	 * falseの場合は従来通り条件の値とフィールドの値を文字列に変換して比較します。
+	 * trueの場合はスキーマの「fields」で宣言した型へ条件の値を揃え、数値は数値として比較します。
+	 * 宣言の無いフィールドは値の型のまま比較する為、数値の1と文字列の"1"は一致しません。
+	 * <pre>
+	 * "fields": {"age": "long", "price": "double", "name": "string", "active": "boolean"}
+	 * </pre>
+	 *
+	 * @param typedMatching
+	 *            型付きで比較する場合はtrue
+	 */
+	public void setTypedMatching(boolean typedMatching) {
+		this.typedMatching = typedMatching;
+	}
+
+	/**
+	 * 並列に走査するレコード数の下限を取得します
+	 *
+	 * @return レコード数。0以下の場合は並列に走査しない
+	 */
+	public int getParallelScanThreshold() {
+		return parallelScanThreshold;
+	}
+
+	/**
+	 * 並列に走査するレコード数の下限を設定します。
+	 * 条件で検索する際に、走査するレコード数がこの値以上の場合はテーブルを分割し、
+	 * 共有の{@link ForkJoinPool}で並列に判定します。結果の順序は変わりません。
+	 * 件数を指定した検索は先頭から順に判定する為、対象外です。
+	 * 集計する際も、集計するレコード数がこの値以上の場合は分割して並列に集計します。
+	 *
+	 * @param parallelScanThreshold
+	 *            レコード数。0以下の場合は並列に走査しない(初期値)
+	 */
+	public void setParallelScanThreshold(int parallelScanThreshold) {
+		this.parallelScanThreshold = parallelScanThreshold;
+	}
+
+	/**
+	 * メモリ上に保持するレコード数の上限を取得します
+	 *
+	 * @return レコード数。0以下の場合は無制限
+	 */
+	public long getMaxCachedRows() {
+		return maxCachedRows;
+	}
+
+	/**
+	 * メモリ上に保持するレコード数の上限を設定します。
+	 * テーブルを読み込んだ際に上限を超えている場合は、変更の無いテーブルを使われていない順に破棄し、
+	 * 次に使用する際にファイルから読み込みなおします。変更のあるテーブルはコミットまで破棄しません。
+	 *
+	 * @param maxCachedRows
+	 *            レコード数。0以下の場合は無制限
+	 */
+	public void setMaxCachedRows(long maxCachedRows) {
+		this.maxCachedRows = maxCachedRows;
+	}
+
+	/**
+	 * メモリ上に保持しているテーブルの統計情報を取得します
+	 *
+	 * @return 統計情報
+	 */
+	public DbCacheStats getCacheStats() {
+		long rows = 0;
+		int count = 0;
+		for (DbTable table : tables.values()) {
+			rows += table.size();
+			count++;
+		}
+		return new DbCacheStats(hitCount.get(), missCount.get(),
+				evictionCount.get(), count, rows);
+	}
+
+	/**
+	 * コミットされた変更を受け取るリスナーを登録します。
+	 * 変更はコミットしたスレッドとは別のスレッドから、コミットされた順にまとめて通知されます。
+	 * ログファイルへ追記する場合はディスクへ書き込まれた後に通知されます。
+	 * ロールバックした変更は通知されません。
+	 *
+	 * @param listener
+	 *            リスナー
+	 */
+	public void addChangeListener(DbChangeListener listener) {
+		changeFeed.addListener(listener);
+	}
+
+	/**
+	 * リスナーの登録を解除します
+	 *
+	 * @param listener
+	 *            リスナー
+	 */
+	public void removeChangeListener(DbChangeListener listener) {
+		changeFeed.removeListener(listener);
+	}
+
 	// 初期化処理用メソッド ------------------------------------------
 
 	// ファイルからスキーマを読み込む
 	private Map<String, Map<String, Object>> loadSchemas(File file)
 			throws DbException {
-		String json;
-		try {
-			json = FileUtils.readFileToString(file, "UTF-8");
+		Map<String, Map<String, Object>> schemas = new HashMap<>();
+		try (JsonParser parser = MAPPER.getFactory().createParser(
+				new BufferedInputStream(new FileInputStream(file)))) {
+			JsonToken token = parser.nextToken();
+			if (token == null) {
+				// 空のファイル
+				return schemas;
+			}
+			if (token != JsonToken.START_OBJECT) {
+				throw new JsonParseException(parser, "スキーマはオブジェクトである必要があります");
+			}
+			// テーブル毎に読み込む
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String tableName = parser.getCurrentName();
+				parser.nextToken();
+				@SuppressWarnings("unchecked")
+				Map<String, Object> schema = MAPPER.readValue(parser, Map.class);
+				schemas.put(tableName, schema);
+			}
+		} catch (JsonProcessingException e) {
+			LOGGER.error(file.getAbsolutePath() + "の形式が不正です");
+			throw new DbException(e);
 		} catch (IOException e) {
 			LOGGER.error(file.getAbsolutePath() + "の読み込みに失敗しました");
 			throw new DbException(e);
 		}
-		if (json == null || json.length() == 0) {
-			return new HashMap<>();
+		LOGGER.info(file.getAbsolutePath() + "をロードしました。");
+		return schemas;
+	}
+
+	/**
+	 * スキーマファイルを読み込みなおし、テーブルの別名を更新します。
+	 * 既にメモリ上にあるテーブルのインデックス等は、次に読み込むまで変更前のスキーマのままです。
+	 *
+	 * @throws DbException
+	 *             スキーマファイルの読み込みに失敗した場合
+	 */
+	public void reloadSchemas() throws DbException {
+		if (schemasFile == null) {
+			return;
 		}
-		try {
-			@SuppressWarnings("unchecked")
-			Map<String, Map<String, Object>> schemas = MAPPER.readValue(json,
-					Map.class);
-			LOGGER.info(file.getAbsolutePath() + "をロードしました。");
-			return schemas;
-		} catch (IOException e) {
-			LOGGER.error(file.getAbsolutePath() + "の形式が不正です");
-			throw new DbException(e);
+		Map<String, Map<String, Object>> newSchemas = loadSchemas(schemasFile);
+		Map<String, String> newTableNames = getTableNames(newSchemas);
+		synchronized (this) {
+			schemas = newSchemas;
+			tableNames = newTableNames;
 		}
 	}
 
+	// 正式な名称と別名から正式な名称を引き当てるマップを作成する
+	private Map<String, String> getTableNames(Map<String, Map<String, Object>> schemas) {
+		Map<String, String> tableNames = new HashMap<>();
+		for (Map.Entry<String, Map<String, Object>> schema : schemas.entrySet()) {
+			Object alt = schema.getValue().get("alt");
+			if (alt != null && !tableNames.containsKey(alt.toString())) {
+				tableNames.put(alt.toString(), schema.getKey());
+			}
+		}
+		// 正式な名称は別名より優先
+		for (String formalTableName : schemas.keySet()) {
+			tableNames.put(formalTableName, formalTableName);
+		}
+		return tableNames;
+	}
+
 	// テーブルファイルを取得する
 	private Map<String, File> getTableFiles(File dir, final File schemaFile) {
 		File[] files = dir.listFiles(new FileFilter() {
 			@Override
 			public boolean accept(File file) {
-				// ファイルかつスキーマファイルではない事
-				return file.isFile() && !file.equals(schemaFile);
+				// ファイルかつスキーマファイル・ログファイル・発行済みの番号のファイル・マップ用のファイル・書き出し中のファイルではない事
+				return file.isFile() && !file.equals(schemaFile)
+						&& !file.getName().endsWith("." + DbWal.EXTENSION)
+						&& !file.getName().endsWith("." + DbIdAllocator.EXTENSION)
+						&& !file.getName().endsWith("." + DbMappedTable.EXTENSION)
+						&& !file.getName().endsWith("." + DbTableFile.TEMP_EXTENSION);
 			}
 		});
 		Map<String, File> tableFiles = new HashMap<>();
@@ -135,28 +473,25 @@ public class Db extends AbstractTransactional {
 		return tableFiles;
 	}
 
-	// ファイルからテーブルを読み込む
-	private List<Map<String, Object>> loadTableFile(File file) {
-		String json;
+	// ファイルからテーブルへレコードを1件ずつ読み込む
+	// ファイルの形式は拡張子から判断する
+	private void loadTableFile(File file, final DbTable table) {
+		DbTableCodec codec = DbTableCodecs.get(file);
 		try {
-			json = FileUtils.readFileToString(file, "UTF-8");
-		} catch (IOException e) {
-			LOGGER.error(file.getAbsolutePath() + "の読み込みに失敗しました");
+			DbTableFile.read(file, codec, new Consumer<Map<String, Object>>() {
+				@Override
+				public void accept(Map<String, Object> record) {
+					table.add(record);
+				}
+			});
+		} catch (JsonProcessingException e) {
+			LOGGER.error(file.getAbsolutePath() + "の形式が不正です");
 			throw new FileIoException(e);
-		}
-		if (json == null || json.length() == 0) {
-			return new ArrayList<>();
-		}
-		try {
-			@SuppressWarnings("unchecked")
-			List<Map<String, Object>> records = MAPPER.readValue(json,
-					List.class);
-			LOGGER.info(file.getAbsolutePath() + "をロードしました。");
-			return records;
 		} catch (IOException e) {
-			LOGGER.error(file.getAbsolutePath() + "の形式が不正です");
+			LOGGER.error(file.getAbsolutePath() + "の読み込みに失敗しました");
 			throw new FileIoException(e);
 		}
+		LOGGER.info(file.getAbsolutePath() + "をロードしました。");
 	}
 
 	// 拡張子を削除する
@@ -168,16 +503,11 @@ public class Db extends AbstractTransactional {
 		return fileName.substring(0, index);
 	}
 
-	// JSON形式でファイルへ保存する
-	private void saveTableFile(File file, List<Map<String, Object>> table) {
-		String json = toJSON(table);
-		try {
-			FileUtils.writeStringToFile(file, json, "UTF-8", false);
-			LOGGER.info(file.getAbsolutePath() + "を保存しました");
-		} catch (IOException e) {
-			LOGGER.error(file.getAbsolutePath() + "を保存できませんでした");
-			throw new FileIoException(e);
-		}
+	// 指定の形式でファイルへレコードを1件ずつ保存する。書き出しが完了するまで元のファイルは置き換えない
+	private void saveTableFile(File file, DbTableCodec codec,
+			Collection<Map<String, Object>> table) {
+		DbTableFile.write(file, codec, table);
+		LOGGER.info(file.getAbsolutePath() + "を保存しました");
 	}
 
 	// レコード操作用メソッド ------------------------------------------
@@ -223,150 +553,458 @@ public class Db extends AbstractTransactional {
 	 */
 	public List<Map<String, Object>> select(String tableName,
 			Map<String, Object> params) {
-		List<Map<String, Object>> table = getTable(tableName);
-		List<Map<String, Object>> records = new ArrayList<>();
-		if (table != null && !table.isEmpty()) {
-			if (params == null || params.isEmpty()) {
-				for (Map<String, Object> record : table) {
-					records.add(new HashMap<>(record));
-				}
-			} else {
-				for (Map<String, Object> record : table) {
-					if (isMatching(record, params)) {
-						records.add(new HashMap<>(record));
+		Lock lock = readLock(tableName);
+		try {
+			DbTable table = getTable(tableName);
+			List<Map<String, Object>> records = new ArrayList<>();
+			if (table != null && !table.isEmpty()) {
+				if (params == null || params.isEmpty()) {
+					for (Map<String, Object> record : table.records()) {
+						records.add(toResult(record));
+					}
+				} else {
+					for (Long rowNo : findRowNos(table, params, -1)) {
+						records.add(toResult(table.get(rowNo.longValue())));
 					}
 				}
 			}
+			return records;
+		} finally {
+			lock.unlock();
 		}
-		return records;
 	}
 
 	/**
-	 * 条件に合うレコードを1件取得します
+	 * 条件に合うレコードのうち指定の範囲を取得します
 	 *
 	 * @param tableName
 	 *            テーブル名
-	 * @param fieldName
-	 *            条件となるフィールドの名称
-	 * @param value
-	 *            条件となる値
-	 * @return 条件に合うレコード
+	 * @param params
+	 *            条件
+	 * @param offset
+	 *            読み飛ばす件数
+	 * @param limit
+	 *            取得する最大件数。負の場合は全件
+	 * @return 条件に合うレコードのリスト
 	 */
-	public Map<String, Object> selectOne(String tableName, String fieldName,
-			Object value) {
-		Map<String, Object> params = new HashMap<>();
-		params.put(fieldName, value);
-		return selectOne(tableName, params);
+	public List<Map<String, Object>> select(String tableName,
+			Map<String, Object> params, int offset, int limit) {
+		Lock lock = readLock(tableName);
+		try {
+			DbTable table = getTable(tableName);
+			List<Map<String, Object>> records = new ArrayList<>();
+			for (Long rowNo : findRowNos(table, params, offset, limit)) {
+				records.add(toResult(table.get(rowNo.longValue())));
+			}
+			return records;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
-	 * 条件に合うレコードを1件取得します
+	 * 条件に合うレコードのうち指定の範囲を、指定のフィールドのみで取得します
 	 *
 	 * @param tableName
 	 *            テーブル名
 	 * @param params
 	 *            条件
-	 * @return 条件に合うレコード
+	 * @param offset
+	 *            読み飛ばす件数
+	 * @param limit
+	 *            取得する最大件数。負の場合は全件
+	 * @param fieldNames
+	 *            取得するフィールドの名称
+	 * @return 条件に合うレコードのリスト
 	 */
-	public Map<String, Object> selectOne(String tableName,
-			Map<String, Object> params) {
-		List<Map<String, Object>> table = getTable(tableName);
-		if (table != null && !table.isEmpty()) {
-			for (Map<String, Object> record : table) {
-				if (isMatching(record, params)) {
-					return new HashMap<>(record);
+	public List<Map<String, Object>> select(String tableName,
+			Map<String, Object> params, int offset, int limit,
+			String... fieldNames) {
+		Lock lock = readLock(tableName);
+		try {
+			DbTable table = getTable(tableName);
+			List<Map<String, Object>> records = new ArrayList<>();
+			for (Long rowNo : findRowNos(table, params, offset, limit)) {
+				Map<String, Object> record = table.get(rowNo.longValue());
+				Map<String, Object> projected = new HashMap<>();
+				for (String fieldName : fieldNames) {
+					if (record.containsKey(fieldName)) {
+						projected.put(fieldName, record.get(fieldName));
+					}
 				}
+				records.add(projected);
 			}
+			return records;
+		} finally {
+			lock.unlock();
 		}
-		return null;
 	}
 
 	/**
-	 * 条件に合うファイルを1件取得します
+	 * 条件に合うレコードのうち指定の範囲を、複製せずに読み取り専用で取得します。
+	 * 返されるレコードは取得時点の内容で、以降の更新は反映されません。
 	 *
 	 * @param tableName
 	 *            テーブル名
-	 * @param id
-	 *            ID
-	 * @param field フィールド
-	 *
-	 * @return 条件に合うファイル
+	 * @param params
+	 *            条件
+	 * @param offset
+	 *            読み飛ばす件数
+	 * @param limit
+	 *            取得する最大件数。負の場合は全件
+	 * @return 条件に合う読み取り専用のレコードのリスト
 	 */
-	public File selectFile(String tableName, String id, String field) {
-		return dir.getUnderFile(tableName, id, field);
+	public List<Map<String, Object>> selectReadOnly(String tableName,
+			Map<String, Object> params, int offset, int limit) {
+		Lock lock = readLock(tableName);
+		try {
+			DbTable table = getTable(tableName);
+			List<Map<String, Object>> records = new ArrayList<>();
+			for (Long rowNo : findRowNos(table, params, offset, limit)) {
+				// レコードは更新時に置き換えられる為、そのまま共有できる
+				records.add(Collections.unmodifiableMap(table.get(rowNo.longValue())));
+			}
+			return records;
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	/**
-	 * 条件に合うファイルを1件取得します
+	 * 条件に合うレコードを、複製せずに読み取り専用で順に返すストリームを取得します。
+	 * 対象のレコードは呼び出し時点で確定し、以降の更新は反映されません。
+	 * 条件の判定は読み進める時に行う為、途中で打ち切った場合は残りのレコードを判定しません。
+	 * 並列のストリームにした場合はテーブルを分割して判定します。
 	 *
 	 * @param tableName
 	 *            テーブル名
-	 * @param id
-	 *            ID
-	 * @param field フィールド
-	 *
-	 * @param index インデックス
-	 *
-	 * @return 条件に合うファイル
+	 * @param params
+	 *            条件
+	 * @return 条件に合う読み取り専用のレコードのストリーム
 	 */
-	public File selectFile(String tableName, String id, String field, String index) {
-		return dir.getUnderFile(tableName, id, field, index);
+	public Stream<Map<String, Object>> stream(String tableName,
+			Map<String, Object> params) {
+		Lock lock = readLock(tableName);
+		try {
+			DbTable table = getTable(tableName);
+			if (table == null || table.isEmpty()) {
+				return Stream.empty();
+			}
+			DbQuery query = new DbQuery(table, params);
+			long[] candidates = DbPlan.create(table, query).getCandidates();
+			// 対象のレコードはロック中に確定させる
+			DbSpliterator spliterator = candidates == null ? DbSpliterator.create(table, query)
+					: DbSpliterator.create(table, query, candidates);
+			return StreamSupport.stream(spliterator, false);
+		} finally {
+			lock.unlock();
+		}
 	}
 
-	// ■新規作成
-
 	/**
-	 * 複数件のレコードを追加します
+	 * 全ての条件に合うレコードを取得します
 	 *
 	 * @param tableName
 	 *            テーブル名
-	 * @param records
-	 *            レコード
-	 * @return 追加したレコードのリスト
-	 * @throws DbException
+	 * @param conditions
+	 *            条件
+	 * @return 条件に合うレコードのリスト
 	 */
-	public List<Map<String, Object>> add(String tableName,
-			List<Map<String, Object>> records) throws DbException {
-		return add(tableName, records, getKeyFields(tableName));
+	public List<Map<String, Object>> select(String tableName,
+			DbCondition... conditions) {
+		return select(tableName, Arrays.asList(conditions), 0, -1);
 	}
 
 	/**
-	 *
-	 * 複数件のレコードを追加します キー項目が重複している場合は例外が発生します。
+	 * 全ての条件に合うレコードのうち指定の範囲を取得します。
+	 * 等価の条件はハッシュインデックス、大小比較・範囲・前方一致の条件はソートインデックスで絞り込みます。
 	 *
 	 * @param tableName
 	 *            テーブル名
-	 * @param records
-	 *            レコード
-	 * @param keyFields
-	 *            キー項目名
-	 * @return 追加したレコードのリスト
-	 * @throws DbException
+	 * @param conditions
+	 *            条件
+	 * @param offset
+	 *            読み飛ばす件数
+	 * @param limit
+	 *            取得する最大件数。負の場合は全件
+	 * @return 条件に合うレコードのリスト
 	 */
-	public List<Map<String, Object>> add(String tableName,
-			List<Map<String, Object>> records, List<String> keyFields)
-			throws DbException {
-		// テーブルへ追加
-		List<Map<String, Object>> added = new ArrayList<>();
-		for (Map<String, Object> record : records) {
-			added.add(add(tableName, record, keyFields));
+	public List<Map<String, Object>> select(String tableName,
+			List<DbCondition> conditions, int offset, int limit) {
+		Lock lock = readLock(tableName);
+		try {
+			DbTable table = getTable(tableName);
+			List<Map<String, Object>> records = new ArrayList<>();
+			if (table == null) {
+				return records;
+			}
+			for (Long rowNo : findRowNos(table, new DbQuery(table, conditions), offset, limit)) {
+				records.add(toResult(table.get(rowNo.longValue())));
+			}
+			return records;
+		} finally {
+			lock.unlock();
 		}
-		return added;
 	}
 
 	/**
-	 * レコードを追加します
+	 * 条件で検索する際の実行計画を取得します。
+	 * テーブルの件数とインデックス毎の件数から、使用するインデックスと全件を走査するかを判断した結果です。
 	 *
 	 * @param tableName
 	 *            テーブル名
-	 * @param record
-	 *            レコード
-	 * @return 追加したレコード
-	 * @throws DbException
+	 * @param params
+	 *            条件
+	 * @return 実行計画
 	 */
-	public Map<String, Object> add(String tableName, Map<String, Object> record)
-			throws DbException {
-		return add(tableName, record, getKeyFields(tableName));
+	public DbPlan explain(String tableName, Map<String, Object> params) {
+		Lock lock = readLock(tableName);
+		try {
+			DbTable table = getTable(tableName);
+			return DbPlan.create(table, new DbQuery(table, params));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 条件で検索する際の実行計画を取得します
+	 *
+	 * @param tableName
+	 *            テーブル名
+	 * @param conditions
+	 *            条件
+	 * @return 実行計画
+	 */
+	public DbPlan explain(String tableName, DbCondition... conditions) {
+		Lock lock = readLock(tableName);
+		try {
+			DbTable table = getTable(tableName);
+			return DbPlan.create(table, new DbQuery(table, Arrays.asList(conditions)));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * フィールドの値が範囲に含まれるレコードを取得します。
+	 * フィールドにソートインデックスが定義されている場合はインデックスを使用します。
+	 * 数値として扱える値は数値として、それ以外は文字列として比較し、nullは範囲に含みません。
+	 *
+	 * @param tableName
+	 *            テーブル名
+	 * @param fieldName
+	 *            条件となるフィールドの名称
+	 * @param from
+	 *            下限(この値を含む)。nullの場合は下限無し
+	 * @param to
+	 *            上限(この値を含む)。nullの場合は上限無し
+	 * @return 条件に合うレコードのリスト
+	 */
+	public List<Map<String, Object>> selectRange(String tableName,
+			String fieldName, Object from, Object to) {
+		Lock lock = readLock(tableName);
+		try {
+			DbTable table = getTable(tableName);
+			List<Map<String, Object>> records = new ArrayList<>();
+			DbIndex index = table.getIndex(fieldName);
+			if (index != null && index.isSorted()) {
+				for (long rowNo : index.getRange(from, to)) {
+					records.add(toResult(table.get(rowNo)));
+				}
+			} else {
+				for (Map<String, Object> record : table.records()) {
+					if (DbIndex.isInRange(record.get(fieldName), from, to)) {
+						records.add(toResult(record));
+					}
+				}
+			}
+			return records;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 条件に合うレコードを1件取得します
+	 *
+	 * @param tableName
+	 *            テーブル名
+	 * @param fieldName
+	 *            条件となるフィールドの名称
+	 * @param value
+	 *            条件となる値
+	 * @return 条件に合うレコード
+	 */
+	public Map<String, Object> selectOne(String tableName, String fieldName,
+			Object value) {
+		Map<String, Object> params = new HashMap<>();
+		params.put(fieldName, value);
+		return selectOne(tableName, params);
+	}
+
+	/**
+	 * 条件に合うレコードを1件取得します
+	 *
+	 * @param tableName
+	 *            テーブル名
+	 * @param params
+	 *            条件
+	 * @return 条件に合うレコード
+	 */
+	public Map<String, Object> selectOne(String tableName,
+			Map<String, Object> params) {
+		Lock lock = readLock(tableName);
+		try {
+			DbTable table = getTable(tableName);
+			for (Long rowNo : findRowNos(table, params, 1)) {
+				return toResult(table.get(rowNo.longValue()));
+			}
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 条件に合うファイルを1件取得します
+	 *
+	 * @param tableName
+	 *            テーブル名
+	 * @param id
+	 *            ID
+	 * @param field フィールド
+	 *
+	 * @return 条件に合うファイル
+	 */
+	public File selectFile(String tableName, String id, String field) {
+		return dir.getUnderFile(tableName, id, field);
+	}
+
+	/**
+	 * 条件に合うファイルを1件取得します
+	 *
+	 * @param tableName
+	 *            テーブル名
+	 * @param id
+	 *            ID
+	 * @param field フィールド
+	 *
+	 * @param index インデックス
+	 *
+	 * @return 条件に合うファイル
+	 */
+	public File selectFile(String tableName, String id, String field, String index) {
+		return dir.getUnderFile(tableName, id, field, index);
+	}
+
+	// ■新規作成
+
+	/**
+	 * 複数件のレコードを追加します
+	 *
+	 * @param tableName
+	 *            テーブル名
+	 * @param records
+	 *            レコード
+	 * @return 追加したレコードのリスト
+	 * @throws DbException
+	 */
+	public List<Map<String, Object>> add(String tableName,
+			List<Map<String, Object>> records) throws DbException {
+		return add(tableName, records, getKeyFields(tableName));
+	}
+
+	/**
+	 *
+	 * 複数件のレコードを追加します キー項目が重複している場合は例外が発生します。
+	 * キーの重複は追加するレコード同士とテーブルのインデックスに対して1度の走査で確認し、
+	 * 重複が無い場合のみIDをまとめて発行します。
+	 * 重複がある場合はいずれのレコードも追加せず、レコードへIDも付与しません。
+	 *
+	 * @param tableName
+	 *            テーブル名
+	 * @param records
+	 *            レコード
+	 * @param keyFields
+	 *            キー項目名
+	 * @return 追加したレコードのリスト
+	 * @throws DbException
+	 */
+	public List<Map<String, Object>> add(String tableName,
+			List<Map<String, Object>> records, List<String> keyFields)
+			throws DbException {
+		Lock lock = updateLock(tableName);
+		try {
+			DbTable table = getTable(tableName);
+
+			// IDを発行するレコードを判定(発行済みの番号と照合)
+			DbIdAllocator allocator = getIdAllocator(tableName);
+			boolean[] noIds = new boolean[records.size()];
+			int noIdCount = 0;
+			for (int i = 0; i < noIds.length; i++) {
+				Object tempId = records.get(i).get("id");
+				if (tempId == null || !allocator.isIssued(tempId.toString())) {
+					noIds[i] = true;
+					noIdCount++;
+				}
+			}
+
+			// 事前にレコードが存在しない事を確認
+			// 新しく発行するIDはどのレコードとも重複しない為、キーにIDを含む場合は確認しない
+			boolean idKey = keyFields == null || keyFields.isEmpty() || keyFields.contains("id");
+			Set<Map<String, Object>> keys = new HashSet<>();
+			for (int i = 0; i < noIds.length; i++) {
+				if (noIds[i] && idKey) {
+					continue;
+				}
+				Map<String, Object> record = records.get(i);
+				Map<String, Object> params = getParams(record, keyFields);
+				Map<String, Object> key = new HashMap<>();
+				for (Map.Entry<String, Object> param : params.entrySet()) {
+					key.put(param.getKey(), table.toMatchKey(param.getKey(), param.getValue()));
+				}
+				if (!keys.add(key) || hasKey(table, params, key)) {
+					// 対象のレコードが既にある場合は例外
+					throw new DbException("追加対象のレコードはキーが重複しています:table=" + tableName
+							+ ",record=" + toJSON(record));
+				}
+			}
+
+			// IDの付与(不足分はまとめて発行)
+			long no = allocator.reserve(noIdCount);
+			for (int i = 0; i < noIds.length; i++) {
+				if (noIds[i]) {
+					records.get(i).put("id", allocator.format(no++));
+				}
+			}
+
+			// テーブルへ追加
+			for (Map<String, Object> record : records) {
+				// ファイルのみ先に保存
+				Map<String, Object> dataRecord = saveFiles(tableName, record);
+				long rowNo = table.add(dataRecord);
+				table.addChange(rowNo, new DbChange(table.getName(), DbChange.Type.ADD, null, table.get(rowNo)));
+			}
+			return new ArrayList<>(records);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * レコードを追加します
+	 *
+	 * @param tableName
+	 *            テーブル名
+	 * @param record
+	 *            レコード
+	 * @return 追加したレコード
+	 * @throws DbException
+	 */
+	public Map<String, Object> add(String tableName, Map<String, Object> record)
+			throws DbException {
+		return add(tableName, record, getKeyFields(tableName));
 	}
 
 	/**
@@ -384,26 +1022,66 @@ public class Db extends AbstractTransactional {
 	public Map<String, Object> add(String tableName,
 			Map<String, Object> record, List<String> keyFields)
 			throws DbException {
-		// テーブルへ追加(無い場合は作る)
-		// 作成した場合、idのクリアが行われる為、最初にテーブルを取得しておく
-		List<Map<String, Object>> table = getTable(tableName);
+		Lock lock = updateLock(tableName);
+		try {
+			// テーブルへ追加(無い場合は作る)
+			// 作成した場合、idのクリアが行われる為、最初にテーブルを取得しておく
+			DbTable table = getTable(tableName);
+
+			// IDの付与
+			Object tempId = record.get("id");
+			if (tempId == null || !isFormalId(tableName, tempId.toString())) {
+				record.put("id", createId(tableName));
+			}
+			// 事前にレコードが存在しない事を確認
+			if (hasRecord(tableName, record, keyFields)) {
+				// 対象のレコードが既にある場合は例外
+				throw new DbException("追加対象のレコードはキーが重複しています:table=" + tableName
+						+ ",record=" + toJSON(record));
+			}
 
-		// IDの付与
-		Object tempId = record.get("id");
-		if (tempId == null || !isFormalId(tableName, tempId.toString())) {
-			record.put("id", createId(tableName));
-		}
-		// 事前にレコードが存在しない事を確認
-		if (hasRecord(tableName, record, keyFields)) {
-			// 対象のレコードが既にある場合は例外
-			throw new DbException("追加対象のレコードはキーが重複しています:table=" + tableName
-					+ ",record=" + toJSON(record));
+			// ファイルのみ先に保存
+			Map<String, Object> dataRecord = saveFiles(tableName, record);
+			long rowNo = table.add(dataRecord);
+			table.addChange(rowNo, new DbChange(table.getName(), DbChange.Type.ADD, null, table.get(rowNo)));
+			return record;
+		} finally {
+			lock.unlock();
 		}
+	}
 
-		// ファイルのみ先に保存
-		Map<String, Object> dataRecord = saveFiles(tableName, record);
-		table.add(dataRecord);
-		return record;
+	// キーの一致するレコードがテーブルにあるか判定する。キー項目のインデックスがあれば候補の行のみ照合する
+	private boolean hasKey(DbTable table, Map<String, Object> params, Map<String, Object> key) {
+		if (table.isEmpty()) {
+			return false;
+		}
+		DbIndex index = null;
+		for (Map.Entry<String, Object> param : params.entrySet()) {
+			if (param.getValue() != null) {
+				index = table.getIndex(param.getKey());
+				if (index != null) {
+					break;
+				}
+			}
+		}
+		if (index == null) {
+			return !findRowNos(table, params, 1).isEmpty();
+		}
+		for (long rowNo : index.get(params.get(index.getFieldName()))) {
+			Map<String, Object> record = table.get(rowNo);
+			boolean matched = true;
+			for (Map.Entry<String, Object> field : key.entrySet()) {
+				Object value = table.toMatchKey(field.getKey(), record.get(field.getKey()));
+				if (field.getValue() == null ? value != null : !field.getValue().equals(value)) {
+					matched = false;
+					break;
+				}
+			}
+			if (matched) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	// ファイルを保存しそれ以外のフィールドは戻り値として返す
@@ -498,12 +1176,17 @@ public class Db extends AbstractTransactional {
 	public List<Map<String, Object>> update(String tableName,
 			List<Map<String, Object>> recordsOrParams, List<String> keyFields)
 			throws DbException {
+		Lock lock = updateLock(tableName);
+		try {
 
-		List<Map<String, Object>> updated = new ArrayList<>();
-		for (Map<String, Object> record : recordsOrParams) {
-			updated.add(update(tableName, record, keyFields));
+			List<Map<String, Object>> updated = new ArrayList<>();
+			for (Map<String, Object> record : recordsOrParams) {
+				updated.add(update(tableName, record, keyFields));
+			}
+			return updated;
+		} finally {
+			lock.unlock();
 		}
-		return updated;
 	}
 
 	/**
@@ -536,21 +1219,27 @@ public class Db extends AbstractTransactional {
 	public Map<String, Object> update(String tableName,
 			Map<String, Object> recordsOrParams, List<String> keyFields)
 			throws DbException {
-		// キーの一致するレコードを置き換え
-		List<Map<String, Object>> table = getTable(tableName);
-		Map<String, Object> keyParams = getParams(recordsOrParams, keyFields);
-		if (table != null) {
-			for (Map<String, Object> record : table) {
-				if (isMatching(record, keyParams)) {
-					Map<String, Object> dataRecord = saveFiles(tableName, recordsOrParams);
-					record.putAll(dataRecord);
-					return record;
-				}
+		Lock lock = updateLock(tableName);
+		try {
+			// キーの一致するレコードを置き換え
+			DbTable table = getTable(tableName);
+			Map<String, Object> keyParams = getParams(recordsOrParams, keyFields);
+			for (Long rowNo : findRowNos(table, keyParams, 1)) {
+				Map<String, Object> dataRecord = saveFiles(tableName, recordsOrParams);
+				// インデックスを維持する為、レコードは丸ごと置き換える
+				Map<String, Object> record = DbRecord.copyOf(table.get(rowNo.longValue()));
+				record.putAll(dataRecord);
+				Map<String, Object> old = table.replace(rowNo.longValue(), record);
+				table.addChange(rowNo.longValue(), new DbChange(table.getName(),
+						DbChange.Type.UPDATE, old, table.get(rowNo.longValue())));
+				return record;
 			}
+			// 対象のレコード無しの場合は例外
+			throw new DbException("更新対象のレコードがありません:table=" + tableName + ",keys="
+					+ toJSON(keyParams));
+		} finally {
+			lock.unlock();
 		}
-		// 対象のレコード無しの場合は例外
-		throw new DbException("更新対象のレコードがありません:table=" + tableName + ",keys="
-				+ toJSON(keyParams));
 	}
 
 	// ■削除
@@ -585,12 +1274,17 @@ public class Db extends AbstractTransactional {
 	public List<Map<String, Object>> delete(String tableName,
 			List<Map<String, Object>> recordsOrParams, List<String> keyFields)
 			throws DbException {
+		Lock lock = updateLock(tableName);
+		try {
 
-		List<Map<String, Object>> deleted = new ArrayList<>();
-		for (Map<String, Object> record : recordsOrParams) {
-			deleted.add(deleteOne(tableName, record, keyFields));
+			List<Map<String, Object>> deleted = new ArrayList<>();
+			for (Map<String, Object> record : recordsOrParams) {
+				deleted.add(deleteOne(tableName, record, keyFields));
+			}
+			return deleted;
+		} finally {
+			lock.unlock();
 		}
-		return deleted;
 	}
 
 	/**
@@ -603,6 +1297,8 @@ public class Db extends AbstractTransactional {
 	 * @param value
 	 *            条件となる値
 	 * @return 削除したレコードのリスト
+	 * @throws IllegalStateException
+	 *             読み込み専用のテーブルの場合
 	 */
 	public List<Map<String, Object>> delete(String tableName, String fieldName,
 			Object value) {
@@ -619,22 +1315,29 @@ public class Db extends AbstractTransactional {
 	 * @param params
 	 *            条件
 	 * @return 削除したレコードのリスト
+	 * @throws IllegalStateException
+	 *             読み込み専用のテーブルの場合
 	 */
 	public List<Map<String, Object>> delete(String tableName,
 			Map<String, Object> params) {
-		// キーの一致するレコードを削除
-		List<Map<String, Object>> table = getTable(tableName);
-		List<Map<String, Object>> removed = new ArrayList<>();
-		if (table != null) {
-			for (int i = table.size() - 1; -1 < i; i--) {
-				Map<String, Object> record = table.get(i);
-				if (isMatching(record, params)) {
-					table.remove(i);
-					removed.add(record);
-				}
+		if (isMapped(tableName)) {
+			throw new IllegalStateException(tableName + "は読み込み専用のテーブルです");
+		}
+		Lock lock = lockForUpdate(tableName);
+		try {
+			// キーの一致するレコードを削除
+			DbTable table = getTable(tableName);
+			List<Map<String, Object>> removed = new ArrayList<>();
+			for (Long rowNo : findRowNos(table, params, -1)) {
+				Map<String, Object> record = table.remove(rowNo.longValue());
+				table.addChange(rowNo.longValue(),
+						new DbChange(table.getName(), DbChange.Type.DELETE, record, null));
+				removed.add(toResult(record));
 			}
+			return removed;
+		} finally {
+			lock.unlock();
 		}
-		return removed;
 	}
 
 	/**
@@ -686,21 +1389,25 @@ public class Db extends AbstractTransactional {
 	public Map<String, Object> deleteOne(String tableName,
 			Map<String, Object> recordOrParams, List<String> keyFields)
 			throws DbException {
-		// キーの一致するレコードを置き換え
-		List<Map<String, Object>> table = getTable(tableName);
-		Map<String, Object> keyParams = getParams(recordOrParams, keyFields);
-		if (table != null) {
-			for (Map<String, Object> record : table) {
-				if (isMatching(record, keyParams)) {
-					// ファイルの削除
-					dir.removeDir(tableName, record.get("id").toString());
-					// データの削除
-					table.remove(record);
-					return record;
-				}
+		Lock lock = updateLock(tableName);
+		try {
+			// キーの一致するレコードを削除
+			DbTable table = getTable(tableName);
+			Map<String, Object> keyParams = getParams(recordOrParams, keyFields);
+			for (Long rowNo : findRowNos(table, keyParams, 1)) {
+				Map<String, Object> record = table.get(rowNo.longValue());
+				// ファイルの削除
+				dir.removeDir(tableName, record.get("id").toString());
+				// データの削除
+				table.remove(rowNo.longValue());
+				table.addChange(rowNo.longValue(),
+						new DbChange(table.getName(), DbChange.Type.DELETE, record, null));
+				return toResult(record);
 			}
+			return null;
+		} finally {
+			lock.unlock();
 		}
-		return null;
 	}
 
 	// カウント
@@ -712,68 +1419,100 @@ public class Db extends AbstractTransactional {
 	// カウント
 	public List<Map<String, Object>> count(String tableName,
 			Map<String, Object> params, String... keyFields) {
-		List<Map<String, Object>> records = select(tableName, params);
-		// 集計
-		Map<List<Object>, Integer> results = new HashMap<>();
-		for (Map<String, Object> record : records) {
-			List<Object> keys = new ArrayList<>();
+		List<Map<String, Object>> results = aggregate(tableName, params,
+				Arrays.asList(keyFields), DbAggregation.count());
+		// 従来通りキーは文字列、件数はIntegerで返す
+		for (Map<String, Object> result : results) {
 			for (String keyField : keyFields) {
-				keys.add(record.get(keyField));
-			}
-			Integer count = results.get(keys);
-			if (count == null) {
-				results.put(keys, Integer.valueOf(1));
-			} else {
-				results.put(keys, Integer.valueOf(count.intValue() + 1));
-			}
-		}
-		// リストに変換
-		List<Map<String, Object>> resultList = new ArrayList<>();
-		for (List<Object> keys : results.keySet()) {
-			Map<String, Object> result = new HashMap<>();
-			for (int i = 0; i < keyFields.length; i++) {
-				String keyField = keyFields[i];
-				result.put(keyField, keys.get(i).toString());
+				result.put(keyField, toStr(result.get(keyField)));
 			}
-			result.put("count", results.get(keys));
-			resultList.add(result);
+			result.put("count", Integer.valueOf(((Long) result.get("count")).intValue()));
 		}
 		// ソート
-		Collections.sort(resultList, new Comparator<Map<String, Object>>() {
+		Collections.sort(results, new Comparator<Map<String, Object>>() {
 			@Override
 			public int compare(Map<String, Object> o1, Map<String, Object> o2) {
 				Integer count1 = (Integer) o1.get("count");
 				Integer count2 = (Integer) o2.get("count");
-				return count1.intValue() - count2.intValue();
+				return Integer.compare(count1.intValue(), count2.intValue());
 			}
 		});
-		return resultList;
+		return results;
 	}
 
 	// 合計
+	// 集計はaggregateで行い、戻り値のIntegerへ変換する時に収まらない場合や整数でない場合は例外とする
 	public Map<List<Object>, Integer> sum(String tableName,
 			Map<String, Object> params, String valueField, String... keyFields) {
-		List<Map<String, Object>> table = getTable(tableName);
+		DbAggregation sum = DbAggregation.sum(valueField);
 		Map<List<Object>, Integer> result = new HashMap<>();
-		for (Map<String, Object> record : table) {
-			List<Object> keys = new ArrayList<>();
+		for (Map<String, Object> group : aggregate(tableName, params, Arrays.asList(keyFields), sum)) {
+			List<Object> keys = new ArrayList<>(keyFields.length);
 			for (String keyField : keyFields) {
-				keys.add(record.get(keyField));
+				keys.add(group.get(keyField));
 			}
-			Integer sum = result.get(keys);
-			Integer value = (Integer) record.get(valueField);
-			if (sum == null) {
-				result.put(keys, Integer.valueOf(value.intValue()));
+			result.put(keys, toInteger((Number) group.get(sum.getName())));
+		}
+		return result;
+	}
+
+	// 合計をIntegerへ変換する
+	private Integer toInteger(Number number) {
+		if (number instanceof Long) {
+			return Integer.valueOf(Math.toIntExact(number.longValue()));
+		}
+		double value = number.doubleValue();
+		if (value != Math.rint(value) || value < Integer.MIN_VALUE || Integer.MAX_VALUE < value) {
+			throw new ArithmeticException(number + "はIntegerで表せません");
+		}
+		return Integer.valueOf((int) value);
+	}
+
+	/**
+	 * 条件に合うレコードをグループ毎に集計します。
+	 * レコードは複製せずに集計し、件数が多い場合は並列に集計します。
+	 * 結果はグループ毎に、グループ化するフィールドの値と集計の名称をキーとした集計値を持ち、
+	 * グループが最初に現れた順に並びます。
+	 *
+	 * @param tableName
+	 *            テーブル名
+	 * @param params
+	 *            条件。nullの場合は全件
+	 * @param groupFields
+	 *            グループ化するフィールド名。無い場合は全体を1グループとします
+	 * @param aggregations
+	 *            集計
+	 * @return グループ毎の集計結果
+	 */
+	public List<Map<String, Object>> aggregate(String tableName,
+			Map<String, Object> params, List<String> groupFields,
+			DbAggregation... aggregations) {
+		Lock lock = readLock(tableName);
+		try {
+			DbTable table = getTable(tableName);
+			List<Map<String, Object>> records;
+			if (params == null || params.isEmpty()) {
+				records = table.getSnapshot().getRecords();
 			} else {
-				result.put(keys,
-						Integer.valueOf(sum.intValue() + value.intValue()));
+				List<Long> rowNos = findRowNos(table, params, -1);
+				records = new ArrayList<>(rowNos.size());
+				for (Long rowNo : rowNos) {
+					records.add(table.get(rowNo.longValue()));
+				}
 			}
+			return new DbAggregator(groupFields, aggregations, parallelScanThreshold)
+					.aggregate(records);
+		} finally {
+			lock.unlock();
 		}
-		return result;
 	}
 
 	// トランザクション用メソッド -----------------------------------------------------
 	public boolean beginTransaction() {
+		if (snapshotIsolation) {
+			// 変更はスレッド毎に分離される為、排他しない
+			return true;
+		}
 		boolean success = super.beginTransaction();
 		if (success) {
 			success = dir.beginTransaction();
@@ -785,50 +1524,161 @@ public class Db extends AbstractTransactional {
 	}
 
 	/**
-	 * 全テーブルの内容をファイルへ書き出します
+	 * 変更のあった全テーブルの内容をファイルへ書き出します。
+	 * ログファイルへ追記する場合はディスクへ書き込まれるまで待ちます
 	 *
 	 * @throws DbException
 	 */
 	protected boolean commitImple() {
-		List<String> tableNames = new ArrayList<>();
-		for (String tableName : tables.keySet()) {
-			saveTable(tableName);
-			tableNames.add(tableName);
+		return await(commitTables());
+	}
+
+	/**
+	 * 変更のあった全テーブルの内容をファイルへ書き出し、ディスクへの書き込みを待たずに戻ります。
+	 * ログファイルへ追記する場合、同時に行われた他のコミットとまとめて書き込みます。
+	 * 変更は戻った時点で他のスレッドから参照でき、返されたFutureはディスクへ書き込まれると完了します。
+	 * ログファイルへ追記しない場合はテーブルのファイルを書き出してから戻ります。
+	 *
+	 * @return ディスクへ書き込まれると完了するFuture。書き込みに失敗した場合は例外で完了します
+	 */
+	public CompletableFuture<Boolean> commitAsync() {
+		CompletableFuture<Boolean> future = commitTables();
+		endTransaction();
+		return future;
+	}
+
+	// 変更のあったテーブルを書き出し、ディスクへ書き込まれると完了するFutureを返す
+	private CompletableFuture<Boolean> commitTables() {
+		List<CompletableFuture<Void>> writes = new ArrayList<>();
+		boolean success = true;
+		if (snapshotIsolation) {
+			success = commitWorkingTables(workingTables.get().keySet(), writes);
+		} else {
+			for (String tableName : tables.keySet()) {
+				commitDirtyTable(tableName, writes);
+			}
 		}
+		// コミットにより破棄できるようになったテーブルを破棄
+		evictTables(null);
+
+		final boolean committed = dir.commit() && success;
+		return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()]))
+				.thenApply(new Function<Void, Boolean>() {
+					@Override
+					public Boolean apply(Void t) {
+						return Boolean.valueOf(committed);
+					}
+				});
+	}
 
-		return dir.commit();
+	// ディスクへの書き込みを待つ
+	private static <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new FileIoException(e.getCause());
+		}
 	}
 
 	/**
-	 * テーブルの内容をファイルへ書き出します
+	 * 変更のあったテーブルの内容をファイルへ書き出します
 	 *
 	 * @param tableNames
 	 *            テーブル名
 	 * @throws DbException
 	 */
 	public void commitTable(String... tableNames) {
-		for (String tableName : tableNames) {
-			saveTable(tableName);
+		List<CompletableFuture<Void>> writes = new ArrayList<>();
+		if (snapshotIsolation) {
+			List<String> names = new ArrayList<>();
+			for (String tableName : tableNames) {
+				names.add(getTableName(tableName));
+			}
+			commitWorkingTables(names, writes);
+		} else {
+			for (String tableName : tableNames) {
+				commitDirtyTable(tableName, writes);
+			}
 		}
 		dir.commitTable(tableNames);
+		await(CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()])));
+	}
+
+	/**
+	 * コミット済みの変更がディスクへ書き込まれ、リスナーへ通知されるのを待ち、書き込み用と通知用のスレッドを終了します。
+	 * 閉じた後はコミットできません。
+	 */
+	@Override
+	public void close() {
+		groupCommit.close();
+		changeFeed.close();
+	}
+
+	/**
+	 * ログファイルの内容をテーブルのファイルへ反映し、ログファイルを削除します。
+	 * コミットされていない変更のあるテーブルは次回のチェックポイントまで反映を見送ります。
+	 * 読み込まれていないテーブルはログファイルを反映するために読み込み、反映した後はメモリ上から破棄します。
+	 */
+	public void checkpoint() {
+		// キャッシュ上のテーブルではなくログファイルを基に反映する
+		File[] walFiles = rootDir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith("." + DbWal.EXTENSION);
+			}
+		});
+		for (File walFile : walFiles) {
+			String tableName = stripExtention(walFile.getName());
+			String name = getTableName(tableName);
+			// ロック中は他のスレッドから破棄されない
+			Lock lock = writeLock(tableName);
+			try {
+				if (!walFile.exists()) {
+					// 他のスレッドで反映済み
+					continue;
+				}
+				boolean cached = tables.containsKey(name);
+				DbTable table = getCommittedTable(tableName);
+				if (table.isDirty()) {
+					LOGGER.warn(tableName + "はコミットされていない変更がある為、チェックポイントを見送りました");
+					continue;
+				}
+				saveTable(tableName, table);
+				// 書き込み待ちの追記が無くなってからログファイルを削除する
+				groupCommit.flush();
+				DbWal.delete(walFile);
+				if (!cached) {
+					// チェックポイントの為に読み込んだテーブルは保持しない
+					tables.remove(name);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
 	}
 
 	/**
-	 * 全テーブルの内容をファイルから読み込みなおします
+	 * 変更のあった全テーブルの内容をファイルから読み込みなおします
 	 *
 	 * @throws DbException
 	 */
 	protected boolean rollbackImple() {
-		List<String> tableNames = new ArrayList<>();
+		if (snapshotIsolation) {
+			// 作業用のテーブルを破棄するのみ
+			workingTables.get().clear();
+			return dir.rollback();
+		}
 		for (String tableName : tables.keySet()) {
-			loadTable(tableName);
-			tableNames.add(tableName);
+			rollbackDirtyTable(tableName);
 		}
 		return dir.rollback();
 	}
 
 	/**
-	 * テーブルの内容をファイルから読み込みなおします
+	 * 変更のあったテーブルの内容をファイルから読み込みなおします
 	 *
 	 * @param tableNames
 	 *            テーブル名
@@ -836,25 +1686,205 @@ public class Db extends AbstractTransactional {
 	 */
 	public void rollbackTable(String... tableNames) {
 		for (String tableName : tableNames) {
-			loadTable(tableName);
+			if (snapshotIsolation) {
+				workingTables.get().remove(getTableName(tableName));
+			} else {
+				rollbackDirtyTable(tableName);
+			}
 		}
 		dir.rollbackTable(tableNames);
 	}
 
+	// スレッドの作業用テーブルを書き出し、コミット済みのテーブルと置き換える
+	private boolean commitWorkingTables(Collection<String> tableNames,
+			List<CompletableFuture<Void>> writes) {
+		Map<String, DbTable> working = workingTables.get();
+		// デッドロックしないよう名称順にロックする
+		List<String> names = new ArrayList<>();
+		for (String tableName : tableNames) {
+			if (working.containsKey(tableName)) {
+				names.add(tableName);
+			}
+		}
+		Collections.sort(names);
+		Map<String, CompletableFuture<Void>> saves = new LinkedHashMap<>();
+		List<Lock> acquired = new ArrayList<>();
+		try {
+			for (String name : names) {
+				acquired.add(writeLock(name));
+			}
+			// 複製した後に他のスレッドがコミットしていないか確認
+			for (String name : names) {
+				if (working.get(name).getBaseVersion() != getVersion(name)) {
+					LOGGER.warn(name + "は他のスレッドが先にコミットした為、変更を破棄しました");
+					for (String discard : names) {
+						working.remove(discard);
+					}
+					return false;
+				}
+			}
+			for (String name : names) {
+				DbTable table = working.get(name);
+				if (table.isDirty()) {
+					writes.add(persistTable(name, saves));
+				}
+				versions.put(name, Long.valueOf(getVersion(name) + 1));
+				tables.put(name, table);
+				working.remove(name);
+			}
+		} finally {
+			for (Lock lock : acquired) {
+				lock.unlock();
+			}
+		}
+		// 置き換えたテーブルは変更されない為、ファイルへの書き出しはロックを解放してから行い、読み込みを待たせない
+		for (Map.Entry<String, CompletableFuture<Void>> save : saves.entrySet()) {
+			saveCommittedTable(save.getKey(), save.getValue());
+		}
+		return true;
+	}
+
+	// コミット済みのテーブルをファイルへ書き出す。先に書き出しを始めたスレッドが後のコミットの内容まで書き出すことがある
+	private void saveCommittedTable(String tableName, CompletableFuture<Void> write) {
+		try {
+			synchronized (getPersistLock(tableName)) {
+				// 書き出しを待っている間は破棄されない為、最新のコミットの内容を書き出す
+				DbTable table = tables.get(tableName);
+				if (table != null) {
+					saveTable(tableName, table);
+					DbWal.delete(getWalFile(tableName));
+				}
+			}
+			write.complete(null);
+		} catch (RuntimeException e) {
+			write.completeExceptionally(e);
+		} finally {
+			unsavedTables.remove(tableName, write);
+		}
+	}
+
+	// テーブル毎のファイルへの書き出し用のロックを取得する
+	private Object getPersistLock(String tableName) {
+		String name = getTableName(tableName);
+		Object lock = persistLocks.get(name);
+		if (lock == null) {
+			lock = new Object();
+			Object current = persistLocks.putIfAbsent(name, lock);
+			if (current != null) {
+				lock = current;
+			}
+		}
+		return lock;
+	}
+
+	// コミット済みのテーブルのバージョンを取得する
+	private long getVersion(String tableName) {
+		Long version = versions.get(tableName);
+		return version == null ? 0 : version.longValue();
+	}
+
+	// 変更があればテーブルの内容をファイルへ書き出す
+	private void commitDirtyTable(String tableName, List<CompletableFuture<Void>> writes) {
+		Lock lock = writeLock(tableName);
+		try {
+			DbTable table = tables.get(getTableName(tableName));
+			if (table != null && table.isDirty()) {
+				writes.add(persistTable(tableName));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// 変更があればテーブルの内容をファイルから読み込みなおす
+	private void rollbackDirtyTable(String tableName) {
+		Lock lock = writeLock(tableName);
+		try {
+			DbTable table = tables.get(getTableName(tableName));
+			if (table != null && table.isDirty()) {
+				loadTable(tableName);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	// ユーティリティメソッド ----------------------------------------------
 
-	// 条件に合うレコードか判定する
-	private boolean isMatching(Map<String, Object> record,
-			Map<String, Object> params) {
-		for (String param : params.keySet()) {
-			String paramValue = toStr(params.get(param));
-			String value = toStr(record.get(param));
-			if ((paramValue != null && !paramValue.equals(value))
-					|| (value != null && !value.equals(paramValue))) {
-				return false;
+	// 返却用のレコードを作成する。複製しない場合は変更された時に複製するビューを返す
+	private Map<String, Object> toResult(Map<String, Object> record) {
+		return copyRecords ? DbRecord.copyOf(record) : new DbRecordView(record);
+	}
+
+	// 条件に合うレコードの行番号を取得する(limitが負の場合は全件)
+	private List<Long> findRowNos(DbTable table, Map<String, Object> params,
+			int limit) {
+		return findRowNos(table, params, 0, limit);
+	}
+
+	// 条件に合うレコードのうちoffset件目以降の行番号を取得する(limitが負の場合は全件)
+	private List<Long> findRowNos(DbTable table, Map<String, Object> params,
+			int offset, int limit) {
+		if (table == null) {
+			return new ArrayList<>();
+		}
+		return findRowNos(table, new DbQuery(table, params), offset, limit);
+	}
+
+	// 条件に合うレコードのうちoffset件目以降の行番号を取得する(limitが負の場合は全件)
+	private List<Long> findRowNos(DbTable table, DbQuery query, int offset,
+			int limit) {
+		List<Long> rowNos = new ArrayList<>();
+		if (table.isEmpty() || limit == 0) {
+			return rowNos;
+		}
+		int skip = offset;
+		long[] candidates = DbPlan.create(table, query).getCandidates();
+		if (limit < 0 && !query.isEmpty() && 0 < parallelScanThreshold) {
+			// 件数が多い場合は分割して並列に判定
+			long[] matched = null;
+			if (candidates == null && parallelScanThreshold <= table.size()) {
+				matched = DbScan.scan(ForkJoinPool.commonPool(), table, query);
+			} else if (candidates != null && parallelScanThreshold <= candidates.length) {
+				matched = DbScan.scan(ForkJoinPool.commonPool(), table, query, candidates);
+			}
+			if (matched != null) {
+				for (int i = Math.max(skip, 0); i < matched.length; i++) {
+					rowNos.add(Long.valueOf(matched[i]));
+				}
+				return rowNos;
 			}
 		}
-		return true;
+		if (candidates == null) {
+			// インデックスが使えない場合は全件を走査
+			for (Map.Entry<Long, Map<String, Object>> entry : table.entries()) {
+				if (query.isEmpty() || query.matches(entry.getValue())) {
+					if (0 < skip) {
+						skip--;
+						continue;
+					}
+					rowNos.add(entry.getKey());
+					if (rowNos.size() == limit) {
+						break;
+					}
+				}
+			}
+		} else {
+			// インデックスで絞り込んだレコードのみ判定
+			for (long rowNo : candidates) {
+				if (query.matches(table.get(rowNo))) {
+					if (0 < skip) {
+						skip--;
+						continue;
+					}
+					rowNos.add(Long.valueOf(rowNo));
+					if (rowNos.size() == limit) {
+						break;
+					}
+				}
+			}
+		}
+		return rowNos;
 	}
 
 	private String toStr(Object value) {
@@ -881,6 +1911,94 @@ public class Db extends AbstractTransactional {
 		return keyFields;
 	}
 
+	// インデックスを作成するフィールドと種類を取得する
+	// キー項目とidは等価検索用、それ以外はスキーマのindexesで定義する
+	// "indexes": {"status": "hash", "zip": "sorted"} または "indexes": ["status"]
+	@SuppressWarnings("unchecked")
+	private Map<String, String> getIndexTypes(String tableName) {
+		Map<String, String> indexTypes = new LinkedHashMap<>();
+		for (String keyField : getKeyFields(tableName)) {
+			indexTypes.put(keyField, DbIndex.HASH);
+		}
+		indexTypes.put("id", DbIndex.HASH);
+		Map<String, Object> schema = getSchema(tableName);
+		if (schema != null) {
+			Object objIndexes = schema.get("indexes");
+			if (objIndexes instanceof Map) {
+				for (Map.Entry<String, Object> index : ((Map<String, Object>) objIndexes)
+						.entrySet()) {
+					String type = toStr(index.getValue());
+					if (!DbIndex.HASH.equals(type) && !DbIndex.SORTED.equals(type)) {
+						LOGGER.warn(tableName + "." + index.getKey() + "のインデックスの種類が不正です:" + type);
+						type = DbIndex.HASH;
+					}
+					indexTypes.put(index.getKey(), type);
+				}
+			} else if (objIndexes instanceof List) {
+				for (Object fieldName : (List<Object>) objIndexes) {
+					indexTypes.put(fieldName.toString(), DbIndex.HASH);
+				}
+			}
+		}
+		return indexTypes;
+	}
+
+	// スキーマからフィールドの型を取得する。文字列で比較する場合はnull
+	// "fields": {"age": "long", "price": "double", "name": "string", "active": "boolean"}
+	private Map<String, DbFieldType> getFieldTypes(String tableName) {
+		if (!typedMatching) {
+			return null;
+		}
+		return getDeclaredFieldTypes(tableName);
+	}
+
+	// スキーマで列で保持するよう指定されている場合はフィールドの型を取得する。それ以外はnull
+	// "storage": "columnar", "fields": {...}
+	private Map<String, DbFieldType> getColumnTypes(String tableName) {
+		Map<String, Object> schema = getSchema(tableName);
+		if (schema == null || !STORAGE_COLUMNAR.equals(schema.get("storage"))) {
+			return null;
+		}
+		Map<String, DbFieldType> columnTypes = getDeclaredFieldTypes(tableName);
+		if (columnTypes.isEmpty()) {
+			LOGGER.warn(tableName + "はfieldsの宣言が無い為、列で保持しません");
+			return null;
+		}
+		// 全てのレコードにあるidも列で保持する
+		if (!columnTypes.containsKey("id")) {
+			columnTypes.put("id", DbFieldType.STRING);
+		}
+		return columnTypes;
+	}
+
+	// スキーマのfieldsで宣言されたフィールドの型を宣言順に取得する
+	@SuppressWarnings("unchecked")
+	private Map<String, DbFieldType> getDeclaredFieldTypes(String tableName) {
+		Map<String, DbFieldType> fieldTypes = new LinkedHashMap<>();
+		Map<String, Object> schema = getSchema(tableName);
+		if (schema != null) {
+			Object objFields = schema.get("fields");
+			if (objFields instanceof Map) {
+				for (Map.Entry<String, Object> field : ((Map<String, Object>) objFields)
+						.entrySet()) {
+					DbFieldType fieldType = DbFieldType.of(toStr(field.getValue()));
+					if (fieldType == DbFieldType.ANY) {
+						LOGGER.warn(tableName + "." + field.getKey() + "の型が不正です:" + field.getValue());
+					}
+					fieldTypes.put(field.getKey(), fieldType);
+				}
+			}
+		}
+		return fieldTypes;
+	}
+
+	// スキーマで読み込み専用のテーブルとして指定されているか判定する
+	// "storage": "mapped"
+	private boolean isMapped(String tableName) {
+		Map<String, Object> schema = getSchema(tableName);
+		return schema != null && STORAGE_MAPPED.equals(schema.get("storage"));
+	}
+
 	// スキーマからID情報を取得する
 	private String getIdFormat(String tableName) {
 		Map<String, Object> schema = getSchema(tableName);
@@ -896,22 +2014,15 @@ public class Db extends AbstractTransactional {
 	// レコードが存在するか判定する
 	private boolean hasRecord(String tableName, Map<String, Object> record,
 			List<String> keyFields) {
-		List<Map<String, Object>> table = getTable(tableName);
+		DbTable table = getTable(tableName);
 		return hasRecord(table, record, keyFields);
 	}
 
 	// レコードが存在するか判定する
-	private boolean hasRecord(List<Map<String, Object>> table,
-			Map<String, Object> record, List<String> keyFields) {
-		if (table != null) {
-			Map<String, Object> params = getParams(record, keyFields);
-			for (Map<String, Object> stored : table) {
-				if (isMatching(stored, params)) {
-					return true;
-				}
-			}
-		}
-		return false;
+	private boolean hasRecord(DbTable table, Map<String, Object> record,
+			List<String> keyFields) {
+		Map<String, Object> params = getParams(record, keyFields);
+		return !findRowNos(table, params, 1).isEmpty();
 	}
 
 	// レコードとキー名称から検索パラメーターを作成する
@@ -939,77 +2050,48 @@ public class Db extends AbstractTransactional {
 	}
 
 	private boolean isFormalId(String tableName, String id) {
-		String format = getIdFormat(tableName);
-		NumberFormat formatter = new DecimalFormat(format);
-		long no = 0;
-		try {
-			no = formatter.parse(id).longValue();
-		} catch (ParseException e) {
-			// パースに失敗した場合はfalse
-			return false;
-		}
-		// サーバーで発行したIDか...
-		Long currentNo = getId(tableName);
-		if (currentNo == null || currentNo.longValue() < no) {
-			// サーバーで発行したIDは、まだその番号に達していない
-			return false;
-		}
-		return true;
+		return getIdAllocator(tableName).isIssued(id);
 	}
 
 	private String createId(String tableName) {
-		// 現在のIDに振られた番号から次の番号を算出
-		Long currentNo = getId(tableName);
-		long no = 1;
-		if (currentNo != null) {
-			no = currentNo.longValue() + 1;
-		}
-		// 番号を基にIDを生成
-		putId(tableName, Long.valueOf(no));
-		String format = getIdFormat(tableName);
-		NumberFormat formatter = new DecimalFormat(format);
-		return formatter.format(no);
-
-	}
-
-	//
-	private Long getCurrentIdNo(String tableName,
-			List<Map<String, Object>> table) {
-		// 一番大きなIDよりも大きなID
-		String format = getIdFormat(tableName);
-		NumberFormat formatter = new DecimalFormat(format);
-		long no = 0;
-		String currentId = getCurrentId(table);
-		if (currentId != null) {
-			// 既に発行されたIDがある場合
-			try {
-				no = formatter.parse(currentId).longValue();
-			} catch (ParseException e) {
-				// パースに失敗した場合はno=0としてあつかう
+		// スナップショット分離の場合は複数のスレッドが同時に発行する
+		return getIdAllocator(tableName).next();
+	}
+
+	// テーブルのIDの発行を取得する。無い場合は保存済みの番号を読み込んで作成する
+	private DbIdAllocator getIdAllocator(String tableName) {
+		String name = getTableName(tableName);
+		DbIdAllocator allocator = ids.get(name);
+		if (allocator == null) {
+			allocator = new DbIdAllocator(getIdFormat(tableName), getMetaFile(tableName));
+			DbIdAllocator current = ids.putIfAbsent(name, allocator);
+			if (current != null) {
+				allocator = current;
 			}
 		}
-		return Long.valueOf(no);
-
+		return allocator;
 	}
 
-	private String getCurrentId(List<Map<String, Object>> records) {
-		// 一番大きなIDを探す
-		String id = null;
-		String nextId = null;
-		for (Map<String, Object> record : records) {
-			nextId = record.get("id").toString();
-			if (id == null || (nextId != null && 0 < nextId.compareTo(id))) {
-				id = nextId;
+	// テーブルを取得する
+	private DbTable getTable(String tableName) {
+		if (snapshotIsolation) {
+			// 更新したスレッドには作業用のテーブルを返す
+			DbTable working = workingTables.get().get(getTableName(tableName));
+			if (working != null) {
+				return working;
 			}
 		}
-		return id;
+		return getCommittedTable(tableName);
 	}
 
-	// テーブルを取得する
-	private List<Map<String, Object>> getTable(String tableName) {
-		List<Map<String, Object>> table = tables.get(getTableName(tableName));
+	// コミット済みのテーブルを取得する。読み込まれていない場合は読み込む
+	private DbTable getCommittedTable(String tableName) {
+		DbTable table = tables.get(getTableName(tableName));
 		if (table == null) {
-			synchronized (LOCK) {
+			// 読み込みはテーブル毎に1スレッドのみ
+			ReadWriteLock lock = getLock(tableName);
+			synchronized (lock) {
+				table = tables.get(getTableName(tableName));
 				if (table == null) {
 					table = loadTable(tableName);
 				}
@@ -1018,70 +2100,316 @@ public class Db extends AbstractTransactional {
 		return table;
 	}
 
-	private List<Map<String, Object>> loadTable(String tableName) {
-		List<Map<String, Object>> table = null;
+	// テーブルへのアクセスを記録し、読み込んだ場合はキャッシュの上限を超えた分を破棄する
+	private DbTable accessTable(String tableName) {
+		String name = getTableName(tableName);
+		boolean cached = tables.containsKey(name);
+		DbTable table = getTable(tableName);
+		accesses.put(name, Long.valueOf(accessCount.incrementAndGet()));
+		if (cached) {
+			hitCount.incrementAndGet();
+		} else {
+			missCount.incrementAndGet();
+			evictTables(name);
+		}
+		return table;
+	}
+
+	// キャッシュの上限を超えている場合は、変更の無いテーブルを使われていない順に破棄する
+	private void evictTables(String excludeName) {
+		if (maxCachedRows <= 0) {
+			return;
+		}
+		long rows = 0;
+		for (DbTable table : tables.values()) {
+			// 読み込み専用のテーブルはレコードをメモリ上に保持しない
+			if (!table.isMapped()) {
+				rows += table.size();
+			}
+		}
+		if (rows <= maxCachedRows) {
+			return;
+		}
+		List<String> names = new ArrayList<>(tables.keySet());
+		Collections.sort(names, new Comparator<String>() {
+			@Override
+			public int compare(String o1, String o2) {
+				return Long.compare(getAccess(o1), getAccess(o2));
+			}
+		});
+		for (String name : names) {
+			if (rows <= maxCachedRows) {
+				break;
+			}
+			if (name.equals(excludeName)) {
+				continue;
+			}
+			// 使用中のテーブルは破棄しない
+			Lock lock = getLock(name).writeLock();
+			if (!lock.tryLock()) {
+				continue;
+			}
+			try {
+				DbTable table = tables.get(name);
+				if (table == null || table.isDirty() || table.isMapped() || unsavedTables.containsKey(name)) {
+					// 変更のあるテーブルはコミットとファイルへの書き出しまで破棄しない。読み込み専用のテーブルは破棄しても減らない
+					continue;
+				}
+				tables.remove(name);
+				rows -= table.size();
+				evictionCount.incrementAndGet();
+				LOGGER.debug(name + "をメモリ上から破棄しました");
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	// テーブルに最後にアクセスした順番を取得する
+	private long getAccess(String tableName) {
+		Long access = accesses.get(tableName);
+		return access == null ? 0 : access.longValue();
+	}
+
+	// テーブルのロックを取得する
+	private ReadWriteLock getLock(String tableName) {
+		String name = getTableName(tableName);
+		ReadWriteLock lock = locks.get(name);
+		if (lock == null) {
+			lock = new ReentrantReadWriteLock();
+			ReadWriteLock current = locks.putIfAbsent(name, lock);
+			if (current != null) {
+				lock = current;
+			}
+		}
+		return lock;
+	}
+
+	// テーブルの参照用のロックを獲得する
+	private Lock readLock(String tableName) {
+		// 参照用のロックを獲得した状態では読み込みができない為、先に読み込んでおく
+		accessTable(tableName);
+		Lock lock = getLock(tableName).readLock();
+		lock.lock();
+		return lock;
+	}
+
+	// テーブルの更新用のロックを獲得する
+	private Lock writeLock(String tableName) {
+		Lock lock = getLock(tableName).writeLock();
+		lock.lock();
+		return lock;
+	}
+
+	// テーブルを更新する為のロックを獲得する
+	private Lock updateLock(String tableName) throws DbException {
+		if (isMapped(tableName)) {
+			throw new DbException(tableName + "は読み込み専用のテーブルです");
+		}
+		return lockForUpdate(tableName);
+	}
+
+	// 読み込み専用のテーブルでないことを確認済みのテーブルを更新する為のロックを獲得する
+	private Lock lockForUpdate(String tableName) {
+		if (!snapshotIsolation) {
+			accessTable(tableName);
+			return writeLock(tableName);
+		}
+		// スナップショット分離の場合は作業用のテーブルを更新する為、コミット済みのテーブルは参照のみ
+		Lock lock = readLock(tableName);
+		String name = getTableName(tableName);
+		Map<String, DbTable> working = workingTables.get();
+		if (!working.containsKey(name)) {
+			// 作業用のテーブルが無い場合、getTableはコミット済みのテーブルを返す
+			working.put(name, getTable(tableName).fork(getVersion(name)));
+		}
+		return lock;
+	}
+
+	private DbTable loadTable(String tableName) {
+		if (isMapped(tableName)) {
+			DbTable table = loadMappedTable(tableName);
+			putTable(tableName, table);
+			return table;
+		}
+		// インデックスを作成しつつテーブルを作る
+		DbTable table = new DbTable(getTableName(tableName),
+				getIndexTypes(tableName), getFieldTypes(tableName), getColumnTypes(tableName));
 		File tableFile = getTableFile(tableName);
 		if (tableFile != null && tableFile.exists()) {
 			// ファイルから読み込み
-			table = loadTableFile(tableFile);
-		} else {
-			// ファイルが無い場合は空のテーブルを作る
-			table = new ArrayList<>();
+			loadTableFile(tableFile, table);
+		}
+		// ファイルが無い場合は空のテーブルのまま
+		// コミット済みの変更をログファイルから反映
+		File walFile = getWalFile(tableName);
+		// 書き込み待ちの追記があれば書き込まれてから読み込む
+		groupCommit.flush();
+		if (walFile.exists()) {
+			DbWal.replay(walFile, table);
+		}
+		// 発行済みの番号が保存されていない場合のみレコードから求める
+		// 破棄した後に読み込みなおした場合は発行済みの番号をそのまま引き継ぐ
+		DbIdAllocator allocator = getIdAllocator(tableName);
+		if (allocator.isScanRequired()) {
+			allocator.scan(table.records());
 		}
 		putTable(tableName, table);
-		putId(tableName, getCurrentIdNo(tableName, table));
 		return table;
 	}
 
+	// 読み込み専用のテーブルをメモリへマップしたファイルから読み込む
+	// ファイルが無い場合や作成元が更新されている場合は、テーブルのファイルとログファイルから作成する
+	private DbTable loadMappedTable(String tableName) {
+		String name = getTableName(tableName);
+		Map<String, DbFieldType> fieldTypes = getFieldTypes(tableName);
+		DbTable source = new DbTable(name, getIndexTypes(tableName), fieldTypes);
+		File tableFile = getTableFile(tableName);
+		File walFile = getWalFile(tableName);
+		File mappedFile = getMappedFile(tableName);
+		try {
+			DbMappedTable mapped = null;
+			if (mappedFile.exists()) {
+				mapped = DbMappedTable.open(mappedFile);
+				if (!mapped.isCompiledFrom(tableFile, walFile)) {
+					LOGGER.info(name + "の作成元が更新されている為、" + mappedFile.getAbsolutePath() + "を作成しなおします");
+					mapped = null;
+				} else if (!mapped.hasIndexes(source)) {
+					if (tableFile.exists() || walFile.exists()) {
+						LOGGER.info(name + "のインデックスが変更されている為、" + mappedFile.getAbsolutePath() + "を作成しなおします");
+						mapped = null;
+					} else {
+						LOGGER.warn(name + "の作成元が無い為、" + mappedFile.getAbsolutePath() + "のインデックスのまま参照します");
+					}
+				}
+			}
+			if (mapped == null) {
+				if (tableFile.exists()) {
+					loadTableFile(tableFile, source);
+				}
+				if (walFile.exists()) {
+					DbWal.replay(walFile, source);
+				}
+				DbMappedTable.compile(mappedFile, source, tableFile, walFile);
+				mapped = DbMappedTable.open(mappedFile);
+			}
+			LOGGER.info(mappedFile.getAbsolutePath() + "をマップしました。");
+			return new DbTable(name, mapped, fieldTypes);
+		} catch (IOException e) {
+			LOGGER.error(mappedFile.getAbsolutePath() + "の読み込みに失敗しました");
+			throw new FileIoException(e);
+		}
+	}
+
 	private void saveTable(String tableName) {
-		saveTableFile(getTableFile(tableName), getTable(tableName));
+		saveTable(tableName, getTable(tableName));
 	}
 
-	private List<Map<String, Object>> putTable(String tableName,
-			List<Map<String, Object>> table) {
-		return tables.put(getTableName(tableName), table);
+	// 同じテーブルのファイルへの書き出しは順に行う
+	private void saveTable(String tableName, DbTable table) {
+		synchronized (getPersistLock(tableName)) {
+			DbTableCodec codec = getTableCodec(tableName);
+			File tableFile = getTableFile(tableName);
+			if (DbTableCodecs.get(tableFile) == codec) {
+				saveTableFile(tableFile, codec, table.records());
+			} else {
+				// 形式が変わった場合は新しい拡張子のファイルへ置き換える
+				File newFile = new File(rootDir, getTableName(tableName) + "." + codec.getExtension());
+				saveTableFile(newFile, codec, table.records());
+				if (tableFile.exists() && !tableFile.delete()) {
+					LOGGER.warn(tableFile.getAbsolutePath() + "を削除できませんでした");
+				}
+				tableFiles.put(getTableName(tableName), newFile);
+			}
+		}
+	}
+
+	// コミットされていない変更をファイルへ書き出す。ログファイルへの追記はまとめて行い、書き込まれると完了する
+	private CompletableFuture<Void> persistTable(String tableName) {
+		return persistTable(tableName, null);
 	}
 
-	private Long getId(String tableName) {
-		return ids.get(getTableName(tableName));
+	// savesを指定した場合、テーブルのファイルへの書き出しは行わずに書き出すテーブルとして追加する
+	private CompletableFuture<Void> persistTable(String tableName, Map<String, CompletableFuture<Void>> saves) {
+		DbTable table = getTable(tableName);
+		LOGGER.debug(tableName + "の" + table.getDirtyRowNos().size() + "行の変更を書き出します");
+		// 書き出すレコードのIDより先に発行済みの番号を保存する
+		getIdAllocator(tableName).persist(getMetaFile(tableName));
+		CompletableFuture<Void> write;
+		if (walMode) {
+			// 変更の内容はロック中に確定させ、追記は書き込み用のスレッドへ任せる
+			write = groupCommit.append(getWalFile(tableName), DbWal.encode(table.getChanges()));
+		} else if (saves != null) {
+			// 書き出すまでの間はメモリ上から破棄させない
+			write = new CompletableFuture<>();
+			unsavedTables.put(getTableName(tableName), write);
+			saves.put(getTableName(tableName), write);
+		} else {
+			saveTable(tableName);
+			// テーブルのファイルへ全て反映済みの為、残っているログは不要
+			DbWal.delete(getWalFile(tableName));
+			write = CompletableFuture.completedFuture(null);
+		}
+		if (changeFeed.hasListeners()) {
+			// テーブルのロック中に受け付けることで、同じテーブルの変更はコミットされた順に通知される
+			changeFeed.publish(new ArrayList<>(table.getChanges()), write);
+		}
+		table.clearChanges();
+		return write;
 	}
 
-	private Long putId(String tableName, Long id) {
-		return ids.put(getTableName(tableName), id);
+	private DbTable putTable(String tableName, DbTable table) {
+		return tables.put(getTableName(tableName), table);
 	}
 
 	private File getTableFile(String tableName) {
 		tableName = getTableName(tableName);
 		File tableFile = tableFiles.get(tableName);
 		if (tableFile == null) {
-			tableFile = new File(rootDir, tableName + ".json");
+			tableFile = new File(rootDir, tableName + "." + getTableCodec(tableName).getExtension());
 			tableFiles.put(tableName, tableFile);
 		}
 		return tableFile;
 	}
 
+	private File getWalFile(String tableName) {
+		return new File(rootDir, getTableName(tableName) + "." + DbWal.EXTENSION);
+	}
+
+	private File getMappedFile(String tableName) {
+		return new File(rootDir, getTableName(tableName) + "." + DbMappedTable.EXTENSION);
+	}
+
+	private File getMetaFile(String tableName) {
+		return new File(rootDir, getTableName(tableName) + "." + DbIdAllocator.EXTENSION);
+	}
+
+	// テーブルのファイル形式を取得する
+	private DbTableCodec getTableCodec(String tableName) {
+		Map<String, Object> schema = getSchema(tableName);
+		if (schema != null) {
+			Object format = schema.get("format");
+			if (format != null) {
+				return DbTableCodecs.get(format.toString());
+			}
+		}
+		return DbTableCodecs.get(tableFormat);
+	}
+
 	private Map<String, Object> getSchema(String tableName) {
 		return schemas.get(getTableName(tableName));
 	}
 
 	// テーブル名を取得する
 	private String getTableName(String tableName) {
-		if (schemas != null) {
-			if (!tables.containsKey(tableName)
-					&& !schemas.containsKey(tableName)) {
-				// 正式な名称ではない場合
-				for (String formalTableName : schemas.keySet()) {
-					Map<String, Object> schema = schemas.get(formalTableName);
-					// 別名がある場合
-					Object alt = schema.get("alt");
-					if (tableName.equals(alt)) {
-						return formalTableName;
-					}
-				}
-			}
+		String formalTableName = tableNames.get(tableName);
+		if (formalTableName == null || formalTableName.equals(tableName)
+				|| tables.containsKey(tableName)) {
+			// 正式な名称の場合 or 定義されていない名称の場合
+			return tableName;
 		}
-		// 正式な名称の場合 or 定義されていない名称の場合
-		return tableName;
+		// 別名の場合
+		return formalTableName;
 	}
 
 }
@@ -0,0 +1,172 @@
+package com.purejadeite.db;
+
+/**
+ * {@link Db#aggregate(String, java.util.Map, java.util.List, DbAggregation...)}で行う集計です。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+public class DbAggregation {
+
+	/**
+	 * 集計関数
+	 */
+	public static enum Function {
+
+		/**
+		 * 件数。フィールドの指定がある場合は値がnullでない件数
+		 */
+		COUNT,
+
+		/**
+		 * 合計。全て整数の場合はLong、小数を含む場合はDouble。数値の文字列は数値として合計します
+		 */
+		SUM,
+
+		/**
+		 * 最小値
+		 */
+		MIN,
+
+		/**
+		 * 最大値
+		 */
+		MAX,
+
+		/**
+		 * 平均値
+		 */
+		AVG
+	}
+
+	// 集計関数
+	private final Function function;
+
+	// 集計するフィールド名
+	private final String fieldName;
+
+	// 結果の名称
+	private final String name;
+
+	private DbAggregation(Function function, String fieldName, String name) {
+		this.function = function;
+		this.fieldName = fieldName;
+		this.name = name;
+	}
+
+	private static DbAggregation of(Function function, String fieldName) {
+		String name = function.name().toLowerCase();
+		if (fieldName != null) {
+			name += "(" + fieldName + ")";
+		}
+		return new DbAggregation(function, fieldName, name);
+	}
+
+	/**
+	 * 件数を集計します。結果の名称は「count」です
+	 *
+	 * @return 集計
+	 */
+	public static DbAggregation count() {
+		return of(Function.COUNT, null);
+	}
+
+	/**
+	 * 値がnullでない件数を集計します。結果の名称は「count(フィールド名)」です
+	 *
+	 * @param fieldName
+	 *            フィールド名
+	 * @return 集計
+	 */
+	public static DbAggregation count(String fieldName) {
+		return of(Function.COUNT, fieldName);
+	}
+
+	/**
+	 * 合計を集計します。結果の名称は「sum(フィールド名)」です
+	 *
+	 * @param fieldName
+	 *            フィールド名
+	 * @return 集計
+	 */
+	public static DbAggregation sum(String fieldName) {
+		return of(Function.SUM, fieldName);
+	}
+
+	/**
+	 * 最小値を集計します。結果の名称は「min(フィールド名)」です
+	 *
+	 * @param fieldName
+	 *            フィールド名
+	 * @return 集計
+	 */
+	public static DbAggregation min(String fieldName) {
+		return of(Function.MIN, fieldName);
+	}
+
+	/**
+	 * 最大値を集計します。結果の名称は「max(フィールド名)」です
+	 *
+	 * @param fieldName
+	 *            フィールド名
+	 * @return 集計
+	 */
+	public static DbAggregation max(String fieldName) {
+		return of(Function.MAX, fieldName);
+	}
+
+	/**
+	 * 平均値を集計します。結果の名称は「avg(フィールド名)」です
+	 *
+	 * @param fieldName
+	 *            フィールド名
+	 * @return 集計
+	 */
+	public static DbAggregation avg(String fieldName) {
+		return of(Function.AVG, fieldName);
+	}
+
+	/**
+	 * 結果の名称を変更した集計を取得します
+	 *
+	 * @param name
+	 *            結果の名称
+	 * @return 集計
+	 */
+	public DbAggregation as(String name) {
+		return new DbAggregation(function, fieldName, name);
+	}
+
+	/**
+	 * 集計関数を取得します
+	 *
+	 * @return 集計関数
+	 */
+	public Function getFunction() {
+		return function;
+	}
+
+	/**
+	 * 集計するフィールド名を取得します
+	 *
+	 * @return フィールド名。件数の場合はnull
+	 */
+	public String getFieldName() {
+		return fieldName;
+	}
+
+	/**
+	 * 結果の名称を取得します
+	 *
+	 * @return 名称
+	 */
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+}
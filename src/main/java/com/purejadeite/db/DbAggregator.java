@@ -0,0 +1,326 @@
+package com.purejadeite.db;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * レコードをグループ毎に集計するクラスです。
+ * レコードは複製せずに参照し、集計値は数値のまま保持します。
+ * 数値の文字列は数値として合計・平均し、整数の合計がlongに収まらない場合は{@link ArithmeticException}とします。
+ * 件数が指定の下限以上の場合は分割して並列に集計し、最後にまとめます。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+class DbAggregator {
+
+	// 1スレッドで集計するレコード数
+	private static final int CHUNK_SIZE = 10000;
+
+	// グループ化するフィールド名
+	private final String[] groupFields;
+
+	// 集計
+	private final DbAggregation[] aggregations;
+
+	// 並列に集計するレコード数の下限(0以下は並列に集計しない)
+	private final int parallelThreshold;
+
+	DbAggregator(List<String> groupFields, DbAggregation[] aggregations, int parallelThreshold) {
+		this.groupFields = groupFields == null ? new String[0]
+				: groupFields.toArray(new String[groupFields.size()]);
+		this.aggregations = aggregations;
+		this.parallelThreshold = parallelThreshold;
+	}
+
+	/**
+	 * レコードを集計します。グループは最初に現れた順に並びます
+	 *
+	 * @param records
+	 *            集計するレコード
+	 * @return グループ毎の集計結果(グループ化するフィールドの値と集計の名称->集計値)
+	 */
+	List<Map<String, Object>> aggregate(List<Map<String, Object>> records) {
+		Map<Object, Accumulator[]> groups;
+		if (parallelThreshold <= 0 || records.size() < parallelThreshold) {
+			groups = aggregate(records, 0, records.size());
+		} else {
+			groups = ForkJoinPool.commonPool().invoke(new Task(records, 0, records.size()));
+		}
+		List<Map<String, Object>> results = new ArrayList<>(groups.size());
+		for (Map.Entry<Object, Accumulator[]> group : groups.entrySet()) {
+			Map<String, Object> result = new HashMap<>();
+			Object key = group.getKey();
+			if (groupFields.length == 1) {
+				result.put(groupFields[0], key);
+			} else {
+				Object[] values = ((GroupKey) key).values;
+				for (int i = 0; i < groupFields.length; i++) {
+					result.put(groupFields[i], values[i]);
+				}
+			}
+			Accumulator[] accumulators = group.getValue();
+			for (int i = 0; i < aggregations.length; i++) {
+				result.put(aggregations[i].getName(),
+						accumulators[i].getResult(aggregations[i].getFunction()));
+			}
+			results.add(result);
+		}
+		return results;
+	}
+
+	// 指定範囲のレコードを集計する
+	private Map<Object, Accumulator[]> aggregate(List<Map<String, Object>> records,
+			int from, int to) {
+		Map<Object, Accumulator[]> groups = new LinkedHashMap<>();
+		for (int i = from; i < to; i++) {
+			Map<String, Object> record = records.get(i);
+			Object key = toKey(record);
+			Accumulator[] accumulators = groups.get(key);
+			if (accumulators == null) {
+				accumulators = new Accumulator[aggregations.length];
+				for (int j = 0; j < accumulators.length; j++) {
+					accumulators[j] = new Accumulator();
+				}
+				groups.put(key, accumulators);
+			}
+			for (int j = 0; j < aggregations.length; j++) {
+				String fieldName = aggregations[j].getFieldName();
+				if (fieldName == null) {
+					accumulators[j].count++;
+				} else {
+					accumulators[j].add(record.get(fieldName));
+				}
+			}
+		}
+		return groups;
+	}
+
+	// グループのキーを作成する。1フィールドの場合は値をそのまま使用する
+	private Object toKey(Map<String, Object> record) {
+		if (groupFields.length == 1) {
+			return record.get(groupFields[0]);
+		}
+		Object[] values = new Object[groupFields.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = record.get(groupFields[i]);
+		}
+		return new GroupKey(values);
+	}
+
+	// 集計結果をまとめる(後の結果を前の結果へ)
+	private Map<Object, Accumulator[]> merge(Map<Object, Accumulator[]> groups,
+			Map<Object, Accumulator[]> others) {
+		for (Map.Entry<Object, Accumulator[]> other : others.entrySet()) {
+			Accumulator[] accumulators = groups.get(other.getKey());
+			if (accumulators == null) {
+				groups.put(other.getKey(), other.getValue());
+			} else {
+				Accumulator[] otherAccumulators = other.getValue();
+				for (int i = 0; i < accumulators.length; i++) {
+					accumulators[i].merge(otherAccumulators[i]);
+				}
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * レコードを分割して並列に集計するタスクです
+	 */
+	private class Task extends RecursiveTask<Map<Object, Accumulator[]>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<Map<String, Object>> records;
+
+		private final int from;
+
+		private final int to;
+
+		Task(List<Map<String, Object>> records, int from, int to) {
+			this.records = records;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Map<Object, Accumulator[]> compute() {
+			if (to - from <= CHUNK_SIZE) {
+				return aggregate(records, from, to);
+			}
+			int middle = (from + to) >>> 1;
+			Task left = new Task(records, from, middle);
+			Task right = new Task(records, middle, to);
+			right.fork();
+			Map<Object, Accumulator[]> groups = left.compute();
+			return merge(groups, right.join());
+		}
+	}
+
+	/**
+	 * 複数フィールドのグループのキーです
+	 */
+	private static class GroupKey {
+
+		private final Object[] values;
+
+		private final int hash;
+
+		GroupKey(Object[] values) {
+			this.values = values;
+			this.hash = Arrays.hashCode(values);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof GroupKey)) {
+				return false;
+			}
+			GroupKey other = (GroupKey) obj;
+			return hash == other.hash && Arrays.equals(values, other.values);
+		}
+	}
+
+	/**
+	 * 1グループ・1集計の集計値です
+	 */
+	private static class Accumulator {
+
+		// 値の件数
+		private long count = 0;
+
+		// 数値の件数
+		private long numberCount = 0;
+
+		// 整数の合計
+		private long longSum = 0;
+
+		// 小数の合計
+		private double doubleSum = 0;
+
+		// 小数を含むか
+		private boolean decimal = false;
+
+		// 最小値
+		private Object min = null;
+
+		// 最大値
+		private Object max = null;
+
+		void add(Object value) {
+			if (value == null) {
+				return;
+			}
+			count++;
+			Number number = toNumber(value);
+			if (number != null) {
+				numberCount++;
+				if (isIntegral(number)) {
+					// 桁あふれは切り捨てずに例外とする
+					longSum = Math.addExact(longSum, number.longValue());
+				} else {
+					doubleSum += number.doubleValue();
+					decimal = true;
+				}
+			}
+			if (min == null || compare(value, min) < 0) {
+				min = value;
+			}
+			if (max == null || 0 < compare(value, max)) {
+				max = value;
+			}
+		}
+
+		void merge(Accumulator other) {
+			count += other.count;
+			numberCount += other.numberCount;
+			longSum = Math.addExact(longSum, other.longSum);
+			doubleSum += other.doubleSum;
+			decimal |= other.decimal;
+			if (other.min != null && (min == null || compare(other.min, min) < 0)) {
+				min = other.min;
+			}
+			if (other.max != null && (max == null || 0 < compare(other.max, max))) {
+				max = other.max;
+			}
+		}
+
+		Object getResult(DbAggregation.Function function) {
+			switch (function) {
+			case COUNT:
+				return Long.valueOf(count);
+			case SUM:
+				if (decimal) {
+					return Double.valueOf(longSum + doubleSum);
+				}
+				return Long.valueOf(longSum);
+			case MIN:
+				return min;
+			case MAX:
+				return max;
+			case AVG:
+				if (numberCount == 0) {
+					return null;
+				}
+				return Double.valueOf((longSum + doubleSum) / numberCount);
+			default:
+				return null;
+			}
+		}
+
+		// 値を比較する。数値は数値として比較し、それ以外はソートインデックスと同じ順序で比較する
+		private static int compare(Object value1, Object value2) {
+			if (value1 instanceof Number && value2 instanceof Number) {
+				Number number1 = (Number) value1;
+				Number number2 = (Number) value2;
+				if (isIntegral(number1) && isIntegral(number2)) {
+					return Long.compare(number1.longValue(), number2.longValue());
+				}
+				return Double.compare(number1.doubleValue(), number2.doubleValue());
+			}
+			return DbIndex.compareKeys(DbIndex.toSortKey(value1), DbIndex.toSortKey(value2));
+		}
+
+		// 数値へ変換する。数値の文字列はソートインデックスと同じ規則で数値とし、数値として扱えない場合はnull
+		private static Number toNumber(Object value) {
+			if (value instanceof Number) {
+				return (Number) value;
+			}
+			if (!(value instanceof String)) {
+				return null;
+			}
+			Object key = DbIndex.toSortKey(value);
+			if (!(key instanceof BigDecimal)) {
+				return null;
+			}
+			BigDecimal decimal = (BigDecimal) key;
+			try {
+				return Long.valueOf(decimal.longValueExact());
+			} catch (ArithmeticException e) {
+				return Double.valueOf(decimal.doubleValue());
+			}
+		}
+
+		private static boolean isIntegral(Number number) {
+			return number instanceof Integer || number instanceof Long
+					|| number instanceof Short || number instanceof Byte;
+		}
+	}
+
+}
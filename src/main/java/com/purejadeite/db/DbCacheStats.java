@@ -0,0 +1,86 @@
+package com.purejadeite.db;
+
+/**
+ * {@link Db}がメモリ上に保持しているテーブルの統計情報です。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+public class DbCacheStats {
+
+	// キャッシュにあった回数
+	private final long hitCount;
+
+	// キャッシュに無くファイルから読み込んだ回数
+	private final long missCount;
+
+	// キャッシュから破棄した回数
+	private final long evictionCount;
+
+	// 保持しているテーブル数
+	private final int tableCount;
+
+	// 保持しているレコード数
+	private final long rowCount;
+
+	DbCacheStats(long hitCount, long missCount, long evictionCount,
+			int tableCount, long rowCount) {
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.evictionCount = evictionCount;
+		this.tableCount = tableCount;
+		this.rowCount = rowCount;
+	}
+
+	/**
+	 * テーブルがメモリ上にあった回数を取得します
+	 *
+	 * @return 回数
+	 */
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * テーブルがメモリ上に無くファイルから読み込んだ回数を取得します
+	 *
+	 * @return 回数
+	 */
+	public long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * テーブルをメモリ上から破棄した回数を取得します
+	 *
+	 * @return 回数
+	 */
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * メモリ上に保持しているテーブル数を取得します
+	 *
+	 * @return テーブル数
+	 */
+	public int getTableCount() {
+		return tableCount;
+	}
+
+	/**
+	 * メモリ上に保持しているレコード数を取得します
+	 *
+	 * @return レコード数
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	@Override
+	public String toString() {
+		return "hit=" + hitCount + ",miss=" + missCount + ",eviction=" + evictionCount
+				+ ",tables=" + tableCount + ",rows=" + rowCount;
+	}
+
+}
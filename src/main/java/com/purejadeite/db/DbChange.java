@@ -0,0 +1,120 @@
+package com.purejadeite.db;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * テーブルのレコードに対する1件の変更です。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+public class DbChange {
+
+	/**
+	 * 変更の種類
+	 */
+	public enum Type {
+		ADD, UPDATE, DELETE
+	}
+
+	// テーブル名
+	private final String tableName;
+
+	// 変更の種類
+	private final Type type;
+
+	// 変更前のレコード
+	private final Map<String, Object> before;
+
+	// 変更後のレコード
+	private final Map<String, Object> after;
+
+	DbChange(String tableName, Type type, Map<String, Object> before,
+			Map<String, Object> after) {
+		this.tableName = tableName;
+		this.type = type;
+		this.before = before;
+		this.after = after;
+	}
+
+	/**
+	 * テーブル名を取得します
+	 *
+	 * @return テーブル名
+	 */
+	public String getTableName() {
+		return tableName;
+	}
+
+	/**
+	 * 変更の種類を取得します
+	 *
+	 * @return 変更の種類
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * 変更対象のレコードのIDを取得します。更新の場合は変更前のIDです。
+	 *
+	 * @return ID
+	 */
+	public String getId() {
+		Map<String, Object> record = before == null ? after : before;
+		Object id = record.get("id");
+		return id == null ? null : id.toString();
+	}
+
+	/**
+	 * 変更前のレコードを取得します
+	 *
+	 * @return 変更前のレコード。追加の場合はnull
+	 */
+	public Map<String, Object> getBefore() {
+		return before == null ? null : Collections.unmodifiableMap(before);
+	}
+
+	/**
+	 * 変更後のレコードを取得します
+	 *
+	 * @return 変更後のレコード。削除の場合はnull
+	 */
+	public Map<String, Object> getAfter() {
+		return after == null ? null : Collections.unmodifiableMap(after);
+	}
+
+	/**
+	 * 更新で値の変わったフィールドを取得します。
+	 * 追加の場合は全てのフィールド、削除の場合は空です。
+	 *
+	 * @return 値の変わったフィールド
+	 */
+	public Map<String, Object> getChangedFields() {
+		Map<String, Object> changed = new LinkedHashMap<>();
+		if (after == null) {
+			return changed;
+		}
+		for (Map.Entry<String, Object> field : after.entrySet()) {
+			String fieldName = field.getKey();
+			Object value = field.getValue();
+			if (before == null || !before.containsKey(fieldName)) {
+				changed.put(fieldName, value);
+			} else {
+				Object old = before.get(fieldName);
+				if (value == null ? old != null : !value.equals(old)) {
+					changed.put(fieldName, value);
+				}
+			}
+		}
+		return changed;
+	}
+
+	@Override
+	public String toString() {
+		return type + ":" + tableName + ":" + getId();
+	}
+
+}
@@ -0,0 +1,185 @@
+package com.purejadeite.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * コミットされた変更をリスナーへ通知するクラスです。
+ * 変更はコミットされた順に受け付け、ディスクへ書き込まれた後に通知用のスレッドから通知します。
+ * 通知している間に受け付けた変更は次の通知でまとめて渡します。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+class DbChangeFeed {
+
+	/**
+	 * ロガー
+	 */
+	private static final Logger LOGGER = LoggerFactory.getLogger(DbChangeFeed.class);
+
+	// 通知用のスレッドを破棄するまでの待機時間(秒)
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	// 変更を受け取るリスナー
+	private final List<DbChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+	// 通知待ちの変更
+	private List<Entry> pending = new ArrayList<>();
+
+	// 通知用のスレッドが動いているか
+	private boolean delivering = false;
+
+	// 通知用のスレッド(使用していない間は破棄する)
+	private final ThreadPoolExecutor executor;
+
+	// 通知待ちの変更をまとめて通知する処理
+	private final Runnable deliverer = new Runnable() {
+		@Override
+		public void run() {
+			deliver();
+		}
+	};
+
+	DbChangeFeed() {
+		executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "db-change-feed");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * リスナーを登録します
+	 *
+	 * @param listener
+	 *            リスナー
+	 */
+	void addListener(DbChangeListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * リスナーの登録を解除します
+	 *
+	 * @param listener
+	 *            リスナー
+	 */
+	void removeListener(DbChangeListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * リスナーが登録されているか判定します
+	 *
+	 * @return 登録されている場合はtrue
+	 */
+	boolean hasListeners() {
+		return !listeners.isEmpty();
+	}
+
+	/**
+	 * コミットされた変更を受け付けます。
+	 * 受け付けた順に、ディスクへの書き込みが完了した後で通知します。
+	 *
+	 * @param changes
+	 *            コミットされた変更
+	 * @param write
+	 *            ディスクへ書き込まれると完了するFuture
+	 */
+	void publish(List<DbChange> changes, CompletableFuture<Void> write) {
+		Entry entry = new Entry(changes, write);
+		synchronized (this) {
+			pending.add(entry);
+			if (!delivering) {
+				delivering = true;
+				executor.execute(deliverer);
+			}
+		}
+	}
+
+	/**
+	 * 受け付け済みの変更を通知した後、通知用のスレッドを終了します。
+	 * 終了した後は変更を受け付けません。
+	 */
+	void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			// 通知を待たずに終了する
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// 通知待ちの変更が無くなるまでまとめて通知する
+	private void deliver() {
+		while (true) {
+			List<Entry> batch;
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					delivering = false;
+					return;
+				}
+				batch = pending;
+				pending = new ArrayList<>();
+			}
+			List<DbChange> changes = new ArrayList<>();
+			for (Entry entry : batch) {
+				try {
+					entry.write.join();
+				} catch (CompletionException e) {
+					// コミットに失敗した変更は通知しない
+					LOGGER.error(entry.changes.size() + "件の変更はディスクへ書き込めなかった為、通知しません",
+							e.getCause());
+					continue;
+				}
+				changes.addAll(entry.changes);
+			}
+			if (changes.isEmpty()) {
+				continue;
+			}
+			changes = Collections.unmodifiableList(changes);
+			for (DbChangeListener listener : listeners) {
+				try {
+					listener.onChanges(changes);
+				} catch (RuntimeException e) {
+					// 他のリスナーへの通知は続ける
+					LOGGER.error(listener + "への変更の通知に失敗しました", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 通知待ちの変更です
+	 */
+	private static class Entry {
+
+		private final List<DbChange> changes;
+
+		private final CompletableFuture<Void> write;
+
+		Entry(List<DbChange> changes, CompletableFuture<Void> write) {
+			this.changes = changes;
+			this.write = write;
+		}
+	}
+
+}
@@ -0,0 +1,25 @@
+package com.purejadeite.db;
+
+import java.util.List;
+
+/**
+ * コミットされた変更を受け取るインターフェイスです。
+ * {@link Db#addChangeListener(DbChangeListener)}で登録します。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+public interface DbChangeListener {
+
+	/**
+	 * コミットされた変更を受け取ります。
+	 * コミットしたスレッドとは別のスレッドから、コミットされた順に呼び出されます。
+	 * 呼び出し中にコミットされた変更は、次の呼び出しでまとめて渡されます。
+	 * ロールバックした変更とディスクへ書き込めなかった変更は渡されません。
+	 *
+	 * @param changes
+	 *            コミットされた順の変更
+	 */
+	public void onChanges(List<DbChange> changes);
+
+}
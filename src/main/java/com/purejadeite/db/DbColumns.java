@@ -0,0 +1,699 @@
+package com.purejadeite.db;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * レコードをフィールド毎の配列で保持する、行番号->レコードのマップです。
+ * スキーマの「fields」で宣言したフィールドは型毎の配列(文字列は辞書の番号)で保持し、
+ * 宣言していないフィールドと宣言した型に合わない値のみレコード毎のマップで保持します。
+ * レコードは取得する度に配列を参照するビューを作成します。
+ *
+ * <p>
+ * 配列の各位置(スロット)は一度書き込んだ後は変更しません。
+ * レコードを置き換えた場合は新しいスロットへ書き込み、行番号の参照先を切り替える為、
+ * 取得済みのビューは取得した時点の値を返し続けます。
+ * 使われなくなったスロットが増えた場合は新しい配列へ詰め直します。
+ * </p>
+ *
+ * @author mitsuhiroseino
+ *
+ */
+class DbColumns extends AbstractMap<Long, Map<String, Object>> {
+
+	// 配列の初期の長さ
+	private static final int INITIAL_CAPACITY = 16;
+
+	// 詰め直す使われなくなったスロットの数の下限
+	private static final int COMPACT_THRESHOLD = 1024;
+
+	// 値の状態
+	private static final byte ABSENT = 0;
+	private static final byte NULL = 1;
+	private static final byte VALUE = 2;
+	// 整数の列でIntegerとして保持している値
+	private static final byte INTEGER = 3;
+
+	// 配列で保持するフィールド名
+	private final String[] fieldNames;
+
+	// 配列で保持するフィールドの型
+	private final DbFieldType[] fieldTypes;
+
+	// フィールド名->列の位置
+	private final Map<String, Integer> positions;
+
+	// 列の配列
+	private Data data;
+
+	// 列の配列を複製したテーブルと共有しているか
+	private boolean shared = false;
+
+	// 行番号->スロット+1(0は行が無い)
+	private int[] slots = new int[INITIAL_CAPACITY];
+
+	// 行番号の上限(使用した最大の行番号+1)
+	private int rowLimit = 0;
+
+	// 行数
+	private int rowCount = 0;
+
+	// 使われなくなったスロットの数
+	private int deadCount = 0;
+
+	/**
+	 * 配列で保持するフィールドを指定して作成します
+	 *
+	 * @param columnTypes
+	 *            フィールド名->型。{@link DbFieldType#ANY}のフィールドはレコード毎のマップで保持します
+	 */
+	DbColumns(Map<String, DbFieldType> columnTypes) {
+		List<String> names = new ArrayList<>();
+		List<DbFieldType> types = new ArrayList<>();
+		for (Map.Entry<String, DbFieldType> columnType : columnTypes.entrySet()) {
+			if (columnType.getValue() != DbFieldType.ANY) {
+				names.add(columnType.getKey());
+				types.add(columnType.getValue());
+			}
+		}
+		fieldNames = names.toArray(new String[names.size()]);
+		fieldTypes = types.toArray(new DbFieldType[types.size()]);
+		positions = new HashMap<>();
+		for (int i = 0; i < fieldNames.length; i++) {
+			positions.put(fieldNames[i], Integer.valueOf(i));
+		}
+		data = new Data(fieldTypes, INITIAL_CAPACITY);
+	}
+
+	private DbColumns(DbColumns source) {
+		fieldNames = source.fieldNames;
+		fieldTypes = source.fieldTypes;
+		positions = source.positions;
+		data = source.data;
+		shared = true;
+		slots = source.slots.clone();
+		rowLimit = source.rowLimit;
+		rowCount = source.rowCount;
+		deadCount = source.deadCount;
+	}
+
+	/**
+	 * 変更を加える為の複製を作成します。
+	 * 列の配列は次に変更を加えるまで複製元と共有します。
+	 *
+	 * @return 複製
+	 */
+	DbColumns fork() {
+		shared = true;
+		return new DbColumns(this);
+	}
+
+	@Override
+	public int size() {
+		return rowCount;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return 0 <= getSlot(key);
+	}
+
+	@Override
+	public Map<String, Object> get(Object key) {
+		int slot = getSlot(key);
+		return slot < 0 ? null : new Row(data, slot);
+	}
+
+	@Override
+	public Map<String, Object> put(Long key, Map<String, Object> record) {
+		int rowNo = toRowNo(key.longValue());
+		Map<String, Object> old = get(key);
+		if (old != null) {
+			deadCount++;
+		} else {
+			rowCount++;
+		}
+		if (slots.length <= rowNo) {
+			slots = Arrays.copyOf(slots, Math.max(slots.length * 2, rowNo + 1));
+		}
+		slots[rowNo] = write(record) + 1;
+		rowLimit = Math.max(rowLimit, rowNo + 1);
+		compactIfNeeded();
+		return old;
+	}
+
+	@Override
+	public Map<String, Object> remove(Object key) {
+		int slot = getSlot(key);
+		if (slot < 0) {
+			return null;
+		}
+		Map<String, Object> old = new Row(data, slot);
+		slots[(int) ((Long) key).longValue()] = 0;
+		rowCount--;
+		deadCount++;
+		compactIfNeeded();
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		data = new Data(fieldTypes, INITIAL_CAPACITY);
+		shared = false;
+		slots = new int[INITIAL_CAPACITY];
+		rowLimit = 0;
+		rowCount = 0;
+		deadCount = 0;
+	}
+
+	@Override
+	public Set<Map.Entry<Long, Map<String, Object>>> entrySet() {
+		return new AbstractSet<Map.Entry<Long, Map<String, Object>>>() {
+			@Override
+			public Iterator<Map.Entry<Long, Map<String, Object>>> iterator() {
+				return new RowIterator();
+			}
+
+			@Override
+			public int size() {
+				return rowCount;
+			}
+		};
+	}
+
+	// 行番号のスロットを取得する。無い場合は-1
+	private int getSlot(Object key) {
+		if (!(key instanceof Long)) {
+			return -1;
+		}
+		long rowNo = ((Long) key).longValue();
+		if (rowNo < 0 || rowLimit <= rowNo) {
+			return -1;
+		}
+		return slots[(int) rowNo] - 1;
+	}
+
+	// 配列で扱える行番号か確認する
+	private static int toRowNo(long rowNo) {
+		if (rowNo < 0 || Integer.MAX_VALUE <= rowNo) {
+			throw new IllegalArgumentException("行番号が列で保持できる範囲を超えています:" + rowNo);
+		}
+		return (int) rowNo;
+	}
+
+	// レコードを新しいスロットへ書き込む
+	private int write(Map<String, Object> record) {
+		if (shared || data.count == data.capacity) {
+			// 共有している場合は複製してから書き込む
+			data = data.copy(data.count == data.capacity ? data.capacity * 2 : data.capacity);
+			shared = false;
+		}
+		int slot = data.count++;
+		Map<String, Object> extras = null;
+		for (Map.Entry<String, Object> field : record.entrySet()) {
+			Integer position = positions.get(field.getKey());
+			if (position != null && data.columns[position.intValue()].set(slot, field.getValue())) {
+				continue;
+			}
+			if (extras == null) {
+				extras = new HashMap<>();
+			}
+			extras.put(field.getKey(), field.getValue());
+		}
+		data.extras[slot] = extras;
+		data.sizes[slot] = record.size();
+		return slot;
+	}
+
+	// 使われなくなったスロットが多い場合は使用中のスロットのみの配列へ詰め直す
+	private void compactIfNeeded() {
+		if (deadCount < COMPACT_THRESHOLD || deadCount < rowCount) {
+			return;
+		}
+		Data compacted = new Data(fieldTypes, Math.max(rowCount, INITIAL_CAPACITY));
+		for (int rowNo = 0; rowNo < rowLimit; rowNo++) {
+			int slot = slots[rowNo] - 1;
+			if (0 <= slot) {
+				slots[rowNo] = data.copyTo(compacted, slot) + 1;
+			}
+		}
+		// 取得済みのビューは元の配列を参照し続ける
+		data = compacted;
+		shared = false;
+		deadCount = 0;
+	}
+
+	/**
+	 * 行番号順にレコードのビューを返すイテレーターです
+	 */
+	private class RowIterator implements Iterator<Map.Entry<Long, Map<String, Object>>> {
+
+		// 次の行番号
+		private int next = advance(0);
+
+		// 最後に返した行番号
+		private int last = -1;
+
+		@Override
+		public boolean hasNext() {
+			return next < rowLimit;
+		}
+
+		@Override
+		public Map.Entry<Long, Map<String, Object>> next() {
+			if (rowLimit <= next) {
+				throw new NoSuchElementException();
+			}
+			last = next;
+			next = advance(next + 1);
+			return new SimpleImmutableEntry<Long, Map<String, Object>>(Long.valueOf(last),
+					new Row(data, slots[last] - 1));
+		}
+
+		@Override
+		public void remove() {
+			if (last < 0) {
+				throw new IllegalStateException();
+			}
+			DbColumns.this.remove(Long.valueOf(last));
+			last = -1;
+		}
+
+		// 指定の行番号以降で行のある行番号を取得する
+		private int advance(int rowNo) {
+			while (rowNo < rowLimit && slots[rowNo] == 0) {
+				rowNo++;
+			}
+			return rowNo;
+		}
+	}
+
+	/**
+	 * 1つのスロットの値を参照するレコードのビューです。変更はできません
+	 */
+	private final class Row extends AbstractMap<String, Object> {
+
+		// 参照する配列
+		private final Data data;
+
+		// スロット
+		private final int slot;
+
+		Row(Data data, int slot) {
+			this.data = data;
+			this.slot = slot;
+		}
+
+		@Override
+		public Object get(Object key) {
+			Integer position = positions.get(key);
+			if (position != null) {
+				Column column = data.columns[position.intValue()];
+				if (column.has(slot)) {
+					return column.get(slot);
+				}
+			}
+			Map<String, Object> extras = data.extras[slot];
+			return extras == null ? null : extras.get(key);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			Integer position = positions.get(key);
+			if (position != null && data.columns[position.intValue()].has(slot)) {
+				return true;
+			}
+			Map<String, Object> extras = data.extras[slot];
+			return extras != null && extras.containsKey(key);
+		}
+
+		@Override
+		public int size() {
+			return data.sizes[slot];
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			Map<String, Object> fields = new LinkedHashMap<>();
+			for (int i = 0; i < fieldNames.length; i++) {
+				Column column = data.columns[i];
+				if (column.has(slot)) {
+					fields.put(fieldNames[i], column.get(slot));
+				}
+			}
+			Map<String, Object> extras = data.extras[slot];
+			if (extras != null) {
+				fields.putAll(extras);
+			}
+			return Collections.unmodifiableMap(fields).entrySet();
+		}
+	}
+
+	/**
+	 * 列の配列とレコード毎のマップです。
+	 * 書き込み済みのスロットは変更せず、長さが足りない場合は複製して伸ばします
+	 */
+	private static final class Data {
+
+		// 列
+		final Column[] columns;
+
+		// 列で保持しないフィールド
+		final Map<String, Object>[] extras;
+
+		// レコードのフィールド数
+		final int[] sizes;
+
+		// 配列の長さ
+		final int capacity;
+
+		// 使用したスロットの数
+		int count = 0;
+
+		@SuppressWarnings("unchecked")
+		Data(DbFieldType[] fieldTypes, int capacity) {
+			this.columns = new Column[fieldTypes.length];
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = Column.create(fieldTypes[i], capacity);
+			}
+			this.extras = (Map<String, Object>[]) new Map<?, ?>[capacity];
+			this.sizes = new int[capacity];
+			this.capacity = capacity;
+		}
+
+		private Data(Data source, int capacity) {
+			this.columns = new Column[source.columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = source.columns[i].copy(capacity);
+			}
+			this.extras = Arrays.copyOf(source.extras, capacity);
+			this.sizes = Arrays.copyOf(source.sizes, capacity);
+			this.capacity = capacity;
+			this.count = source.count;
+		}
+
+		// 指定の長さへ複製する
+		Data copy(int capacity) {
+			return new Data(this, capacity);
+		}
+
+		// スロットの値を別の配列の次のスロットへ書き込む
+		int copyTo(Data target, int slot) {
+			int targetSlot = target.count++;
+			for (int i = 0; i < columns.length; i++) {
+				columns[i].copyTo(target.columns[i], slot, targetSlot);
+			}
+			target.extras[targetSlot] = extras[slot];
+			target.sizes[targetSlot] = sizes[slot];
+			return targetSlot;
+		}
+	}
+
+	/**
+	 * 1フィールドの値の配列です
+	 */
+	private static abstract class Column {
+
+		// 値の状態
+		final byte[] states;
+
+		Column(byte[] states) {
+			this.states = states;
+		}
+
+		// 型に応じた列を作成する
+		static Column create(DbFieldType fieldType, int capacity) {
+			switch (fieldType) {
+			case LONG:
+				return new LongColumn(new byte[capacity], new long[capacity]);
+			case DOUBLE:
+				return new DoubleColumn(new byte[capacity], new double[capacity]);
+			case BOOLEAN:
+				return new BooleanColumn(new byte[capacity]);
+			default:
+				return new StringColumn(new byte[capacity], new int[capacity], new Dictionary());
+			}
+		}
+
+		// 列で値を保持しているか判定する
+		boolean has(int slot) {
+			return states[slot] != ABSENT;
+		}
+
+		// 値を取得する
+		Object get(int slot) {
+			return states[slot] == NULL ? null : getValue(slot);
+		}
+
+		// 値を書き込む。列で保持できない値の場合はfalse
+		boolean set(int slot, Object value) {
+			if (value == null) {
+				states[slot] = NULL;
+				return true;
+			}
+			return setValue(slot, value);
+		}
+
+		abstract Object getValue(int slot);
+
+		abstract boolean setValue(int slot, Object value);
+
+		// 指定の長さへ複製する
+		abstract Column copy(int capacity);
+
+		// 値を別の列へ書き込む
+		void copyTo(Column target, int slot, int targetSlot) {
+			target.states[targetSlot] = states[slot];
+			if (states[slot] != ABSENT && states[slot] != NULL) {
+				copyValueTo(target, slot, targetSlot);
+			}
+		}
+
+		abstract void copyValueTo(Column target, int slot, int targetSlot);
+	}
+
+	/**
+	 * 整数の列です。Integer・Longのどちらで保持していたかも保持します
+	 */
+	private static final class LongColumn extends Column {
+
+		private final long[] values;
+
+		LongColumn(byte[] states, long[] values) {
+			super(states);
+			this.values = values;
+		}
+
+		@Override
+		Object getValue(int slot) {
+			if (states[slot] == INTEGER) {
+				return Integer.valueOf((int) values[slot]);
+			}
+			return Long.valueOf(values[slot]);
+		}
+
+		@Override
+		boolean setValue(int slot, Object value) {
+			if (value instanceof Integer) {
+				states[slot] = INTEGER;
+			} else if (value instanceof Long) {
+				states[slot] = VALUE;
+			} else {
+				return false;
+			}
+			values[slot] = ((Number) value).longValue();
+			return true;
+		}
+
+		@Override
+		Column copy(int capacity) {
+			return new LongColumn(Arrays.copyOf(states, capacity), Arrays.copyOf(values, capacity));
+		}
+
+		@Override
+		void copyValueTo(Column target, int slot, int targetSlot) {
+			((LongColumn) target).values[targetSlot] = values[slot];
+		}
+	}
+
+	/**
+	 * 小数の列です
+	 */
+	private static final class DoubleColumn extends Column {
+
+		private final double[] values;
+
+		DoubleColumn(byte[] states, double[] values) {
+			super(states);
+			this.values = values;
+		}
+
+		@Override
+		Object getValue(int slot) {
+			return Double.valueOf(values[slot]);
+		}
+
+		@Override
+		boolean setValue(int slot, Object value) {
+			if (!(value instanceof Double)) {
+				return false;
+			}
+			states[slot] = VALUE;
+			values[slot] = ((Double) value).doubleValue();
+			return true;
+		}
+
+		@Override
+		Column copy(int capacity) {
+			return new DoubleColumn(Arrays.copyOf(states, capacity),
+					Arrays.copyOf(values, capacity));
+		}
+
+		@Override
+		void copyValueTo(Column target, int slot, int targetSlot) {
+			((DoubleColumn) target).values[targetSlot] = values[slot];
+		}
+	}
+
+	/**
+	 * 真偽値の列です。値は状態と共に保持します
+	 */
+	private static final class BooleanColumn extends Column {
+
+		// 真偽値の状態
+		private static final byte TRUE = VALUE;
+		private static final byte FALSE = INTEGER;
+
+		BooleanColumn(byte[] states) {
+			super(states);
+		}
+
+		@Override
+		Object getValue(int slot) {
+			return Boolean.valueOf(states[slot] == TRUE);
+		}
+
+		@Override
+		boolean setValue(int slot, Object value) {
+			if (!(value instanceof Boolean)) {
+				return false;
+			}
+			states[slot] = ((Boolean) value).booleanValue() ? TRUE : FALSE;
+			return true;
+		}
+
+		@Override
+		Column copy(int capacity) {
+			return new BooleanColumn(Arrays.copyOf(states, capacity));
+		}
+
+		@Override
+		void copyValueTo(Column target, int slot, int targetSlot) {
+			// 値は状態として複製済み
+		}
+	}
+
+	/**
+	 * 文字列の列です。値は辞書の番号で保持します
+	 */
+	private static final class StringColumn extends Column {
+
+		private final int[] codes;
+
+		private final Dictionary dictionary;
+
+		StringColumn(byte[] states, int[] codes, Dictionary dictionary) {
+			super(states);
+			this.codes = codes;
+			this.dictionary = dictionary;
+		}
+
+		@Override
+		Object getValue(int slot) {
+			return dictionary.get(codes[slot]);
+		}
+
+		@Override
+		boolean setValue(int slot, Object value) {
+			if (!(value instanceof String)) {
+				return false;
+			}
+			states[slot] = VALUE;
+			codes[slot] = dictionary.encode((String) value);
+			return true;
+		}
+
+		@Override
+		Column copy(int capacity) {
+			// 辞書も複製し、複製元の配列を参照するビューや複製したテーブルと分ける
+			return new StringColumn(Arrays.copyOf(states, capacity),
+					Arrays.copyOf(codes, capacity), dictionary.copy());
+		}
+
+		@Override
+		void copyValueTo(Column target, int slot, int targetSlot) {
+			StringColumn column = (StringColumn) target;
+			column.codes[targetSlot] = column.dictionary.encode(dictionary.get(codes[slot]));
+		}
+	}
+
+	/**
+	 * 文字列->番号の辞書です。番号は追加した順に振り、変更しません
+	 */
+	private static final class Dictionary {
+
+		// 番号->文字列(伸ばす場合は置き換える為、ビューから参照できるようvolatileとする)
+		private volatile String[] values;
+
+		// 文字列->番号
+		private final Map<String, Integer> codes;
+
+		private int size;
+
+		Dictionary() {
+			this.values = new String[INITIAL_CAPACITY];
+			this.codes = new HashMap<>();
+			this.size = 0;
+		}
+
+		private Dictionary(Dictionary source) {
+			this.values = Arrays.copyOf(source.values, source.values.length);
+			this.codes = new HashMap<>(source.codes);
+			this.size = source.size;
+		}
+
+		Dictionary copy() {
+			return new Dictionary(this);
+		}
+
+		String get(int code) {
+			return values[code];
+		}
+
+		int encode(String value) {
+			Integer code = codes.get(value);
+			if (code != null) {
+				return code.intValue();
+			}
+			String[] current = values;
+			if (size == current.length) {
+				current = Arrays.copyOf(current, size * 2);
+			}
+			current[size] = value;
+			values = current;
+			codes.put(value, Integer.valueOf(size));
+			return size++;
+		}
+	}
+
+}
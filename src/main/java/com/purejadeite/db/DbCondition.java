@@ -0,0 +1,333 @@
+package com.purejadeite.db;
+
+import java.util.Map;
+
+import org.apache.xerces.impl.xpath.regex.RegularExpression;
+
+import com.purejadeite.util.Evaluator;
+import com.purejadeite.util.SimpleComparison;
+
+/**
+ * {@link Db#select(String, DbCondition...)}で使用する1フィールドに対する検索条件です。
+ * 条件の値の変換や正規表現のコンパイルは作成時に一度だけ行います。
+ * <ul>
+ * <li>==, != はパラメータによる検索と同じ規則で比較します</li>
+ * <li>&gt;, &gt;=, &lt;, &lt;= と範囲はソートインデックスと同じ順序(数値として扱える値は数値)で比較します</li>
+ * <li>パターンは{@link SimpleComparison}の形式(前方一致「abc*」、後方一致「*abc」、部分一致「*abc*」、正規表現「/abc/」)です</li>
+ * </ul>
+ * 値がnullのレコードは大小比較、範囲、パターンの条件に一致しません。
+ * フィールドにソートインデックスがある場合、大小比較、範囲、前方一致はインデックスで絞り込みます。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+public class DbCondition {
+
+	// 大小比較で比較結果と比べる値
+	private static final Integer ZERO = Integer.valueOf(0);
+
+	// 条件のフィールド名
+	private final String fieldName;
+
+	// 比較演算子。パターン、範囲の場合はnull
+	private final Evaluator evaluator;
+
+	// 比較する値
+	private final Object value;
+
+	// 比較する値のソートインデックスのキー
+	private final Object key;
+
+	// 範囲の下限のキー
+	private final Object fromKey;
+
+	// 範囲の上限のキー
+	private final Object toKey;
+
+	// パターンの種類
+	private final SimpleComparison comparison;
+
+	// パターンから記号を除いた文字列
+	private final String source;
+
+	// コンパイル済みの正規表現
+	private final RegularExpression regex;
+
+	private DbCondition(String fieldName, Evaluator evaluator, Object value,
+			Object from, Object to, SimpleComparison comparison, String pattern) {
+		this.fieldName = fieldName;
+		this.evaluator = evaluator;
+		this.value = value;
+		this.key = DbIndex.toSortKey(value);
+		this.fromKey = DbIndex.toSortKey(from);
+		this.toKey = DbIndex.toSortKey(to);
+		this.comparison = comparison;
+		this.source = comparison == null ? null : comparison.getSource(pattern);
+		this.regex = comparison == SimpleComparison.REGEX ? new RegularExpression(source) : null;
+	}
+
+	/**
+	 * 比較演算子による条件を作成します
+	 *
+	 * @param fieldName
+	 *            フィールド名
+	 * @param evaluator
+	 *            比較演算子
+	 * @param value
+	 *            比較する値
+	 * @return 条件
+	 */
+	public static DbCondition of(String fieldName, Evaluator evaluator, Object value) {
+		return new DbCondition(fieldName, evaluator, value, null, null, null, null);
+	}
+
+	/**
+	 * 比較演算子による条件を作成します
+	 *
+	 * @param fieldName
+	 *            フィールド名
+	 * @param operator
+	 *            比較演算子(==, !=, &gt;, &gt;=, &lt;, &lt;=)
+	 * @param value
+	 *            比較する値
+	 * @return 条件
+	 */
+	public static DbCondition of(String fieldName, String operator, Object value) {
+		return of(fieldName, Evaluator.getEvaluator(operator), value);
+	}
+
+	/**
+	 * 範囲の条件を作成します
+	 *
+	 * @param fieldName
+	 *            フィールド名
+	 * @param from
+	 *            下限(この値を含む)。nullの場合は下限無し
+	 * @param to
+	 *            上限(この値を含む)。nullの場合は上限無し
+	 * @return 条件
+	 */
+	public static DbCondition between(String fieldName, Object from, Object to) {
+		return new DbCondition(fieldName, null, null, from, to, null, null);
+	}
+
+	/**
+	 * パターンによる条件を作成します
+	 *
+	 * @param fieldName
+	 *            フィールド名
+	 * @param pattern
+	 *            {@link SimpleComparison}の形式のパターン
+	 * @return 条件
+	 */
+	public static DbCondition match(String fieldName, String pattern) {
+		SimpleComparison comparison = pattern == null ? null : SimpleComparison.get(pattern);
+		if (comparison == null) {
+			throw new IllegalArgumentException("「" + pattern + "」は正しいパターンではありません");
+		}
+		return new DbCondition(fieldName, null, null, null, null, comparison, pattern);
+	}
+
+	/**
+	 * 条件のフィールド名を取得します
+	 *
+	 * @return フィールド名
+	 */
+	public String getFieldName() {
+		return fieldName;
+	}
+
+	/**
+	 * 等価の条件か判定します
+	 *
+	 * @return ==の場合はtrue
+	 */
+	boolean isEqualTo() {
+		return evaluator == Evaluator.EQUAL_TO;
+	}
+
+	/**
+	 * 等価・不等価の条件で比較する値を取得します
+	 *
+	 * @return 比較する値
+	 */
+	Object getValue() {
+		return value;
+	}
+
+	/**
+	 * インデックスで絞り込めるか判定します
+	 *
+	 * @param index
+	 *            条件のフィールドのインデックス
+	 * @param typed
+	 *            インデックスが型付きで比較する場合はtrue
+	 * @return 絞り込める場合はtrue
+	 */
+	boolean isIndexable(DbIndex index, boolean typed) {
+		return index != null && (isHashLookup(index, typed) || getRange(index) != null);
+	}
+
+	/**
+	 * インデックスから候補となるレコードの行番号を昇順で取得します
+	 *
+	 * @param index
+	 *            条件のフィールドのインデックス
+	 * @param typed
+	 *            インデックスが型付きで比較する場合はtrue
+	 * @return 行番号。インデックスで絞り込めない場合はnull
+	 */
+	long[] getCandidates(DbIndex index, boolean typed) {
+		if (index == null) {
+			return null;
+		}
+		if (isHashLookup(index, typed)) {
+			return index.get(source);
+		}
+		Object[] range = getRange(index);
+		if (range == null) {
+			return null;
+		}
+		return index.getRange(range[0], range[1] == Boolean.TRUE, range[2], range[3] == Boolean.TRUE);
+	}
+
+	/**
+	 * インデックスから候補となるレコードの件数を取得します
+	 *
+	 * @param index
+	 *            条件のフィールドのインデックス
+	 * @param typed
+	 *            インデックスが型付きで比較する場合はtrue
+	 * @return 件数。インデックスで絞り込めない場合は-1
+	 */
+	int countCandidates(DbIndex index, boolean typed) {
+		if (index == null) {
+			return -1;
+		}
+		if (isHashLookup(index, typed)) {
+			return index.count(source);
+		}
+		Object[] range = getRange(index);
+		if (range == null) {
+			return -1;
+		}
+		return index.countRange(range[0], range[1] == Boolean.TRUE, range[2], range[3] == Boolean.TRUE);
+	}
+
+	// 完全一致のパターンをハッシュインデックスで引き当てるか判定する
+	private boolean isHashLookup(DbIndex index, boolean typed) {
+		// 型付きのキーは文字列表現が同じでも異なる場合がある
+		return comparison == SimpleComparison.EQUALS && !index.isSorted() && !typed;
+	}
+
+	// ソートインデックスで絞り込む範囲({下限, 下限を含むか, 上限, 上限を含むか})を取得する
+	// 絞り込めない場合はnull
+	private Object[] getRange(DbIndex index) {
+		if (!index.isSorted()) {
+			return null;
+		}
+		if (evaluator != null) {
+			if (value == null) {
+				return null;
+			}
+			switch (evaluator) {
+			case GREATER_THAN:
+				return new Object[] { value, Boolean.FALSE, null, Boolean.TRUE };
+			case GREATER_THAN_OR_EQUAL_TO:
+				return new Object[] { value, Boolean.TRUE, null, Boolean.TRUE };
+			case LESS_THAN:
+				return new Object[] { null, Boolean.TRUE, value, Boolean.FALSE };
+			case LESS_THAN_OR_EQUAL_TO:
+				return new Object[] { null, Boolean.TRUE, value, Boolean.TRUE };
+			default:
+				return null;
+			}
+		}
+		if (comparison == null) {
+			return new Object[] { fromKey, Boolean.TRUE, toKey, Boolean.TRUE };
+		}
+		if (comparison == SimpleComparison.EQUALS) {
+			return new Object[] { source, Boolean.TRUE, source, Boolean.TRUE };
+		}
+		if (comparison == SimpleComparison.START_WITH) {
+			// 数値として扱える値は文字列と別の順序で並ぶ為、数値になり得ない前方一致のみ
+			char first = source.charAt(0);
+			char last = source.charAt(source.length() - 1);
+			if (Character.isDigit(first) || first == '-' || first == '+' || first == '.'
+					|| last == Character.MAX_VALUE) {
+				return null;
+			}
+			String to = source.substring(0, source.length() - 1) + (char) (last + 1);
+			return new Object[] { source, Boolean.TRUE, to, Boolean.FALSE };
+		}
+		return null;
+	}
+
+	/**
+	 * レコードが条件に合うか判定します
+	 *
+	 * @param record
+	 *            レコード
+	 * @param expected
+	 *            {@link DbMatcher}と同じ規則で変換した比較する値(==, !=の場合のみ)
+	 * @param fieldType
+	 *            フィールドの型。文字列で比較する場合はnull
+	 * @return 条件に合う場合はtrue
+	 */
+	boolean matches(Map<String, Object> record, Object expected, DbFieldType fieldType) {
+		Object recordValue = record.get(fieldName);
+		if (evaluator == Evaluator.EQUAL_TO || evaluator == Evaluator.NOT_EQUAL_TO) {
+			boolean equal;
+			if (fieldType != null) {
+				equal = fieldType.equals(expected, recordValue);
+			} else if (expected == null || recordValue == null) {
+				equal = expected == recordValue;
+			} else {
+				equal = expected.equals(recordValue.toString());
+			}
+			return evaluator == Evaluator.EQUAL_TO ? equal : !equal;
+		}
+		if (recordValue == null) {
+			return comparison == SimpleComparison.ANY;
+		}
+		if (evaluator != null) {
+			if (key == null) {
+				return false;
+			}
+			int compared = DbIndex.compareKeys(DbIndex.toSortKey(recordValue), key);
+			return evaluator.evaluate(Integer.valueOf(Integer.signum(compared)), ZERO);
+		}
+		if (comparison == null) {
+			Object recordKey = DbIndex.toSortKey(recordValue);
+			return (fromKey == null || 0 <= DbIndex.compareKeys(recordKey, fromKey))
+					&& (toKey == null || DbIndex.compareKeys(recordKey, toKey) <= 0);
+		}
+		String str = recordValue.toString();
+		switch (comparison) {
+		case EQUALS:
+			return source.equals(str);
+		case START_WITH:
+			return str.startsWith(source);
+		case END_WITH:
+			return str.endsWith(source);
+		case LIKE:
+			return str.contains(source);
+		case REGEX:
+			return regex.matches(str);
+		default:
+			return true;
+		}
+	}
+
+	@Override
+	public String toString() {
+		if (evaluator != null) {
+			return fieldName + evaluator.getOperator() + value;
+		} else if (comparison == null) {
+			return fieldName + "[" + fromKey + "," + toKey + "]";
+		} else {
+			return fieldName + " " + comparison + " " + source;
+		}
+	}
+
+}
@@ -0,0 +1,212 @@
+package com.purejadeite.db;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * スキーマの「fields」で宣言するフィールドの型です。
+ * 型付きの比較を行う場合に、条件の値とレコードの値をこの型へ揃えて比較します。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+enum DbFieldType {
+
+	/**
+	 * 文字列
+	 */
+	STRING {
+		@Override
+		Object normalize(Object value) {
+			if (value == null || value instanceof String) {
+				return value;
+			}
+			return value.toString();
+		}
+	},
+
+	/**
+	 * 整数
+	 */
+	LONG {
+		@Override
+		Object normalize(Object value) {
+			if (value instanceof String) {
+				Number number = parse((String) value);
+				return number == null ? value : number;
+			}
+			return value;
+		}
+	},
+
+	/**
+	 * 小数
+	 */
+	DOUBLE {
+		@Override
+		Object normalize(Object value) {
+			if (value instanceof String) {
+				Number number = parse((String) value);
+				return number == null ? value : Double.valueOf(number.doubleValue());
+			}
+			if (value instanceof Number && !(value instanceof Double)) {
+				return Double.valueOf(((Number) value).doubleValue());
+			}
+			return value;
+		}
+	},
+
+	/**
+	 * 真偽値
+	 */
+	BOOLEAN {
+		@Override
+		Object normalize(Object value) {
+			if ("true".equals(value)) {
+				return Boolean.TRUE;
+			} else if ("false".equals(value)) {
+				return Boolean.FALSE;
+			}
+			return value;
+		}
+	},
+
+	/**
+	 * 宣言されていないフィールド。値の型のまま比較します
+	 */
+	ANY {
+		@Override
+		Object normalize(Object value) {
+			return value;
+		}
+	};
+
+	/**
+	 * 値をこの型へ変換します。変換できない値はそのまま返します。
+	 *
+	 * @param value
+	 *            値
+	 * @return 変換した値
+	 */
+	abstract Object normalize(Object value);
+
+	/**
+	 * 名称から型を取得します。該当する型が無い場合は{@link #ANY}です。
+	 *
+	 * @param name
+	 *            名称(string, long, int, integer, double, number, boolean)
+	 * @return 型
+	 */
+	static DbFieldType of(String name) {
+		if (name == null) {
+			return ANY;
+		}
+		switch (name.toLowerCase()) {
+		case "string":
+			return STRING;
+		case "long":
+		case "int":
+		case "integer":
+			return LONG;
+		case "double":
+		case "float":
+		case "number":
+			return DOUBLE;
+		case "boolean":
+			return BOOLEAN;
+		default:
+			return ANY;
+		}
+	}
+
+	/**
+	 * 型付きで値が等しいか判定します。
+	 * 数値同士は数値として、それ以外は同じ型で等しい場合のみ等しいとします。
+	 *
+	 * @param expected
+	 *            {@link #normalize(Object)}済みの条件の値
+	 * @param value
+	 *            レコードの値
+	 * @return 等しい場合はtrue
+	 */
+	boolean equals(Object expected, Object value) {
+		if (expected == null || value == null) {
+			return expected == value;
+		}
+		if (expected instanceof Number && value instanceof Number) {
+			return numberEquals((Number) expected, (Number) value);
+		}
+		if (expected instanceof Number || expected instanceof Boolean) {
+			if (this == ANY || !(value instanceof String)) {
+				return expected.equals(value);
+			}
+			// 型を宣言したフィールドに文字列で保存されている値
+			Object normalized = normalize(value);
+			if (expected instanceof Number && normalized instanceof Number) {
+				return numberEquals((Number) expected, (Number) normalized);
+			}
+			return expected.equals(normalized);
+		}
+		if (expected instanceof String && this == STRING && !(value instanceof String)) {
+			return expected.equals(value.toString());
+		}
+		return expected.equals(value);
+	}
+
+	/**
+	 * インデックスのキーへ変換します。
+	 * {@link #equals(Object, Object)}で等しい値は同じキーになります。
+	 *
+	 * @param value
+	 *            値
+	 * @return キー
+	 */
+	Object toKey(Object value) {
+		Object normalized = normalize(value);
+		if (normalized instanceof Number) {
+			Number number = (Number) normalized;
+			if (isIntegral(number)) {
+				return Long.valueOf(number.longValue());
+			}
+			double d = number.doubleValue();
+			if (d == Math.rint(d) && Long.MIN_VALUE <= d && d <= Long.MAX_VALUE) {
+				return Long.valueOf((long) d);
+			}
+			return Double.valueOf(d);
+		}
+		return normalized;
+	}
+
+	// 数値が等しいか判定する
+	private static boolean numberEquals(Number expected, Number value) {
+		if (isIntegral(expected) && isIntegral(value)) {
+			return expected.longValue() == value.longValue();
+		}
+		if (expected instanceof BigDecimal || value instanceof BigDecimal
+				|| expected instanceof BigInteger || value instanceof BigInteger) {
+			return new BigDecimal(expected.toString())
+					.compareTo(new BigDecimal(value.toString())) == 0;
+		}
+		return expected.doubleValue() == value.doubleValue();
+	}
+
+	// 整数型か判定する
+	private static boolean isIntegral(Number number) {
+		return number instanceof Integer || number instanceof Long
+				|| number instanceof Short || number instanceof Byte;
+	}
+
+	// 文字列を数値に変換する。変換できない場合はnull
+	private static Number parse(String value) {
+		try {
+			if (value.indexOf('.') < 0 && value.indexOf('e') < 0
+					&& value.indexOf('E') < 0) {
+				return Long.valueOf(value.trim());
+			}
+			return Double.valueOf(value.trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+}
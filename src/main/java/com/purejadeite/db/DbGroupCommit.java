@@ -0,0 +1,185 @@
+package com.purejadeite.db;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * コミットされた変更をまとめてログファイルへ書き込むクラスです。
+ * 書き込み用のスレッドが書き込んでいる間に届いた変更は次の書き込みでまとめて追記し、
+ * ログファイル毎に1回だけディスクへの書き込みを待ちます。
+ * 各変更の完了はディスクへ書き込まれた後に、受け付けた順に通知します。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+class DbGroupCommit {
+
+	/**
+	 * ロガー
+	 */
+	private static final Logger LOGGER = LoggerFactory.getLogger(DbGroupCommit.class);
+
+	// 書き込み用のスレッドを破棄するまでの待機時間(秒)
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	// 書き込み待ちの変更
+	private List<Entry> pending = new ArrayList<>();
+
+	// 書き込み用のスレッドが動いているか
+	private boolean writing = false;
+
+	// 最後に受け付けた変更の完了
+	private CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+
+	// 書き込み用のスレッド(使用していない間は破棄する)
+	private final ThreadPoolExecutor executor;
+
+	// 書き込み待ちの変更をまとめて書き込む処理
+	private final Runnable writer = new Runnable() {
+		@Override
+		public void run() {
+			write();
+		}
+	};
+
+	DbGroupCommit() {
+		executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "db-group-commit");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * ログファイルへ追記する内容を受け付けます。
+	 * 同じファイルへの追記は受け付けた順に書き込みます。
+	 *
+	 * @param file
+	 *            ログファイル
+	 * @param data
+	 *            追記する内容
+	 * @return ディスクへ書き込まれると完了するFuture
+	 */
+	CompletableFuture<Void> append(File file, byte[] data) {
+		Entry entry = new Entry(file, data);
+		synchronized (this) {
+			pending.add(entry);
+			last = entry.future;
+			if (!writing) {
+				writing = true;
+				executor.execute(writer);
+			}
+		}
+		return entry.future;
+	}
+
+	/**
+	 * 受け付け済みの変更が全てディスクへ書き込まれるまで待ちます。
+	 * 変更は受け付けた順に完了する為、最後に受け付けた変更の完了を待ちます。
+	 * 書き込みに失敗した変更の例外は追記を依頼した側へ通知済みの為、ここでは無視します。
+	 */
+	void flush() {
+		CompletableFuture<Void> future;
+		synchronized (this) {
+			future = last;
+		}
+		try {
+			future.join();
+		} catch (CompletionException e) {
+			// 追記を依頼した側で処理する
+		}
+	}
+
+	/**
+	 * 受け付け済みの変更を書き込んだ後、書き込み用のスレッドを終了します。
+	 * 終了した後は変更を受け付けません。
+	 */
+	void close() {
+		flush();
+		executor.shutdown();
+	}
+
+	// 書き込み待ちの変更が無くなるまでまとめて書き込む
+	private void write() {
+		while (true) {
+			List<Entry> batch;
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					writing = false;
+					return;
+				}
+				batch = pending;
+				pending = new ArrayList<>();
+			}
+			// ファイル毎にまとめる
+			Map<File, List<Entry>> files = new LinkedHashMap<>();
+			Map<File, RuntimeException> errors = new HashMap<>();
+			for (Entry entry : batch) {
+				List<Entry> entries = files.get(entry.file);
+				if (entries == null) {
+					entries = new ArrayList<>();
+					files.put(entry.file, entries);
+				}
+				entries.add(entry);
+			}
+			for (Map.Entry<File, List<Entry>> file : files.entrySet()) {
+				List<Entry> entries = file.getValue();
+				List<byte[]> data = new ArrayList<>(entries.size());
+				for (Entry entry : entries) {
+					data.add(entry.data);
+				}
+				try {
+					DbWal.write(file.getKey(), data);
+				} catch (RuntimeException e) {
+					errors.put(file.getKey(), e);
+				}
+			}
+			// 後から受け付けた変更が先に完了しないよう、全てのファイルを書き込んでから受け付けた順に完了させる
+			for (Entry entry : batch) {
+				RuntimeException error = errors.get(entry.file);
+				if (error == null) {
+					entry.future.complete(null);
+				} else {
+					entry.future.completeExceptionally(error);
+				}
+			}
+			LOGGER.debug(batch.size() + "件のコミットを" + files.size() + "ファイルへまとめて書き込みました");
+		}
+	}
+
+	/**
+	 * 書き込み待ちの変更です
+	 */
+	private static class Entry {
+
+		private final File file;
+
+		private final byte[] data;
+
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		Entry(File file, byte[] data) {
+			this.file = file;
+			this.data = data;
+		}
+	}
+
+}
@@ -0,0 +1,226 @@
+package com.purejadeite.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.purejadeite.FileIoException;
+
+/**
+ * テーブル毎にIDを発行するクラスです。
+ * 発行済みの番号は「テーブル名.meta」へ保存し、次回の起動時にはレコードを走査せずに引き継ぎます。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+class DbIdAllocator {
+
+	/**
+	 * 発行済みの番号を保存するファイルの拡張子
+	 */
+	static final String EXTENSION = "meta";
+
+	/**
+	 * ロガー
+	 */
+	private static final Logger LOGGER = LoggerFactory.getLogger(DbIdAllocator.class);
+
+	// 保存するファイルの変換
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	// IDの形式
+	private final String format;
+
+	// スレッド毎のIDの変換(DecimalFormatはスレッドセーフではない)
+	private final ThreadLocal<DecimalFormat> formatter = new ThreadLocal<DecimalFormat>() {
+		@Override
+		protected DecimalFormat initialValue() {
+			return new DecimalFormat(format);
+		}
+	};
+
+	// 発行済みの番号
+	private final AtomicLong issuedNo = new AtomicLong();
+
+	// ファイルへ保存済みの番号
+	private long persistedNo = 0;
+
+	// 発行済みの番号をレコードから求める必要があるか
+	private volatile boolean scanRequired;
+
+	/**
+	 * 保存済みの番号を読み込んでIDの発行を準備します
+	 *
+	 * @param format
+	 *            IDの形式
+	 * @param metaFile
+	 *            発行済みの番号を保存するファイル
+	 */
+	DbIdAllocator(String format, File metaFile) {
+		this.format = format;
+		Long no = read(metaFile);
+		if (no == null) {
+			scanRequired = true;
+		} else {
+			issuedNo.set(no.longValue());
+			persistedNo = no.longValue();
+			scanRequired = false;
+		}
+	}
+
+	/**
+	 * 発行済みの番号をレコードから求める必要があるか判定します
+	 *
+	 * @return 保存された番号が無い場合はtrue
+	 */
+	boolean isScanRequired() {
+		return scanRequired;
+	}
+
+	/**
+	 * レコードのIDから発行済みの番号を求めます
+	 *
+	 * @param records
+	 *            レコード
+	 */
+	void scan(Collection<Map<String, Object>> records) {
+		long max = 0;
+		for (Map<String, Object> record : records) {
+			Object id = record.get("id");
+			if (id != null) {
+				max = Math.max(max, parse(id.toString()));
+			}
+		}
+		raise(max);
+		scanRequired = false;
+	}
+
+	/**
+	 * 次のIDを発行します
+	 *
+	 * @return ID
+	 */
+	String next() {
+		return format(issuedNo.incrementAndGet());
+	}
+
+	/**
+	 * 連続したIDの番号をまとめて発行します
+	 *
+	 * @param count
+	 *            件数
+	 * @return 最初の番号
+	 */
+	long reserve(int count) {
+		return issuedNo.getAndAdd(count) + 1;
+	}
+
+	/**
+	 * 番号をIDの形式へ変換します
+	 *
+	 * @param no
+	 *            番号
+	 * @return ID
+	 */
+	String format(long no) {
+		return formatter.get().format(no);
+	}
+
+	/**
+	 * IDから番号を取得します
+	 *
+	 * @param id
+	 *            ID
+	 * @return 番号。変換できない場合は-1
+	 */
+	long parse(String id) {
+		try {
+			return formatter.get().parse(id).longValue();
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * 発行済みのIDか判定します
+	 *
+	 * @param id
+	 *            ID
+	 * @return 発行済みの場合はtrue
+	 */
+	boolean isIssued(String id) {
+		long no = parse(id);
+		return 0 <= no && no <= issuedNo.get();
+	}
+
+	/**
+	 * 発行済みの番号を取得します
+	 *
+	 * @return 番号
+	 */
+	long getIssuedNo() {
+		return issuedNo.get();
+	}
+
+	/**
+	 * 発行済みの番号が指定の番号より小さい場合は引き上げます
+	 *
+	 * @param no
+	 *            番号
+	 */
+	void raise(long no) {
+		long current = issuedNo.get();
+		while (current < no && !issuedNo.compareAndSet(current, no)) {
+			current = issuedNo.get();
+		}
+	}
+
+	/**
+	 * 前回の保存から番号を発行していた場合は、発行済みの番号をファイルへ保存します
+	 *
+	 * @param metaFile
+	 *            保存するファイル
+	 */
+	synchronized void persist(File metaFile) {
+		long no = issuedNo.get();
+		if (no <= persistedNo && metaFile.exists()) {
+			return;
+		}
+		Map<String, Object> meta = new HashMap<>();
+		meta.put("id", Long.valueOf(no));
+		try {
+			MAPPER.writeValue(metaFile, meta);
+		} catch (IOException e) {
+			LOGGER.error(metaFile.getAbsolutePath() + "を保存できませんでした");
+			throw new FileIoException(e);
+		}
+		persistedNo = no;
+	}
+
+	// 保存済みの番号を読み込む。ファイルが無い場合はnull
+	private static Long read(File metaFile) {
+		if (!metaFile.exists()) {
+			return null;
+		}
+		try {
+			Object id = MAPPER.readValue(metaFile, Map.class).get("id");
+			if (id instanceof Number) {
+				return Long.valueOf(((Number) id).longValue());
+			}
+		} catch (IOException e) {
+			// 壊れている場合はレコードから求める
+			LOGGER.warn(metaFile.getAbsolutePath() + "を読み込めませんでした");
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,515 @@
+package com.purejadeite.db;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * テーブルの1フィールドに対するインデックスです。
+ * フィールドの値から、その値を持つレコードの行番号を引き当てます。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+class DbIndex {
+
+	/**
+	 * 等価検索用のインデックス
+	 */
+	static final String HASH = "hash";
+
+	/**
+	 * 範囲検索用のインデックス
+	 */
+	static final String SORTED = "sorted";
+
+	// 空の行番号
+	private static final long[] EMPTY = new long[0];
+
+	// ソートインデックスのキーの比較(数値 < 文字列の順)
+	private static final Comparator<Object> KEY_COMPARATOR = new Comparator<Object>() {
+		@Override
+		public int compare(Object o1, Object o2) {
+			int rank1 = rank(o1);
+			int rank2 = rank(o2);
+			if (rank1 != rank2) {
+				return rank1 - rank2;
+			}
+			if (rank1 == 0) {
+				return 0;
+			} else if (rank1 == 1) {
+				return ((BigDecimal) o1).compareTo((BigDecimal) o2);
+			} else {
+				return ((String) o1).compareTo((String) o2);
+			}
+		}
+
+		private int rank(Object key) {
+			if (key == null) {
+				return 0;
+			} else if (key instanceof BigDecimal) {
+				return 1;
+			} else {
+				return 2;
+			}
+		}
+	};
+
+	// 対象のフィールド名
+	private final String fieldName;
+
+	// インデックスの種類
+	private final String type;
+
+	// 等価検索のキーに使用するフィールドの型。nullの場合は文字列で比較する
+	private final DbFieldType fieldType;
+
+	// 値->行番号
+	private final Map<Object, RowNos> postings;
+
+	DbIndex(String fieldName) {
+		this(fieldName, HASH);
+	}
+
+	DbIndex(String fieldName, String type) {
+		this(fieldName, type, null);
+	}
+
+	DbIndex(String fieldName, String type, DbFieldType fieldType) {
+		this.fieldName = fieldName;
+		this.fieldType = fieldType;
+		if (SORTED.equals(type)) {
+			this.type = SORTED;
+			this.postings = new TreeMap<>(KEY_COMPARATOR);
+		} else {
+			this.type = HASH;
+			this.postings = new HashMap<>();
+		}
+	}
+
+	/**
+	 * 同じ内容のインデックスを複製します
+	 *
+	 * @return 複製したインデックス
+	 */
+	DbIndex copy() {
+		DbIndex copy = new DbIndex(fieldName, type, fieldType);
+		for (Map.Entry<Object, RowNos> posting : postings.entrySet()) {
+			copy.postings.put(posting.getKey(), posting.getValue().copy());
+		}
+		return copy;
+	}
+
+	/**
+	 * インデックス対象のフィールド名を取得します
+	 *
+	 * @return フィールド名
+	 */
+	String getFieldName() {
+		return fieldName;
+	}
+
+	/**
+	 * インデックスの種類を取得します
+	 *
+	 * @return hashまたはsorted
+	 */
+	String getType() {
+		return type;
+	}
+
+	/**
+	 * 等価検索のキーに使用するフィールドの型を取得します
+	 *
+	 * @return 型。文字列で比較する場合はnull
+	 */
+	DbFieldType getFieldType() {
+		return fieldType;
+	}
+
+	/**
+	 * 範囲検索ができるか判定します
+	 *
+	 * @return 範囲検索ができる場合はtrue
+	 */
+	boolean isSorted() {
+		return SORTED.equals(type);
+	}
+
+	/**
+	 * レコードをインデックスへ登録します
+	 *
+	 * @param rowNo
+	 *            行番号
+	 * @param record
+	 *            レコード
+	 */
+	void add(long rowNo, Map<String, Object> record) {
+		Object key = toKey(record.get(fieldName));
+		RowNos rowNos = postings.get(key);
+		if (rowNos == null) {
+			rowNos = new RowNos();
+			postings.put(key, rowNos);
+		}
+		rowNos.add(rowNo);
+	}
+
+	/**
+	 * レコードをインデックスから削除します
+	 *
+	 * @param rowNo
+	 *            行番号
+	 * @param record
+	 *            レコード
+	 */
+	void remove(long rowNo, Map<String, Object> record) {
+		Object key = toKey(record.get(fieldName));
+		RowNos rowNos = postings.get(key);
+		if (rowNos != null) {
+			rowNos.remove(rowNo);
+			if (rowNos.size == 0) {
+				postings.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * 値に一致するレコードの行番号を昇順で取得します
+	 *
+	 * @param value
+	 *            値
+	 * @return 行番号
+	 */
+	long[] get(Object value) {
+		RowNos rowNos = postings.get(toKey(value));
+		if (rowNos == null) {
+			return EMPTY;
+		}
+		return rowNos.toArray();
+	}
+
+	/**
+	 * 値に一致するレコードに行番号が含まれるか判定します
+	 *
+	 * @param value
+	 *            値
+	 * @param rowNo
+	 *            行番号
+	 * @return 含まれる場合はtrue
+	 */
+	boolean contains(Object value, long rowNo) {
+		RowNos rowNos = postings.get(toKey(value));
+		return rowNos != null && rowNos.contains(rowNo);
+	}
+
+	/**
+	 * 範囲に含まれるレコードの行番号を昇順で取得します。
+	 * ソートインデックスでない場合はnullを返します。
+	 *
+	 * @param from
+	 *            下限(この値を含む)。nullの場合は下限無し
+	 * @param to
+	 *            上限(この値を含む)。nullの場合は上限無し
+	 * @return 行番号
+	 */
+	long[] getRange(Object from, Object to) {
+		return getRange(from, true, to, true);
+	}
+
+	/**
+	 * 範囲に含まれるレコードの行番号を昇順で取得します。
+	 * ソートインデックスでない場合はnullを返します。
+	 *
+	 * @param from
+	 *            下限。nullの場合は下限無し
+	 * @param fromInclusive
+	 *            下限の値を含む場合はtrue
+	 * @param to
+	 *            上限。nullの場合は上限無し
+	 * @param toInclusive
+	 *            上限の値を含む場合はtrue
+	 * @return 行番号
+	 */
+	long[] getRange(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+		List<RowNos> range = subRange(from, fromInclusive, to, toInclusive);
+		if (range == null) {
+			return null;
+		}
+		int size = 0;
+		for (RowNos rowNos : range) {
+			size += rowNos.size;
+		}
+		long[] values = new long[size];
+		int offset = 0;
+		for (RowNos rowNos : range) {
+			System.arraycopy(rowNos.values, 0, values, offset, rowNos.size);
+			offset += rowNos.size;
+		}
+		// テーブルの順序へ並べ替え
+		Arrays.sort(values);
+		return values;
+	}
+
+	/**
+	 * 範囲に含まれるレコードの件数を取得します。
+	 * ソートインデックスでない場合は-1を返します。
+	 *
+	 * @param from
+	 *            下限。nullの場合は下限無し
+	 * @param fromInclusive
+	 *            下限の値を含む場合はtrue
+	 * @param to
+	 *            上限。nullの場合は上限無し
+	 * @param toInclusive
+	 *            上限の値を含む場合はtrue
+	 * @return 件数
+	 */
+	int countRange(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+		List<RowNos> range = subRange(from, fromInclusive, to, toInclusive);
+		if (range == null) {
+			return -1;
+		}
+		int size = 0;
+		for (RowNos rowNos : range) {
+			size += rowNos.size;
+		}
+		return size;
+	}
+
+	// 範囲に含まれる値の行番号を取得する(nullの値は含まない)
+	private List<RowNos> subRange(Object from, boolean fromInclusive, Object to,
+			boolean toInclusive) {
+		if (!isSorted()) {
+			return null;
+		}
+		NavigableMap<Object, RowNos> sorted = (NavigableMap<Object, RowNos>) postings;
+		NavigableMap<Object, RowNos> range;
+		if (from == null && to == null) {
+			range = sorted;
+		} else if (from == null) {
+			range = sorted.headMap(toKey(to), toInclusive);
+		} else if (to == null) {
+			range = sorted.tailMap(toKey(from), fromInclusive);
+		} else {
+			Object fromKey = toKey(from);
+			Object toKey = toKey(to);
+			int compared = KEY_COMPARATOR.compare(fromKey, toKey);
+			if (0 < compared || (compared == 0 && !(fromInclusive && toInclusive))) {
+				return new ArrayList<>();
+			}
+			range = sorted.subMap(fromKey, fromInclusive, toKey, toInclusive);
+		}
+		// nullは範囲外
+		RowNos nulls = from == null ? sorted.get(null) : null;
+		List<RowNos> values = new ArrayList<>();
+		for (RowNos rowNos : range.values()) {
+			if (rowNos != nulls) {
+				values.add(rowNos);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * 値に一致するレコードの件数を取得します
+	 *
+	 * @param value
+	 *            値
+	 * @return 件数
+	 */
+	int count(Object value) {
+		RowNos rowNos = postings.get(toKey(value));
+		return rowNos == null ? 0 : rowNos.size;
+	}
+
+	/**
+	 * インデックスに登録されている値の種類の数を取得します
+	 *
+	 * @return 値の種類の数
+	 */
+	int distinctCount() {
+		return postings.size();
+	}
+
+	/**
+	 * 全てのエントリーを削除します
+	 */
+	void clear() {
+		postings.clear();
+	}
+
+	/**
+	 * 値が範囲に含まれるか判定します。インデックスが無い場合の範囲検索で使用します。
+	 *
+	 * @param value
+	 *            値
+	 * @param from
+	 *            下限(この値を含む)。nullの場合は下限無し
+	 * @param to
+	 *            上限(この値を含む)。nullの場合は上限無し
+	 * @return 含まれる場合はtrue
+	 */
+	static boolean isInRange(Object value, Object from, Object to) {
+		if (value == null) {
+			return false;
+		}
+		Object key = toSortKey(value);
+		return (from == null || 0 <= KEY_COMPARATOR.compare(key, toSortKey(from)))
+				&& (to == null || KEY_COMPARATOR.compare(key, toSortKey(to)) <= 0);
+	}
+
+	/**
+	 * ソートインデックスのキーへ変換します。
+	 * 数値として扱える値は{@link BigDecimal}、それ以外と{@link BigDecimal}で表せない値は文字列になります。
+	 *
+	 * @param value
+	 *            値
+	 * @return キー
+	 */
+	static Object toSortKey(Object value) {
+		if (value == null) {
+			return null;
+		}
+		String str = value.toString();
+		if (isNumeric(str)) {
+			try {
+				return new BigDecimal(str);
+			} catch (NumberFormatException e) {
+				// 指数が大き過ぎる場合は文字列として扱う
+			}
+		}
+		return str;
+	}
+
+	/**
+	 * {@link #toSortKey(Object)}で変換したキー同士を比較します
+	 *
+	 * @param key1
+	 *            キー1
+	 * @param key2
+	 *            キー2
+	 * @return キー1が小さい場合は負、等しい場合は0、大きい場合は正の値
+	 */
+	static int compareKeys(Object key1, Object key2) {
+		return KEY_COMPARATOR.compare(key1, key2);
+	}
+
+	// インデックスのキーへ変換する(DbMatcherと同じ規則で比較する)
+	Object toKey(Object value) {
+		if (isSorted()) {
+			// 文字列表現が同じ値は必ず同じキーになる為、等価検索の結果はDbMatcherの結果を包含する
+			return toSortKey(value);
+		}
+		if (value == null) {
+			return null;
+		}
+		if (fieldType != null) {
+			return fieldType.toKey(value);
+		}
+		return value.toString();
+	}
+
+	// 数値として扱える文字列か判定する
+	private static boolean isNumeric(String str) {
+		int length = str.length();
+		int i = 0;
+		if (i < length && (str.charAt(i) == '-' || str.charAt(i) == '+')) {
+			i++;
+		}
+		int digits = 0;
+		while (i < length && Character.isDigit(str.charAt(i))) {
+			i++;
+			digits++;
+		}
+		if (i < length && str.charAt(i) == '.') {
+			i++;
+			while (i < length && Character.isDigit(str.charAt(i))) {
+				i++;
+				digits++;
+			}
+		}
+		if (digits == 0) {
+			return false;
+		}
+		if (i < length && (str.charAt(i) == 'e' || str.charAt(i) == 'E')) {
+			i++;
+			if (i < length && (str.charAt(i) == '-' || str.charAt(i) == '+')) {
+				i++;
+			}
+			int exponents = 0;
+			while (i < length && Character.isDigit(str.charAt(i))) {
+				i++;
+				exponents++;
+			}
+			if (exponents == 0) {
+				return false;
+			}
+		}
+		return i == length;
+	}
+
+	/**
+	 * 昇順に並んだ行番号の集合です。
+	 */
+	private static class RowNos {
+
+		private long[] values = new long[1];
+
+		private int size = 0;
+
+		void add(long rowNo) {
+			if (size == 0 || values[size - 1] < rowNo) {
+				// 殆どの場合は末尾への追加
+				ensureCapacity();
+				values[size++] = rowNo;
+				return;
+			}
+			int index = Arrays.binarySearch(values, 0, size, rowNo);
+			if (0 <= index) {
+				return;
+			}
+			index = -(index + 1);
+			ensureCapacity();
+			System.arraycopy(values, index, values, index + 1, size - index);
+			values[index] = rowNo;
+			size++;
+		}
+
+		void remove(long rowNo) {
+			int index = Arrays.binarySearch(values, 0, size, rowNo);
+			if (index < 0) {
+				return;
+			}
+			System.arraycopy(values, index + 1, values, index, size - index - 1);
+			size--;
+		}
+
+		RowNos copy() {
+			RowNos copy = new RowNos();
+			copy.values = Arrays.copyOf(values, Math.max(size, 1));
+			copy.size = size;
+			return copy;
+		}
+
+		boolean contains(long rowNo) {
+			return 0 <= Arrays.binarySearch(values, 0, size, rowNo);
+		}
+
+		long[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+
+		private void ensureCapacity() {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+		}
+	}
+
+}
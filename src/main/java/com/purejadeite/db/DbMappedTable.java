@@ -0,0 +1,687 @@
+package com.purejadeite.db;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.purejadeite.FileIoException;
+
+/**
+ * 読み込み専用のテーブルをインデックスと共に1つのファイルへまとめ、メモリへマップして参照するクラスです。
+ * レコードは参照される度にマップした領域から読み込む為ヒープには保持せず、
+ * 同じホストで同じファイルを開いているJVM同士はページキャッシュを共有します。
+ * ファイルは元のテーブルのファイルとログファイルから作成し、作成元の長さと更新日時を記録します。
+ *
+ * <pre>
+ * ファイル       : ヘッダー レコード* 行の位置 索引* 目次 目次の位置(4byte)
+ * ヘッダー       : "PJMP" バージョン(1byte) 作成元 作成元
+ *                  フィールド名の数(4byte) フィールド名(文字列)*
+ *                  インデックスの数(4byte) (フィールド名 種類 型)(文字列)*
+ * 作成元         : ファイルの長さ(8byte) 更新日時(8byte)。ファイルが無い場合は-1
+ * レコード       : フィールド数(varint) (フィールド名の番号(varint) 値)*
+ * 行の位置       : 行番号順のレコードの位置(4byte)*
+ * 等価検索の索引 : キーのハッシュ値(4byte)* 行番号(4byte)*。ハッシュ値、行番号の順に並ぶ
+ * 範囲検索の索引 : 行番号(4byte)*。キー、行番号の順に並ぶ
+ * 目次           : 件数(4byte) 行の位置の位置(4byte) (索引の位置(4byte) 値の種類の数(4byte))*
+ * </pre>
+ *
+ * 文字列と値は{@link BinaryTableCodec}と同じ形式です。ファイルの大きさは2GB未満に限ります。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+class DbMappedTable {
+
+	/**
+	 * ファイルの拡張子
+	 */
+	static final String EXTENSION = "pjmap";
+
+	/**
+	 * ロガー
+	 */
+	private static final Logger LOGGER = LoggerFactory.getLogger(DbMappedTable.class);
+
+	// ファイルの先頭
+	private static final byte[] MAGIC = { 'P', 'J', 'M', 'P' };
+
+	// 形式のバージョン
+	private static final int VERSION = 1;
+
+	// 値の読み書き
+	private static final BinaryTableCodec CODEC = new BinaryTableCodec();
+
+	// 空の行番号
+	private static final long[] EMPTY = new long[0];
+
+	// マップしたファイルの内容
+	private final ByteBuffer buffer;
+
+	// 作成元のテーブルのファイルとログファイルの長さ・更新日時
+	private final long[] sources = new long[4];
+
+	// 番号->フィールド名
+	private final String[] names;
+
+	// レコード件数
+	private final int size;
+
+	// 行の位置の位置
+	private final int offsetsPosition;
+
+	// フィールド名->インデックス
+	private final Map<String, DbIndex> indexes = new LinkedHashMap<>();
+
+	// 行番号->レコード
+	private final Rows rows = new Rows();
+
+	private DbMappedTable(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		DataInputStream input = input(0);
+		byte[] magic = new byte[MAGIC.length];
+		input.readFully(magic);
+		if (!Arrays.equals(MAGIC, magic)) {
+			throw new IOException("読み込み専用のテーブルのファイルではありません");
+		}
+		int version = input.readUnsignedByte();
+		if (version != VERSION) {
+			throw new IOException("サポートしていないバージョンです:" + version);
+		}
+		for (int i = 0; i < sources.length; i++) {
+			sources[i] = input.readLong();
+		}
+		names = new String[input.readInt()];
+		Map<String, Integer> nameIndexes = new HashMap<>();
+		for (int i = 0; i < names.length; i++) {
+			names[i] = CODEC.readString(input);
+			nameIndexes.put(names[i], Integer.valueOf(i));
+		}
+		int indexCount = input.readInt();
+		int directory = buffer.getInt(buffer.limit() - 4);
+		size = buffer.getInt(directory);
+		offsetsPosition = buffer.getInt(directory + 4);
+		for (int i = 0; i < indexCount; i++) {
+			String fieldName = CODEC.readString(input);
+			String type = CODEC.readString(input);
+			String fieldType = CODEC.readString(input);
+			Integer nameIndex = nameIndexes.get(fieldName);
+			indexes.put(fieldName, new Index(fieldName, type,
+					fieldType.isEmpty() ? null : DbFieldType.valueOf(fieldType),
+					nameIndex == null ? -1 : nameIndex.intValue(),
+					buffer.getInt(directory + 8 + i * 8), buffer.getInt(directory + 12 + i * 8)));
+		}
+	}
+
+	/**
+	 * ファイルをメモリへマップして開きます
+	 *
+	 * @param file
+	 *            ファイル
+	 * @return 読み込み専用のテーブル
+	 * @throws IOException
+	 *             読み込みに失敗した場合
+	 */
+	static DbMappedTable open(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (Integer.MAX_VALUE <= channel.size()) {
+				throw new IOException(file.getAbsolutePath() + "は2GB以上の為マップできません");
+			}
+			// マップした領域はチャネルを閉じた後も参照できる
+			return new DbMappedTable(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * テーブルの内容をファイルへ書き出します。
+	 * 行番号はテーブルの順に0から振りなおします。
+	 * 同じフォルダの一時ファイルへ書き出し、ディスクへ書き込まれた後にファイルを置き換えます
+	 *
+	 * @param file
+	 *            ファイル
+	 * @param table
+	 *            テーブル
+	 * @param tableFile
+	 *            作成元のテーブルのファイル
+	 * @param walFile
+	 *            作成元のログファイル
+	 * @throws IOException
+	 *             書き出しに失敗した場合
+	 */
+	static void compile(File file, DbTable table, File tableFile, File walFile)
+			throws IOException {
+		List<Map<String, Object>> records = table.toList();
+		Map<String, Integer> names = new LinkedHashMap<>();
+		for (Map<String, Object> record : records) {
+			for (String name : record.keySet()) {
+				if (!names.containsKey(name)) {
+					names.put(name, Integer.valueOf(names.size()));
+				}
+			}
+		}
+		List<DbIndex> indexes = new ArrayList<>(table.getIndexes());
+		// 複数のJVMが同時に作成しても衝突しないよう一時ファイルの名前は都度決める
+		File tempFile = File.createTempFile(file.getName() + ".",
+				"." + DbTableFile.TEMP_EXTENSION, file.getAbsoluteFile().getParentFile());
+		try {
+			try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+				DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fos));
+				output.write(MAGIC);
+				output.writeByte(VERSION);
+				writeSource(output, tableFile);
+				writeSource(output, walFile);
+				output.writeInt(names.size());
+				for (String name : names.keySet()) {
+					CODEC.writeString(output, name);
+				}
+				output.writeInt(indexes.size());
+				for (DbIndex index : indexes) {
+					CODEC.writeString(output, index.getFieldName());
+					CODEC.writeString(output, index.getType());
+					CODEC.writeString(output,
+							index.getFieldType() == null ? "" : index.getFieldType().name());
+				}
+				int[] offsets = new int[records.size()];
+				for (int i = 0; i < offsets.length; i++) {
+					offsets[i] = output.size();
+					Map<String, Object> record = records.get(i);
+					CODEC.writeVarLong(output, record.size());
+					for (Map.Entry<String, Object> field : record.entrySet()) {
+						CODEC.writeVarLong(output, names.get(field.getKey()).intValue());
+						CODEC.writeValue(output, field.getValue());
+					}
+				}
+				int offsetsPosition = output.size();
+				for (int offset : offsets) {
+					output.writeInt(offset);
+				}
+				int[] positions = new int[indexes.size()];
+				for (int i = 0; i < positions.length; i++) {
+					positions[i] = output.size();
+					DbIndex index = indexes.get(i);
+					if (index.isSorted()) {
+						writeSortedIndex(output, index, records);
+					} else {
+						writeHashIndex(output, index, records);
+					}
+				}
+				int directory = output.size();
+				output.writeInt(records.size());
+				output.writeInt(offsetsPosition);
+				for (int i = 0; i < positions.length; i++) {
+					output.writeInt(positions[i]);
+					output.writeInt(indexes.get(i).distinctCount());
+				}
+				output.writeInt(directory);
+				output.flush();
+				// 書き出した長さはint型の上限で止まる
+				if (output.size() == Integer.MAX_VALUE) {
+					throw new IOException(table.getName() + "は2GB以上になる為、読み込み専用のテーブルにできません");
+				}
+				fos.getFD().sync();
+			}
+			DbTableFile.move(tempFile, file);
+		} catch (IOException | RuntimeException e) {
+			LOGGER.error(file.getAbsolutePath() + "を作成できませんでした");
+			if (tempFile.exists() && !tempFile.delete()) {
+				LOGGER.warn(tempFile.getAbsolutePath() + "を削除できませんでした");
+			}
+			throw e;
+		}
+		LOGGER.info(file.getAbsolutePath() + "を作成しました。");
+	}
+
+	// 作成元のファイルの長さと更新日時を書き出す
+	private static void writeSource(DataOutputStream output, File file) throws IOException {
+		if (file != null && file.exists()) {
+			output.writeLong(file.length());
+			output.writeLong(file.lastModified());
+		} else {
+			output.writeLong(-1);
+			output.writeLong(-1);
+		}
+	}
+
+	// キーのハッシュ値と行番号の順に並べた索引を書き出す
+	private static void writeHashIndex(DataOutputStream output, DbIndex index,
+			List<Map<String, Object>> records) throws IOException {
+		long[] entries = new long[records.size()];
+		for (int i = 0; i < entries.length; i++) {
+			entries[i] = (long) hash(index.toKey(records.get(i).get(index.getFieldName()))) << 32 | i;
+		}
+		Arrays.sort(entries);
+		for (long entry : entries) {
+			output.writeInt((int) (entry >> 32));
+		}
+		for (long entry : entries) {
+			output.writeInt((int) entry);
+		}
+	}
+
+	// キーと行番号の順に並べた索引を書き出す
+	private static void writeSortedIndex(DataOutputStream output, DbIndex index,
+			List<Map<String, Object>> records) throws IOException {
+		final Object[] keys = new Object[records.size()];
+		Integer[] rowNos = new Integer[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = index.toKey(records.get(i).get(index.getFieldName()));
+			rowNos[i] = Integer.valueOf(i);
+		}
+		Arrays.sort(rowNos, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				int compared = DbIndex.compareKeys(keys[o1.intValue()], keys[o2.intValue()]);
+				return compared != 0 ? compared : o1.compareTo(o2);
+			}
+		});
+		for (Integer rowNo : rowNos) {
+			output.writeInt(rowNo.intValue());
+		}
+	}
+
+	// 等価検索のキーのハッシュ値(JVMに依らない値)
+	private static int hash(Object key) {
+		return key == null ? 0 : key.hashCode();
+	}
+
+	/**
+	 * テーブルのファイルとログファイルから作成したファイルか判定します。
+	 * どちらのファイルも無い場合は、このファイルのみで配布されたものとして作成元を問いません
+	 *
+	 * @param tableFile
+	 *            テーブルのファイル
+	 * @param walFile
+	 *            ログファイル
+	 * @return 作成元が更新されていない場合はtrue
+	 */
+	boolean isCompiledFrom(File tableFile, File walFile) {
+		if (!tableFile.exists() && !walFile.exists()) {
+			return true;
+		}
+		return isSource(0, tableFile) && isSource(2, walFile);
+	}
+
+	// 記録した作成元と同じファイルか判定する
+	private boolean isSource(int index, File file) {
+		if (!file.exists()) {
+			return sources[index] == -1;
+		}
+		return sources[index] == file.length() && sources[index + 1] == file.lastModified();
+	}
+
+	/**
+	 * テーブルと同じインデックスを持っているか判定します
+	 *
+	 * @param table
+	 *            テーブル
+	 * @return 同じ場合はtrue
+	 */
+	boolean hasIndexes(DbTable table) {
+		Collection<DbIndex> expected = table.getIndexes();
+		if (expected.size() != indexes.size()) {
+			return false;
+		}
+		for (DbIndex index : expected) {
+			DbIndex actual = indexes.get(index.getFieldName());
+			if (actual == null || !actual.getType().equals(index.getType())
+					|| actual.getFieldType() != index.getFieldType()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * レコード件数を取得します
+	 *
+	 * @return 件数
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * 行番号->レコードのマップを取得します。
+	 * レコードは取得する度にファイルの内容から作成します。
+	 *
+	 * @return 行番号->レコード
+	 */
+	Map<Long, Map<String, Object>> getRows() {
+		return rows;
+	}
+
+	/**
+	 * インデックスを取得します
+	 *
+	 * @return フィールド名->インデックス
+	 */
+	Map<String, DbIndex> getIndexes() {
+		return indexes;
+	}
+
+	// 位置から読み込むストリームを作成する
+	private DataInputStream input(int position) {
+		ByteBuffer duplicate = buffer.duplicate();
+		duplicate.position(position);
+		return new DataInputStream(new BufferInputStream(duplicate));
+	}
+
+	// 行番号のレコードを読み込む
+	private Map<String, Object> read(int rowNo) {
+		try {
+			DataInputStream input = input(buffer.getInt(offsetsPosition + rowNo * 4));
+			int fieldCount = (int) CODEC.readVarLong(input);
+			Map<String, Object> record = new HashMap<>((int) (fieldCount / 0.75f) + 1);
+			for (int i = 0; i < fieldCount; i++) {
+				String name = names[(int) CODEC.readVarLong(input)];
+				record.put(name, CODEC.readValue(input));
+			}
+			return record;
+		} catch (IOException e) {
+			throw new FileIoException(e);
+		}
+	}
+
+	// 行番号のレコードのフィールドの値を読み込む
+	private Object readField(int rowNo, int nameIndex) {
+		if (nameIndex < 0) {
+			return null;
+		}
+		try {
+			DataInputStream input = input(buffer.getInt(offsetsPosition + rowNo * 4));
+			int fieldCount = (int) CODEC.readVarLong(input);
+			for (int i = 0; i < fieldCount; i++) {
+				int ref = (int) CODEC.readVarLong(input);
+				Object value = CODEC.readValue(input);
+				if (ref == nameIndex) {
+					return value;
+				}
+			}
+			return null;
+		} catch (IOException e) {
+			throw new FileIoException(e);
+		}
+	}
+
+	/**
+	 * マップした領域から作成したレコードを返す、変更できない行番号->レコードのマップです
+	 */
+	class Rows extends AbstractMap<Long, Map<String, Object>> {
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			if (!(key instanceof Long)) {
+				return false;
+			}
+			long rowNo = ((Long) key).longValue();
+			return 0 <= rowNo && rowNo < size;
+		}
+
+		@Override
+		public Map<String, Object> get(Object key) {
+			if (!containsKey(key)) {
+				return null;
+			}
+			return read(((Long) key).intValue());
+		}
+
+		@Override
+		public Set<Map.Entry<Long, Map<String, Object>>> entrySet() {
+			return new AbstractSet<Map.Entry<Long, Map<String, Object>>>() {
+				@Override
+				public Iterator<Map.Entry<Long, Map<String, Object>>> iterator() {
+					return new Iterator<Map.Entry<Long, Map<String, Object>>>() {
+
+						private int next = 0;
+
+						@Override
+						public boolean hasNext() {
+							return next < size;
+						}
+
+						@Override
+						public Map.Entry<Long, Map<String, Object>> next() {
+							if (size <= next) {
+								throw new NoSuchElementException();
+							}
+							int rowNo = next++;
+							return new SimpleImmutableEntry<Long, Map<String, Object>>(
+									Long.valueOf(rowNo), read(rowNo));
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+	}
+
+	/**
+	 * マップした領域の索引を二分探索するインデックスです。変更はできません
+	 */
+	private class Index extends DbIndex {
+
+		// フィールド名の番号。どのレコードにも無いフィールドの場合は-1
+		private final int nameIndex;
+
+		// 索引の位置
+		private final int position;
+
+		// 値の種類の数
+		private final int distinctCount;
+
+		Index(String fieldName, String type, DbFieldType fieldType, int nameIndex,
+				int position, int distinctCount) {
+			super(fieldName, type, fieldType);
+			this.nameIndex = nameIndex;
+			this.position = position;
+			this.distinctCount = distinctCount;
+		}
+
+		@Override
+		DbIndex copy() {
+			// 変更されない為、複製せずに共有する
+			return this;
+		}
+
+		// 読み込み専用のテーブルはDbの更新処理で拒否される為、呼ばれることは無い
+		@Override
+		void add(long rowNo, Map<String, Object> record) {
+			throw new IllegalStateException(getFieldName() + "のインデックスは変更できません");
+		}
+
+		@Override
+		void remove(long rowNo, Map<String, Object> record) {
+			throw new IllegalStateException(getFieldName() + "のインデックスは変更できません");
+		}
+
+		@Override
+		void clear() {
+			throw new IllegalStateException(getFieldName() + "のインデックスは変更できません");
+		}
+
+		@Override
+		long[] get(Object value) {
+			Object key = toKey(value);
+			if (isSorted()) {
+				return rowNos(bound(key, false), bound(key, true));
+			}
+			int hash = hash(key);
+			// ハッシュ値が一致する最初の位置
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (buffer.getInt(position + middle * 4) < hash) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			long[] rowNos = new long[4];
+			int count = 0;
+			for (int i = low; i < size && buffer.getInt(position + i * 4) == hash; i++) {
+				int rowNo = buffer.getInt(position + (size + i) * 4);
+				// ハッシュ値のみ一致する値を除く
+				if (Objects.equals(key, keyOf(rowNo))) {
+					if (count == rowNos.length) {
+						rowNos = Arrays.copyOf(rowNos, count * 2);
+					}
+					rowNos[count++] = rowNo;
+				}
+			}
+			return count == 0 ? EMPTY : Arrays.copyOf(rowNos, count);
+		}
+
+		@Override
+		boolean contains(Object value, long rowNo) {
+			if (rowNo < 0 || size <= rowNo) {
+				return false;
+			}
+			Object key = toKey(value);
+			Object actual = keyOf((int) rowNo);
+			if (isSorted()) {
+				return compareKeys(key, actual) == 0;
+			}
+			return Objects.equals(key, actual);
+		}
+
+		@Override
+		long[] getRange(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+			if (!isSorted()) {
+				return null;
+			}
+			// 下限が無い場合もnullは範囲外
+			int start = from == null ? bound(null, true) : bound(toKey(from), !fromInclusive);
+			int end = to == null ? size : bound(toKey(to), toInclusive);
+			return rowNos(start, end);
+		}
+
+		@Override
+		int countRange(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+			if (!isSorted()) {
+				return -1;
+			}
+			int start = from == null ? bound(null, true) : bound(toKey(from), !fromInclusive);
+			int end = to == null ? size : bound(toKey(to), toInclusive);
+			return Math.max(end - start, 0);
+		}
+
+		@Override
+		int count(Object value) {
+			if (isSorted()) {
+				Object key = toKey(value);
+				return bound(key, true) - bound(key, false);
+			}
+			return get(value).length;
+		}
+
+		@Override
+		int distinctCount() {
+			return distinctCount;
+		}
+
+		// 行番号のキー
+		private Object keyOf(int rowNo) {
+			return toKey(readField(rowNo, nameIndex));
+		}
+
+		// キー以上(afterの場合はキーより大きい)の値が並ぶ最初の位置
+		private int bound(Object key, boolean after) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				int compared = compareKeys(keyOf(buffer.getInt(position + middle * 4)), key);
+				if (compared < 0 || (after && compared == 0)) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		// 索引の範囲の行番号を昇順で取得する
+		private long[] rowNos(int start, int end) {
+			if (end <= start) {
+				return EMPTY;
+			}
+			long[] rowNos = new long[end - start];
+			for (int i = start; i < end; i++) {
+				rowNos[i - start] = buffer.getInt(position + i * 4);
+			}
+			// テーブルの順序へ並べ替え
+			Arrays.sort(rowNos);
+			return rowNos;
+		}
+	}
+
+	/**
+	 * マップした領域を読み込むストリームです
+	 */
+	private static class BufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+}
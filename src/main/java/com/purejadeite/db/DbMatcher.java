@@ -0,0 +1,94 @@
+package com.purejadeite.db;
+
+import java.util.Map;
+
+/**
+ * 検索条件をテーブルに合わせて変換したものです。
+ * 条件の値の変換は作成時に一度だけ行い、レコード毎には比較のみを行います。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+class DbMatcher {
+
+	// 条件のフィールド名
+	private final String[] fieldNames;
+
+	// 条件の値。文字列で比較する場合は文字列、型付きで比較する場合はフィールドの型へ変換した値
+	private final Object[] values;
+
+	// フィールドの型。文字列で比較する場合はnull
+	private final DbFieldType[] fieldTypes;
+
+	/**
+	 * テーブルに合わせて検索条件を変換します
+	 *
+	 * @param table
+	 *            テーブル
+	 * @param params
+	 *            検索条件
+	 */
+	DbMatcher(DbTable table, Map<String, Object> params) {
+		int size = params == null ? 0 : params.size();
+		fieldNames = new String[size];
+		values = new Object[size];
+		fieldTypes = table.isTyped() ? new DbFieldType[size] : null;
+		if (params == null) {
+			return;
+		}
+		int i = 0;
+		for (Map.Entry<String, Object> param : params.entrySet()) {
+			String fieldName = param.getKey();
+			Object value = param.getValue();
+			fieldNames[i] = fieldName;
+			if (fieldTypes == null) {
+				values[i] = value == null ? null : value.toString();
+			} else {
+				DbFieldType fieldType = table.getFieldType(fieldName);
+				fieldTypes[i] = fieldType;
+				values[i] = fieldType.normalize(value);
+			}
+			i++;
+		}
+	}
+
+	/**
+	 * 条件が無いか判定します
+	 *
+	 * @return 条件が無い場合はtrue
+	 */
+	boolean isEmpty() {
+		return fieldNames.length == 0;
+	}
+
+	/**
+	 * レコードが条件に合うか判定します
+	 *
+	 * @param record
+	 *            レコード
+	 * @return 条件に合う場合はtrue
+	 */
+	boolean matches(Map<String, Object> record) {
+		if (fieldTypes == null) {
+			for (int i = 0; i < fieldNames.length; i++) {
+				Object expected = values[i];
+				Object value = record.get(fieldNames[i]);
+				if (expected == null || value == null) {
+					if (expected != value) {
+						return false;
+					}
+				} else if (!expected.equals(value.toString())) {
+					return false;
+				}
+			}
+		} else {
+			for (int i = 0; i < fieldNames.length; i++) {
+				if (!fieldTypes[i].equals(values[i], record.get(fieldNames[i]))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+}
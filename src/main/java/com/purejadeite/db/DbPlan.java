@@ -0,0 +1,326 @@
+package com.purejadeite.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 検索条件に対する実行計画です。{@link Db#explain(String, Map)}で取得します。
+ * インデックスの件数からコストを見積もり、最も件数の少ないインデックスを起点に
+ * 絞り込みの効くインデックスを突き合わせるか、全件を走査するかを選択します。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+public class DbPlan {
+
+	/**
+	 * レコードの取得方法
+	 */
+	public static enum Access {
+
+		/**
+		 * 全件を走査
+		 */
+		SCAN,
+
+		/**
+		 * インデックスで絞り込んだレコードのみ判定
+		 */
+		INDEX,
+
+		/**
+		 * インデックスから条件に合うレコードが無いと判断
+		 */
+		NONE
+	}
+
+	// 起点とするインデックスの件数がテーブルの件数に占める割合の上限。超える場合は全件を走査する
+	private static final double SCAN_RATIO = 0.3;
+
+	// 突き合わせるインデックスの件数がテーブルの件数に占める割合の上限。超える場合はレコード毎に判定する
+	private static final double INTERSECT_RATIO = 0.5;
+
+	// テーブル名
+	private final String tableName;
+
+	// テーブルの件数
+	private final int rowCount;
+
+	// 取得方法
+	private final Access access;
+
+	// 使用できるインデックス(件数の少ない順)
+	private final List<Step> steps;
+
+	// 条件に合う件数の見積もり
+	private final long estimatedRows;
+
+	private DbPlan(String tableName, int rowCount, Access access, List<Step> steps,
+			long estimatedRows) {
+		this.tableName = tableName;
+		this.rowCount = rowCount;
+		this.access = access;
+		this.steps = steps;
+		this.estimatedRows = estimatedRows;
+	}
+
+	/**
+	 * テーブルの統計情報から実行計画を作成します
+	 *
+	 * @param table
+	 *            テーブル
+	 * @param query
+	 *            検索条件
+	 * @return 実行計画
+	 */
+	static DbPlan create(DbTable table, DbQuery query) {
+		int rowCount = table.size();
+		List<Step> steps = new ArrayList<>();
+		Map<String, Object> params = query.getParams();
+		if (params != null) {
+			for (Map.Entry<String, Object> param : params.entrySet()) {
+				DbIndex index = table.getIndex(param.getKey());
+				if (index != null) {
+					steps.add(new Step(param.getKey(), index, param.getValue(), null,
+							false, index.count(param.getValue())));
+				}
+			}
+		}
+		for (DbCondition condition : query.getConditions()) {
+			DbIndex index = table.getIndex(condition.getFieldName());
+			if (condition.isIndexable(index, table.isTyped())) {
+				steps.add(new Step(condition.getFieldName(), index, null, condition,
+						table.isTyped(), condition.countCandidates(index, table.isTyped())));
+			}
+		}
+		Collections.sort(steps, new Comparator<Step>() {
+			@Override
+			public int compare(Step o1, Step o2) {
+				return Integer.compare(o1.rows, o2.rows);
+			}
+		});
+		// 各インデックスの絞り込みが独立しているものとして件数を見積もる
+		double estimated = rowCount;
+		for (Step step : steps) {
+			estimated *= rowCount == 0 ? 0 : (double) step.rows / rowCount;
+		}
+		long estimatedRows = Math.max(Math.round(estimated), 1);
+		if (steps.isEmpty()) {
+			return new DbPlan(table.getName(), rowCount, Access.SCAN, steps, rowCount);
+		}
+		Step first = steps.get(0);
+		if (first.rows == 0) {
+			first.used = true;
+			return new DbPlan(table.getName(), rowCount, Access.NONE, steps, 0);
+		}
+		if (rowCount * SCAN_RATIO < first.rows) {
+			return new DbPlan(table.getName(), rowCount, Access.SCAN, steps, estimatedRows);
+		}
+		first.used = true;
+		for (int i = 1; i < steps.size(); i++) {
+			Step step = steps.get(i);
+			step.used = step.rows <= rowCount * INTERSECT_RATIO;
+		}
+		return new DbPlan(table.getName(), rowCount, Access.INDEX, steps, estimatedRows);
+	}
+
+	/**
+	 * 実行計画に従ってインデックスから候補となるレコードの行番号を昇順で取得します
+	 *
+	 * @return 行番号。全件を走査する場合はnull
+	 */
+	long[] getCandidates() {
+		if (access == Access.SCAN) {
+			return null;
+		} else if (access == Access.NONE) {
+			return new long[0];
+		}
+		long[] candidates = steps.get(0).fetch();
+		int size = candidates.length;
+		for (int i = 1; i < steps.size() && 0 < size; i++) {
+			Step step = steps.get(i);
+			if (!step.used) {
+				continue;
+			}
+			if (step.condition == null) {
+				// 等価の条件は候補の行番号がインデックスに含まれるか確認する
+				int next = 0;
+				for (int j = 0; j < size; j++) {
+					if (step.index.contains(step.value, candidates[j])) {
+						candidates[next++] = candidates[j];
+					}
+				}
+				size = next;
+			} else {
+				if (size < candidates.length) {
+					candidates = Arrays.copyOf(candidates, size);
+				}
+				candidates = DbQuery.intersect(candidates, step.fetch());
+				size = candidates.length;
+			}
+		}
+		return size == candidates.length ? candidates : Arrays.copyOf(candidates, size);
+	}
+
+	/**
+	 * テーブル名を取得します
+	 *
+	 * @return テーブル名
+	 */
+	public String getTableName() {
+		return tableName;
+	}
+
+	/**
+	 * テーブルの件数を取得します
+	 *
+	 * @return 件数
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * レコードの取得方法を取得します
+	 *
+	 * @return 取得方法
+	 */
+	public Access getAccess() {
+		return access;
+	}
+
+	/**
+	 * 条件に合う件数の見積もりを取得します
+	 *
+	 * @return 件数
+	 */
+	public long getEstimatedRows() {
+		return estimatedRows;
+	}
+
+	/**
+	 * 使用できるインデックスを件数の少ない順に取得します
+	 *
+	 * @return インデックス毎の計画
+	 */
+	public List<Step> getSteps() {
+		return Collections.unmodifiableList(steps);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(tableName).append(": ").append(access).append(" rows=").append(rowCount)
+				.append(" estimated=").append(estimatedRows);
+		for (Step step : steps) {
+			sb.append("\n  ").append(step);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 1つのインデックスに対する計画です
+	 */
+	public static class Step {
+
+		// フィールド名
+		private final String fieldName;
+
+		// インデックス
+		private final DbIndex index;
+
+		// 等価の条件の値
+		private final Object value;
+
+		// 等価以外の条件
+		private final DbCondition condition;
+
+		// インデックスが型付きで比較するか
+		private final boolean typed;
+
+		// インデックスから取得できる件数
+		private final int rows;
+
+		// インデックスの値の種類の数
+		private final int distinctCount;
+
+		// 絞り込みに使用するか
+		private boolean used = false;
+
+		Step(String fieldName, DbIndex index, Object value, DbCondition condition,
+				boolean typed, int rows) {
+			this.fieldName = fieldName;
+			this.index = index;
+			this.value = value;
+			this.condition = condition;
+			this.typed = typed;
+			this.rows = rows;
+			this.distinctCount = index.distinctCount();
+		}
+
+		// インデックスから行番号を取得する
+		private long[] fetch() {
+			if (condition == null) {
+				return index.get(value);
+			}
+			return condition.getCandidates(index, typed);
+		}
+
+		/**
+		 * フィールド名を取得します
+		 *
+		 * @return フィールド名
+		 */
+		public String getFieldName() {
+			return fieldName;
+		}
+
+		/**
+		 * インデックスの種類を取得します
+		 *
+		 * @return hashまたはsorted
+		 */
+		public String getIndexType() {
+			return index.getType();
+		}
+
+		/**
+		 * インデックスから取得できる件数を取得します
+		 *
+		 * @return 件数
+		 */
+		public int getRows() {
+			return rows;
+		}
+
+		/**
+		 * インデックスの値の種類の数を取得します
+		 *
+		 * @return 値の種類の数
+		 */
+		public int getDistinctCount() {
+			return distinctCount;
+		}
+
+		/**
+		 * 絞り込みに使用するか判定します
+		 *
+		 * @return 使用する場合はtrue。使用しない場合はレコード毎に判定します
+		 */
+		public boolean isUsed() {
+			return used;
+		}
+
+		@Override
+		public String toString() {
+			return fieldName + "(" + index.getType() + ", distinct=" + distinctCount + ") "
+					+ (condition == null ? "=" + value : condition.toString()) + " rows=" + rows
+					+ (used ? " used" : " filter");
+		}
+	}
+
+}
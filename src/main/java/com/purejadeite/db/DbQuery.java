@@ -0,0 +1,160 @@
+package com.purejadeite.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 検索条件をテーブルに合わせて変換したものです。
+ * 等価の条件は{@link DbMatcher}とハッシュインデックスで、
+ * それ以外の条件は{@link DbCondition}とソートインデックスで判定します。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+class DbQuery {
+
+	// 等価の条件
+	private final Map<String, Object> params;
+
+	// 等価の条件の判定
+	private final DbMatcher matcher;
+
+	// 等価以外の条件
+	private final DbCondition[] conditions;
+
+	// 等価以外の条件の比較する値
+	private final Object[] values;
+
+	// 等価以外の条件のフィールドの型
+	private final DbFieldType[] fieldTypes;
+
+	/**
+	 * パラメータによる検索条件を変換します
+	 *
+	 * @param table
+	 *            テーブル
+	 * @param params
+	 *            検索条件
+	 */
+	DbQuery(DbTable table, Map<String, Object> params) {
+		this.params = params;
+		this.matcher = new DbMatcher(table, params);
+		this.conditions = new DbCondition[0];
+		this.values = new Object[0];
+		this.fieldTypes = new DbFieldType[0];
+	}
+
+	/**
+	 * 条件による検索条件を変換します
+	 *
+	 * @param table
+	 *            テーブル
+	 * @param conditions
+	 *            検索条件
+	 */
+	DbQuery(DbTable table, List<DbCondition> conditions) {
+		Map<String, Object> params = new LinkedHashMap<>();
+		List<DbCondition> others = new ArrayList<>();
+		for (DbCondition condition : conditions) {
+			if (condition.isEqualTo() && !params.containsKey(condition.getFieldName())) {
+				params.put(condition.getFieldName(), condition.getValue());
+			} else {
+				others.add(condition);
+			}
+		}
+		this.params = params;
+		this.matcher = new DbMatcher(table, params);
+		this.conditions = others.toArray(new DbCondition[others.size()]);
+		this.values = new Object[this.conditions.length];
+		this.fieldTypes = new DbFieldType[this.conditions.length];
+		for (int i = 0; i < this.conditions.length; i++) {
+			DbCondition condition = this.conditions[i];
+			DbFieldType fieldType = table.getFieldType(condition.getFieldName());
+			Object value = condition.getValue();
+			fieldTypes[i] = fieldType;
+			if (fieldType != null) {
+				values[i] = fieldType.normalize(value);
+			} else {
+				values[i] = value == null ? null : value.toString();
+			}
+		}
+	}
+
+	/**
+	 * 等価の条件を取得します
+	 *
+	 * @return 等価の条件
+	 */
+	Map<String, Object> getParams() {
+		return params;
+	}
+
+	/**
+	 * 条件が無いか判定します
+	 *
+	 * @return 条件が無い場合はtrue
+	 */
+	boolean isEmpty() {
+		return matcher.isEmpty() && conditions.length == 0;
+	}
+
+	/**
+	 * 等価以外の条件を取得します
+	 *
+	 * @return 等価以外の条件
+	 */
+	DbCondition[] getConditions() {
+		return conditions;
+	}
+
+	/**
+	 * レコードが条件に合うか判定します
+	 *
+	 * @param record
+	 *            レコード
+	 * @return 条件に合う場合はtrue
+	 */
+	boolean matches(Map<String, Object> record) {
+		if (!matcher.matches(record)) {
+			return false;
+		}
+		for (int i = 0; i < conditions.length; i++) {
+			if (!conditions[i].matches(record, values[i], fieldTypes[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 昇順の行番号の共通部分を取得します
+	 *
+	 * @param rowNos1
+	 *            行番号1
+	 * @param rowNos2
+	 *            行番号2
+	 * @return 共通の行番号
+	 */
+	static long[] intersect(long[] rowNos1, long[] rowNos2) {
+		long[] result = new long[Math.min(rowNos1.length, rowNos2.length)];
+		int size = 0;
+		int i = 0;
+		int j = 0;
+		while (i < rowNos1.length && j < rowNos2.length) {
+			if (rowNos1[i] < rowNos2[j]) {
+				i++;
+			} else if (rowNos2[j] < rowNos1[i]) {
+				j++;
+			} else {
+				result[size++] = rowNos1[i];
+				i++;
+				j++;
+			}
+		}
+		return size == result.length ? result : Arrays.copyOf(result, size);
+	}
+
+}
@@ -0,0 +1,388 @@
+package com.purejadeite.db;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * テーブル毎に共有するフィールドの並び({@link Layout})と値の配列で保持するレコードです。
+ * フィールド名とその位置はレイアウトが保持する為、レコード毎にはフィールド名のハッシュ表を持ちません。
+ * 同じレイアウトのレコードの複製は値の配列の複製のみで行えます。
+ * フィールド名にnullは使用できません。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+class DbRecord extends AbstractMap<String, Object> {
+
+	// フィールドが無いことを表す値
+	private static final Object ABSENT = new Object();
+
+	// 値のあるフィールドが並びの幅のこの割合未満のレコードは疎とみなす(1/SPARSE_RATIO)
+	private static final int SPARSE_RATIO = 4;
+
+	// 疎かどうかを判定する並びの幅の下限
+	private static final int SPARSE_MIN_WIDTH = 16;
+
+	// フィールドの並び
+	private Layout layout;
+
+	// フィールドの並びに対応する値
+	private Object[] values;
+
+	// フィールドの数
+	private int size;
+
+	private DbRecord(Layout layout, Object[] values, int size) {
+		this.layout = layout;
+		this.values = values;
+		this.size = size;
+	}
+
+	/**
+	 * マップの内容をレイアウトに従って保持するレコードを作成します。
+	 * レイアウトに無いフィールドがある場合は、フィールドを追加したレイアウトを使用します
+	 *
+	 * @param layout
+	 *            レイアウト
+	 * @param record
+	 *            マップ
+	 * @return レコード
+	 */
+	static DbRecord of(Layout layout, Map<String, Object> record) {
+		if (record instanceof DbRecord && ((DbRecord) record).layout == layout) {
+			return ((DbRecord) record).copy();
+		}
+		for (String fieldName : record.keySet()) {
+			if (fieldName != null && layout.indexOf(fieldName) < 0) {
+				layout = layout.with(fieldName);
+			}
+		}
+		Object[] values = new Object[layout.size()];
+		Arrays.fill(values, ABSENT);
+		int size = 0;
+		for (Map.Entry<String, Object> field : record.entrySet()) {
+			if (field.getKey() != null) {
+				values[layout.indexOf(field.getKey())] = field.getValue();
+				size++;
+			}
+		}
+		return new DbRecord(layout, values, size);
+	}
+
+	/**
+	 * レコードを並びで保持すると、値の無いフィールドが大半を占めるか判定します。
+	 * フィールドの異なるレコードが混在するテーブルで、並びが全てのフィールドの和へ広がり、
+	 * 全てのレコードが広がった幅の配列を持つことを避ける為に使用します
+	 *
+	 * @param layout
+	 *            レイアウト
+	 * @param record
+	 *            マップ
+	 * @return 疎な場合はtrue
+	 */
+	static boolean isSparse(Layout layout, Map<String, Object> record) {
+		int width = layout.size();
+		for (String fieldName : record.keySet()) {
+			if (fieldName != null && layout.indexOf(fieldName) < 0) {
+				width++;
+			}
+		}
+		return SPARSE_MIN_WIDTH <= width && record.size() * SPARSE_RATIO < width;
+	}
+
+	/**
+	 * 返却用にレコードを複製します。
+	 * 共有のレイアウトを持つレコードは値の配列のみを複製します
+	 *
+	 * @param record
+	 *            レコード
+	 * @return 複製したレコード
+	 */
+	static Map<String, Object> copyOf(Map<String, Object> record) {
+		if (record instanceof DbRecord) {
+			return ((DbRecord) record).copy();
+		}
+		return new HashMap<>(record);
+	}
+
+	/**
+	 * レコードを複製します
+	 *
+	 * @return 複製したレコード
+	 */
+	DbRecord copy() {
+		return new DbRecord(layout, values.clone(), size);
+	}
+
+	/**
+	 * フィールドの並びを取得します
+	 *
+	 * @return レイアウト
+	 */
+	Layout getLayout() {
+		return layout;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		int index = layout.indexOf(key);
+		return 0 <= index && values[index] != ABSENT;
+	}
+
+	@Override
+	public Object get(Object key) {
+		int index = layout.indexOf(key);
+		if (index < 0) {
+			return null;
+		}
+		Object value = values[index];
+		return value == ABSENT ? null : value;
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		if (key == null) {
+			throw new NullPointerException("フィールド名がnullです");
+		}
+		int index = layout.indexOf(key);
+		if (index < 0) {
+			// フィールドを追加したレイアウトへ移る
+			layout = layout.with(key);
+			index = layout.indexOf(key);
+			int length = values.length;
+			values = Arrays.copyOf(values, layout.size());
+			Arrays.fill(values, length, values.length, ABSENT);
+		}
+		Object old = values[index];
+		values[index] = value;
+		if (old == ABSENT) {
+			size++;
+			return null;
+		}
+		return old;
+	}
+
+	@Override
+	public Object remove(Object key) {
+		int index = layout.indexOf(key);
+		if (index < 0 || values[index] == ABSENT) {
+			return null;
+		}
+		Object old = values[index];
+		values[index] = ABSENT;
+		size--;
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(values, ABSENT);
+		size = 0;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * 値のあるフィールドを並び順に返すイテレーターです
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+
+		// 次の位置
+		private int next = advance(0);
+
+		// 最後に返した位置
+		private int last = -1;
+
+		@Override
+		public boolean hasNext() {
+			return next < values.length;
+		}
+
+		@Override
+		public Map.Entry<String, Object> next() {
+			if (values.length <= next) {
+				throw new NoSuchElementException();
+			}
+			last = next;
+			next = advance(next + 1);
+			return new Entry(last);
+		}
+
+		@Override
+		public void remove() {
+			if (last < 0 || values[last] == ABSENT) {
+				throw new IllegalStateException();
+			}
+			values[last] = ABSENT;
+			size--;
+			last = -1;
+		}
+
+		// 指定の位置以降で値のある位置を取得する
+		private int advance(int index) {
+			while (index < values.length && values[index] == ABSENT) {
+				index++;
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * 値の配列を参照するフィールドです
+	 */
+	private class Entry implements Map.Entry<String, Object> {
+
+		private final int index;
+
+		Entry(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public String getKey() {
+			return layout.getName(index);
+		}
+
+		@Override
+		public Object getValue() {
+			return values[index];
+		}
+
+		@Override
+		public Object setValue(Object value) {
+			Object old = values[index];
+			values[index] = value;
+			return old;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+			return Objects.equals(getKey(), other.getKey())
+					&& Objects.equals(getValue(), other.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+		}
+
+		@Override
+		public String toString() {
+			return getKey() + "=" + getValue();
+		}
+	}
+
+	/**
+	 * フィールドの並びです。一度作成した並びは変更せず、
+	 * フィールドを追加する場合は追加した並びを作成して再利用します
+	 */
+	static final class Layout {
+
+		// 位置->フィールド名
+		private final String[] names;
+
+		// フィールド名->位置
+		private final Map<String, Integer> indexes;
+
+		// 追加するフィールド名->追加した並び
+		private final ConcurrentMap<String, Layout> transitions = new ConcurrentHashMap<>();
+
+		/**
+		 * フィールドの無い並びを作成します
+		 */
+		Layout() {
+			this.names = new String[0];
+			this.indexes = new HashMap<>();
+		}
+
+		private Layout(Layout parent, String name) {
+			this.names = Arrays.copyOf(parent.names, parent.names.length + 1);
+			this.names[parent.names.length] = name;
+			this.indexes = new HashMap<>(parent.indexes);
+			this.indexes.put(name, Integer.valueOf(parent.names.length));
+		}
+
+		/**
+		 * フィールドを末尾に追加した並びを取得します
+		 *
+		 * @param name
+		 *            フィールド名
+		 * @return 追加した並び
+		 */
+		Layout with(String name) {
+			Layout layout = transitions.get(name);
+			if (layout == null) {
+				layout = new Layout(this, name);
+				Layout existing = transitions.putIfAbsent(name, layout);
+				if (existing != null) {
+					layout = existing;
+				}
+			}
+			return layout;
+		}
+
+		/**
+		 * フィールドの位置を取得します
+		 *
+		 * @param name
+		 *            フィールド名
+		 * @return 位置。無い場合は-1
+		 */
+		int indexOf(Object name) {
+			Integer index = indexes.get(name);
+			return index == null ? -1 : index.intValue();
+		}
+
+		/**
+		 * 位置のフィールド名を取得します
+		 *
+		 * @param index
+		 *            位置
+		 * @return フィールド名
+		 */
+		String getName(int index) {
+			return names[index];
+		}
+
+		/**
+		 * フィールドの数を取得します
+		 *
+		 * @return フィールドの数
+		 */
+		int size() {
+			return names.length;
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+package com.purejadeite.db;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * テーブルが保持するレコードを複製せずに参照する、検索・削除の結果のレコードです。
+ * 参照のみの間はテーブルのレコードを共有し、初めて変更された時にレコードを複製して以降は複製を変更します。
+ * テーブルのレコードは置き換えのみで変更されない為、共有している間も取得した時点の値を返します。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+class DbRecordView extends AbstractMap<String, Object> {
+
+	// 参照しているレコード。変更された後は複製したレコード
+	private Map<String, Object> record;
+
+	// 複製済みか
+	private boolean copied = false;
+
+	DbRecordView(Map<String, Object> record) {
+		this.record = record;
+	}
+
+	// 変更する為にレコードを複製する
+	private Map<String, Object> own() {
+		if (!copied) {
+			record = DbRecord.copyOf(record);
+			copied = true;
+		}
+		return record;
+	}
+
+	@Override
+	public int size() {
+		return record.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return record.isEmpty();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return record.containsKey(key);
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		return record.containsValue(value);
+	}
+
+	@Override
+	public Object get(Object key) {
+		return record.get(key);
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		return own().put(key, value);
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends Object> m) {
+		own().putAll(m);
+	}
+
+	@Override
+	public Object remove(Object key) {
+		if (!copied && !record.containsKey(key)) {
+			return null;
+		}
+		return own().remove(key);
+	}
+
+	@Override
+	public void clear() {
+		own().clear();
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		if (copied) {
+			return record.entrySet();
+		}
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				if (copied) {
+					return record.entrySet().iterator();
+				}
+				return new SharedIterator(record.entrySet().iterator());
+			}
+
+			@Override
+			public int size() {
+				return record.size();
+			}
+		};
+	}
+
+	/**
+	 * 共有しているレコードを走査するイテレーターです。
+	 * 走査中の変更は複製したレコードへ行い、走査は共有していたレコードのまま続けます
+	 */
+	private class SharedIterator implements Iterator<Map.Entry<String, Object>> {
+
+		private final Iterator<Map.Entry<String, Object>> iterator;
+
+		// 最後に返したフィールド名
+		private String last = null;
+
+		private boolean removable = false;
+
+		SharedIterator(Iterator<Map.Entry<String, Object>> iterator) {
+			this.iterator = iterator;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return iterator.hasNext();
+		}
+
+		@Override
+		public Map.Entry<String, Object> next() {
+			Map.Entry<String, Object> entry = iterator.next();
+			last = entry.getKey();
+			removable = true;
+			return new SimpleEntry<String, Object>(entry) {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public Object setValue(Object value) {
+					own().put(getKey(), value);
+					return super.setValue(value);
+				}
+			};
+		}
+
+		@Override
+		public void remove() {
+			if (!removable) {
+				throw new IllegalStateException();
+			}
+			own().remove(last);
+			removable = false;
+		}
+	}
+
+}
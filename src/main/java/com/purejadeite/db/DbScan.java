@@ -0,0 +1,116 @@
+package com.purejadeite.db;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * テーブルを分割して並列に走査するタスクです。
+ * 分割した範囲毎に条件に合う行番号を求め、テーブルの順序のまま連結します。
+ * 走査中のテーブルは変更されない前提です。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+class DbScan extends RecursiveTask<long[]> {
+
+	private static final long serialVersionUID = 1L;
+
+	// 1スレッドで走査するレコード数。DbSpliteratorの分割もこの単位で行う
+	static final int CHUNK_SIZE = 4096;
+
+	// 走査するテーブル
+	private final DbTable table;
+
+	// 全件を走査する場合の行番号とレコード
+	private final DbTable.Snapshot snapshot;
+
+	// 判定する行番号。全件を走査する場合はnull
+	private final long[] rowNos;
+
+	// 検索条件
+	private final DbQuery query;
+
+	// 走査する範囲の開始位置
+	private final int from;
+
+	// 走査する範囲の終了位置(この位置を含まない)
+	private final int to;
+
+	private DbScan(DbTable table, DbTable.Snapshot snapshot, long[] rowNos,
+			DbQuery query, int from, int to) {
+		this.table = table;
+		this.snapshot = snapshot;
+		this.rowNos = rowNos;
+		this.query = query;
+		this.from = from;
+		this.to = to;
+	}
+
+	/**
+	 * テーブルの全件を並列に走査します
+	 *
+	 * @param pool
+	 *            使用するスレッドプール
+	 * @param table
+	 *            テーブル
+	 * @param query
+	 *            検索条件
+	 * @return 条件に合う行番号(テーブルの順)
+	 */
+	static long[] scan(ForkJoinPool pool, DbTable table, DbQuery query) {
+		DbTable.Snapshot snapshot = table.getSnapshot();
+		return pool.invoke(new DbScan(table, snapshot, null, query, 0, snapshot.size()));
+	}
+
+	/**
+	 * インデックスで絞り込んだ行番号を並列に判定します
+	 *
+	 * @param pool
+	 *            使用するスレッドプール
+	 * @param table
+	 *            テーブル
+	 * @param query
+	 *            検索条件
+	 * @param candidates
+	 *            候補となる行番号(テーブルの順)
+	 * @return 条件に合う行番号(テーブルの順)
+	 */
+	static long[] scan(ForkJoinPool pool, DbTable table, DbQuery query, long[] candidates) {
+		return pool.invoke(new DbScan(table, null, candidates, query, 0, candidates.length));
+	}
+
+	@Override
+	protected long[] compute() {
+		if (to - from <= CHUNK_SIZE) {
+			long[] matched = new long[to - from];
+			int size = 0;
+			for (int i = from; i < to; i++) {
+				long rowNo;
+				Map<String, Object> record;
+				if (rowNos == null) {
+					rowNo = snapshot.getRowNo(i);
+					record = snapshot.getRecord(i);
+				} else {
+					rowNo = rowNos[i];
+					record = table.get(rowNo);
+				}
+				if (query.matches(record)) {
+					matched[size++] = rowNo;
+				}
+			}
+			return size == matched.length ? matched : Arrays.copyOf(matched, size);
+		}
+		int middle = (from + to) >>> 1;
+		DbScan left = new DbScan(table, snapshot, rowNos, query, from, middle);
+		DbScan right = new DbScan(table, snapshot, rowNos, query, middle, to);
+		right.fork();
+		long[] leftRowNos = left.compute();
+		long[] rightRowNos = right.join();
+		long[] merged = Arrays.copyOf(leftRowNos, leftRowNos.length + rightRowNos.length);
+		System.arraycopy(rightRowNos, 0, merged, leftRowNos.length, rightRowNos.length);
+		return merged;
+	}
+
+}
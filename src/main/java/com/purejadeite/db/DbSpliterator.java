@@ -0,0 +1,152 @@
+package com.purejadeite.db;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * テーブルのある時点のレコードを、条件に合うか判定しながら順に返すSpliteratorです。
+ * 対象のレコードは作成時に確定し、判定は読み進める時に行います。
+ * メモリへマップしたテーブルのレコードは、読み進める時にファイルの内容から作成します。
+ * 並列に処理する場合は{@link DbScan}と同様に範囲を半分ずつに分割します。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+class DbSpliterator implements Spliterator<Map<String, Object>> {
+
+	// 対象のレコード(位置で参照できるリスト)
+	private final List<Map<String, Object>> records;
+
+	// 検索条件
+	private final DbQuery query;
+
+	// 次に判定する位置
+	private int from;
+
+	// 範囲の終了位置(この位置を含まない)
+	private final int to;
+
+	private DbSpliterator(List<Map<String, Object>> records, DbQuery query, int from, int to) {
+		this.records = records;
+		this.query = query;
+		this.from = from;
+		this.to = to;
+	}
+
+	/**
+	 * テーブルの全件を対象に作成します
+	 *
+	 * @param table
+	 *            テーブル
+	 * @param query
+	 *            検索条件
+	 * @return Spliterator
+	 */
+	static DbSpliterator create(DbTable table, DbQuery query) {
+		List<Map<String, Object>> records = table.getSnapshot().getRecords();
+		return new DbSpliterator(records, query, 0, records.size());
+	}
+
+	/**
+	 * インデックスで絞り込んだ行番号を対象に作成します。
+	 * 行番号のレコードは作成時に取得します。メモリへマップしたテーブルは変更されない為、読み進める時に取得します
+	 *
+	 * @param table
+	 *            テーブル
+	 * @param query
+	 *            検索条件
+	 * @param candidates
+	 *            候補となる行番号(テーブルの順)
+	 * @return Spliterator
+	 */
+	static DbSpliterator create(DbTable table, DbQuery query, long[] candidates) {
+		if (table.isMapped()) {
+			return new DbSpliterator(new RowList(table, candidates), query, 0, candidates.length);
+		}
+		@SuppressWarnings("unchecked")
+		Map<String, Object>[] records = (Map<String, Object>[]) new Map<?, ?>[candidates.length];
+		for (int i = 0; i < candidates.length; i++) {
+			records[i] = table.get(candidates[i]);
+		}
+		return new DbSpliterator(Arrays.asList(records), query, 0, records.length);
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super Map<String, Object>> action) {
+		while (from < to) {
+			Map<String, Object> record = records.get(from++);
+			if (query.isEmpty() || query.matches(record)) {
+				// レコードは更新時に置き換えられる為、そのまま共有できる
+				action.accept(Collections.unmodifiableMap(record));
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super Map<String, Object>> action) {
+		boolean all = query.isEmpty();
+		for (; from < to; from++) {
+			Map<String, Object> record = records.get(from);
+			if (all || query.matches(record)) {
+				action.accept(Collections.unmodifiableMap(record));
+			}
+		}
+	}
+
+	@Override
+	public Spliterator<Map<String, Object>> trySplit() {
+		// 分割しない範囲のレコード数はDbScanと揃える
+		if (to - from <= DbScan.CHUNK_SIZE) {
+			return null;
+		}
+		int middle = (from + to) >>> 1;
+		DbSpliterator left = new DbSpliterator(records, query, from, middle);
+		from = middle;
+		return left;
+	}
+
+	@Override
+	public long estimateSize() {
+		// 条件に合わないレコードも含めた上限
+		return to - from;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | NONNULL | IMMUTABLE;
+	}
+
+	/**
+	 * 行番号のレコードを参照する度にテーブルから取得するリストです
+	 */
+	private static class RowList extends AbstractList<Map<String, Object>> implements RandomAccess {
+
+		private final DbTable table;
+
+		private final long[] rowNos;
+
+		RowList(DbTable table, long[] rowNos) {
+			this.table = table;
+			this.rowNos = rowNos;
+		}
+
+		@Override
+		public Map<String, Object> get(int index) {
+			return table.get(rowNos[index]);
+		}
+
+		@Override
+		public int size() {
+			return rowNos.length;
+		}
+	}
+
+}
@@ -0,0 +1,570 @@
+package com.purejadeite.db;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * メモリ上に保持するテーブルです。
+ * レコードには追加された順に行番号を振り、フィールドのインデックスは行番号を保持します。
+ * レコードはテーブルで共有するフィールドの並びを持つ{@link DbRecord}として保持し
+ * (並びの一部しか使わない疎なレコードは並びを広げずにマップのまま保持します)、
+ * 列で保持する場合はフィールド毎の配列({@link DbColumns})で保持し、
+ * 読み込み専用の場合はメモリへマップしたファイル({@link DbMappedTable})から都度読み込みます。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+class DbTable {
+
+	// テーブル名
+	private final String name;
+
+	// 行番号->レコード
+	private final Map<Long, Map<String, Object>> rows;
+
+	// フィールド名->インデックス
+	private final Map<String, DbIndex> indexes = new HashMap<>();
+
+	// レコードのフィールドの並び(フィールドが追加される度に広がる)
+	private DbRecord.Layout layout = new DbRecord.Layout();
+
+	// 次の行番号
+	private long nextRowNo = 0;
+
+	// コミットされていない変更
+	private final List<DbChange> changes = new ArrayList<>();
+
+	// コミットされていない変更のある行番号
+	private final Set<Long> dirtyRowNos = new LinkedHashSet<>();
+
+	// 複製元のテーブルのバージョン
+	private long baseVersion = 0;
+
+	// フィールド名->型。nullの場合は文字列で比較する
+	private final Map<String, DbFieldType> fieldTypes;
+
+	// 分割して走査する為の行番号とレコードの配列。変更があった場合は破棄する
+	private volatile Snapshot snapshot = null;
+
+	DbTable(String name, Map<String, String> indexTypes) {
+		this(name, indexTypes, null);
+	}
+
+	DbTable(String name, Map<String, String> indexTypes,
+			Map<String, DbFieldType> fieldTypes) {
+		this(name, indexTypes, fieldTypes, null);
+	}
+
+	/**
+	 * テーブルを作成します
+	 *
+	 * @param name
+	 *            テーブル名
+	 * @param indexTypes
+	 *            フィールド名->インデックスの種類
+	 * @param fieldTypes
+	 *            フィールド名->型。nullの場合は文字列で比較する
+	 * @param columnTypes
+	 *            列で保持するフィールド名->型。nullの場合はレコード毎のマップで保持する
+	 */
+	DbTable(String name, Map<String, String> indexTypes,
+			Map<String, DbFieldType> fieldTypes, Map<String, DbFieldType> columnTypes) {
+		this(columnTypes == null ? new LinkedHashMap<Long, Map<String, Object>>()
+				: new DbColumns(columnTypes), name, fieldTypes);
+		for (Map.Entry<String, String> indexType : indexTypes.entrySet()) {
+			String fieldName = indexType.getKey();
+			indexes.put(fieldName, new DbIndex(fieldName, indexType.getValue(),
+					getFieldType(fieldName)));
+		}
+	}
+
+	/**
+	 * メモリへマップしたファイルを参照する読み込み専用のテーブルを作成します
+	 *
+	 * @param name
+	 *            テーブル名
+	 * @param mapped
+	 *            メモリへマップしたファイル
+	 * @param fieldTypes
+	 *            フィールド名->型。nullの場合は文字列で比較する
+	 */
+	DbTable(String name, DbMappedTable mapped, Map<String, DbFieldType> fieldTypes) {
+		this(mapped.getRows(), name, fieldTypes);
+		indexes.putAll(mapped.getIndexes());
+		nextRowNo = mapped.size();
+	}
+
+	private DbTable(Map<Long, Map<String, Object>> rows, String name,
+			Map<String, DbFieldType> fieldTypes) {
+		this.name = name;
+		this.fieldTypes = fieldTypes;
+		this.rows = rows;
+	}
+
+	/**
+	 * 変更を加える為の複製を作成します。
+	 * レコードは置き換えのみで変更されない為、レコード自体は複製元と共有します。
+	 *
+	 * @param version
+	 *            複製元のテーブルのバージョン
+	 * @return 複製したテーブル
+	 */
+	DbTable fork(long version) {
+		DbTable fork;
+		if (rows instanceof DbColumns) {
+			fork = new DbTable(((DbColumns) rows).fork(), name, fieldTypes);
+		} else if (isMapped()) {
+			// 変更されない為、複製せずに共有する
+			fork = new DbTable(rows, name, fieldTypes);
+		} else {
+			fork = new DbTable(new LinkedHashMap<>(rows), name, fieldTypes);
+		}
+		for (Map.Entry<String, DbIndex> index : indexes.entrySet()) {
+			fork.indexes.put(index.getKey(), index.getValue().copy());
+		}
+		fork.layout = layout;
+		fork.nextRowNo = nextRowNo;
+		fork.snapshot = snapshot;
+		fork.baseVersion = version;
+		return fork;
+	}
+
+	/**
+	 * 列で保持しているか判定します
+	 *
+	 * @return 列で保持している場合はtrue
+	 */
+	boolean isColumnar() {
+		return rows instanceof DbColumns;
+	}
+
+	/**
+	 * メモリへマップしたファイルを参照する読み込み専用のテーブルか判定します
+	 *
+	 * @return 読み込み専用の場合はtrue
+	 */
+	boolean isMapped() {
+		return rows instanceof DbMappedTable.Rows;
+	}
+
+	/**
+	 * 複製元のテーブルのバージョンを取得します
+	 *
+	 * @return バージョン
+	 */
+	long getBaseVersion() {
+		return baseVersion;
+	}
+
+	/**
+	 * 型付きで比較するか判定します
+	 *
+	 * @return 型付きで比較する場合はtrue。文字列で比較する場合はfalse
+	 */
+	boolean isTyped() {
+		return fieldTypes != null;
+	}
+
+	/**
+	 * フィールドの型を取得します
+	 *
+	 * @param fieldName
+	 *            フィールド名
+	 * @return 型。文字列で比較する場合はnull、宣言されていない場合は{@link DbFieldType#ANY}
+	 */
+	DbFieldType getFieldType(String fieldName) {
+		if (fieldTypes == null) {
+			return null;
+		}
+		DbFieldType fieldType = fieldTypes.get(fieldName);
+		return fieldType == null ? DbFieldType.ANY : fieldType;
+	}
+
+	/**
+	 * 検索条件と同じ規則で比較できる値へ変換します。
+	 * 変換した値が等しい場合、検索条件としても一致します。
+	 *
+	 * @param fieldName
+	 *            フィールド名
+	 * @param value
+	 *            値
+	 * @return 変換した値
+	 */
+	Object toMatchKey(String fieldName, Object value) {
+		if (value == null) {
+			return null;
+		}
+		if (fieldTypes == null) {
+			return value.toString();
+		}
+		return getFieldType(fieldName).toKey(value);
+	}
+
+	/**
+	 * テーブル名を取得します
+	 *
+	 * @return テーブル名
+	 */
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * レコード件数を取得します
+	 *
+	 * @return 件数
+	 */
+	int size() {
+		return rows.size();
+	}
+
+	/**
+	 * レコードが無いか判定します
+	 *
+	 * @return レコードが無い場合はtrue
+	 */
+	boolean isEmpty() {
+		return rows.isEmpty();
+	}
+
+	/**
+	 * 行番号とレコードの組を追加された順に取得します
+	 *
+	 * @return 行番号とレコードの組
+	 */
+	Set<Map.Entry<Long, Map<String, Object>>> entries() {
+		return rows.entrySet();
+	}
+
+	/**
+	 * レコードを追加された順に取得します
+	 *
+	 * @return レコード
+	 */
+	Collection<Map<String, Object>> records() {
+		return rows.values();
+	}
+
+	/**
+	 * 全てのレコードをリストとして取得します
+	 *
+	 * @return レコードのリスト
+	 */
+	List<Map<String, Object>> toList() {
+		return new ArrayList<>(rows.values());
+	}
+
+	/**
+	 * 分割して走査する為に、行番号とレコードを追加された順に位置で参照できるものを取得します。
+	 * 配列は次に変更されるまで使いまわします。
+	 * メモリへマップしたテーブルは配列を作らず、参照する度にファイルの内容からレコードを作成します。
+	 *
+	 * @return 行番号とレコード
+	 */
+	Snapshot getSnapshot() {
+		if (isMapped()) {
+			// 変更されず行番号は0からの連番の為、ヒープへ展開せずに参照する
+			return new Snapshot(rows, rows.size());
+		}
+		Snapshot current = snapshot;
+		if (current == null) {
+			current = new Snapshot(rows);
+			snapshot = current;
+		}
+		return current;
+	}
+
+	/**
+	 * 行番号のレコードを取得します
+	 *
+	 * @param rowNo
+	 *            行番号
+	 * @return レコード
+	 */
+	Map<String, Object> get(long rowNo) {
+		return rows.get(Long.valueOf(rowNo));
+	}
+
+	/**
+	 * レコードを追加します
+	 *
+	 * @param record
+	 *            レコード
+	 * @return 行番号
+	 */
+	long add(Map<String, Object> record) {
+		record = toRecord(record);
+		long rowNo = nextRowNo;
+		// インデックスへ登録できなかった場合はテーブルを変更しない
+		addIndexes(rowNo, record);
+		nextRowNo++;
+		rows.put(Long.valueOf(rowNo), record);
+		snapshot = null;
+		return rowNo;
+	}
+
+	/**
+	 * 行番号のレコードを置き換えます
+	 *
+	 * @param rowNo
+	 *            行番号
+	 * @param record
+	 *            新しいレコード
+	 * @return 置き換えられたレコード
+	 */
+	Map<String, Object> replace(long rowNo, Map<String, Object> record) {
+		Long key = Long.valueOf(rowNo);
+		Map<String, Object> old = rows.get(key);
+		if (old == null) {
+			return null;
+		}
+		record = toRecord(record);
+		removeIndexes(rowNo, old);
+		try {
+			addIndexes(rowNo, record);
+		} catch (RuntimeException e) {
+			// 置き換える前の状態へ戻す
+			addIndexes(rowNo, old);
+			throw e;
+		}
+		rows.put(key, record);
+		snapshot = null;
+		return old;
+	}
+
+	/**
+	 * 行番号のレコードを削除します
+	 *
+	 * @param rowNo
+	 *            行番号
+	 * @return 削除したレコード
+	 */
+	Map<String, Object> remove(long rowNo) {
+		Map<String, Object> old = rows.remove(Long.valueOf(rowNo));
+		if (old != null) {
+			snapshot = null;
+			removeIndexes(rowNo, old);
+		}
+		return old;
+	}
+
+	// 全てのインデックスへ登録する。途中で失敗した場合は登録済みのインデックスから削除する
+	private void addIndexes(long rowNo, Map<String, Object> record) {
+		List<DbIndex> added = new ArrayList<>(indexes.size());
+		try {
+			for (DbIndex index : indexes.values()) {
+				index.add(rowNo, record);
+				added.add(index);
+			}
+		} catch (RuntimeException e) {
+			for (DbIndex index : added) {
+				index.remove(rowNo, record);
+			}
+			throw e;
+		}
+	}
+
+	// 全てのインデックスから削除する
+	private void removeIndexes(long rowNo, Map<String, Object> record) {
+		for (DbIndex index : indexes.values()) {
+			index.remove(rowNo, record);
+		}
+	}
+
+	// 保持する形式のレコードへ変換する。列で保持する場合は列へ分解する為そのまま
+	private Map<String, Object> toRecord(Map<String, Object> record) {
+		if (rows instanceof DbColumns) {
+			return record;
+		}
+		if (DbRecord.isSparse(layout, record)) {
+			Map<String, Object> sparse = new HashMap<>(record);
+			sparse.remove(null);
+			return sparse;
+		}
+		DbRecord dbRecord = DbRecord.of(layout, record);
+		layout = dbRecord.getLayout();
+		return dbRecord;
+	}
+
+	/**
+	 * コミットされていない変更を記録します
+	 *
+	 * @param rowNo
+	 *            変更した行番号
+	 * @param change
+	 *            変更
+	 */
+	void addChange(long rowNo, DbChange change) {
+		changes.add(change);
+		dirtyRowNos.add(Long.valueOf(rowNo));
+	}
+
+	/**
+	 * コミットされていない変更があるか判定します
+	 *
+	 * @return 変更がある場合はtrue
+	 */
+	boolean isDirty() {
+		return !changes.isEmpty();
+	}
+
+	/**
+	 * コミットされていない変更のある行番号を変更順に取得します。
+	 * 削除された行の行番号も含みます。
+	 *
+	 * @return 行番号
+	 */
+	Set<Long> getDirtyRowNos() {
+		return Collections.unmodifiableSet(dirtyRowNos);
+	}
+
+	/**
+	 * コミットされていない変更を発生順に取得します
+	 *
+	 * @return 変更
+	 */
+	List<DbChange> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * コミットされていない変更を破棄します
+	 */
+	void clearChanges() {
+		changes.clear();
+		dirtyRowNos.clear();
+	}
+
+	/**
+	 * 全てのインデックスを取得します
+	 *
+	 * @return インデックス
+	 */
+	Collection<DbIndex> getIndexes() {
+		return indexes.values();
+	}
+
+	/**
+	 * フィールドのインデックスを取得します
+	 *
+	 * @param fieldName
+	 *            フィールド名
+	 * @return インデックス。無い場合はnull
+	 */
+	DbIndex getIndex(String fieldName) {
+		return indexes.get(fieldName);
+	}
+
+	/**
+	 * ある時点の行番号とレコードを追加された順に位置で参照するクラスです
+	 */
+	static class Snapshot {
+
+		// 行番号。nullの場合は位置が行番号
+		private final long[] rowNos;
+
+		// レコード。nullの場合は参照する度に行番号から取得する
+		private final Map<String, Object>[] records;
+
+		// 行番号->レコード。配列で保持する場合はnull
+		private final Map<Long, Map<String, Object>> rows;
+
+		// 件数
+		private final int size;
+
+		@SuppressWarnings("unchecked")
+		Snapshot(Map<Long, Map<String, Object>> rows) {
+			this.rows = null;
+			size = rows.size();
+			rowNos = new long[size];
+			records = (Map<String, Object>[]) new Map<?, ?>[size];
+			int i = 0;
+			for (Map.Entry<Long, Map<String, Object>> row : rows.entrySet()) {
+				rowNos[i] = row.getKey().longValue();
+				records[i] = row.getValue();
+				i++;
+			}
+		}
+
+		// 行番号が0からの連番の変更されないレコードを配列にせず参照する
+		Snapshot(Map<Long, Map<String, Object>> rows, int size) {
+			this.rows = rows;
+			this.size = size;
+			rowNos = null;
+			records = null;
+		}
+
+		/**
+		 * 件数を取得します
+		 *
+		 * @return 件数
+		 */
+		int size() {
+			return size;
+		}
+
+		/**
+		 * 位置の行番号を取得します
+		 *
+		 * @param index
+		 *            位置
+		 * @return 行番号
+		 */
+		long getRowNo(int index) {
+			return rowNos == null ? index : rowNos[index];
+		}
+
+		/**
+		 * 位置のレコードを取得します
+		 *
+		 * @param index
+		 *            位置
+		 * @return レコード
+		 */
+		Map<String, Object> getRecord(int index) {
+			return records == null ? rows.get(Long.valueOf(index)) : records[index];
+		}
+
+		/**
+		 * レコードを位置で参照するリストを取得します
+		 *
+		 * @return レコードのリスト
+		 */
+		List<Map<String, Object>> getRecords() {
+			if (records != null) {
+				return Arrays.asList(records);
+			}
+			return new RecordList();
+		}
+
+		/**
+		 * 参照する度にレコードを取得するリストです
+		 */
+		private class RecordList extends AbstractList<Map<String, Object>> implements RandomAccess {
+
+			@Override
+			public Map<String, Object> get(int index) {
+				if (index < 0 || size <= index) {
+					throw new IndexOutOfBoundsException(String.valueOf(index));
+				}
+				return getRecord(index);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,60 @@
+package com.purejadeite.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * テーブルのファイルの読み書きを行うインターフェイスです。
+ * 実装は{@link DbTableCodecs#register(DbTableCodec)}で登録し、
+ * スキーマの「format」または{@link Db#setTableFormat(String)}で名称を指定して使用します。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+public interface DbTableCodec {
+
+	/**
+	 * 形式の名称を取得します
+	 *
+	 * @return 名称
+	 */
+	public String getName();
+
+	/**
+	 * ファイルの拡張子を取得します
+	 *
+	 * @return 拡張子
+	 */
+	public String getExtension();
+
+	/**
+	 * ストリームからレコードを1件ずつ読み込みます
+	 *
+	 * @param in
+	 *            入力ストリーム
+	 * @param consumer
+	 *            読み込んだレコードを受け取る処理
+	 * @throws IOException
+	 *             読み込みに失敗した場合
+	 */
+	public void read(InputStream in, Consumer<Map<String, Object>> consumer)
+			throws IOException;
+
+	/**
+	 * レコードを1件ずつストリームへ書き出します
+	 *
+	 * @param out
+	 *            出力ストリーム
+	 * @param records
+	 *            レコード
+	 * @throws IOException
+	 *             書き出しに失敗した場合
+	 */
+	public void write(OutputStream out, Collection<Map<String, Object>> records)
+			throws IOException;
+
+}
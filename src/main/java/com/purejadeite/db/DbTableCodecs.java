@@ -0,0 +1,295 @@
+package com.purejadeite.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.purejadeite.FileIoException;
+
+/**
+ * テーブルのファイル形式を管理するクラスです。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+public class DbTableCodecs {
+
+	/**
+	 * ロガー
+	 */
+	private static final Logger LOGGER = LoggerFactory.getLogger(DbTableCodecs.class);
+
+	// 名称->形式
+	private static final Map<String, DbTableCodec> CODECS = new ConcurrentHashMap<>();
+
+	// 拡張子->形式
+	private static final Map<String, DbTableCodec> EXTENSIONS = new ConcurrentHashMap<>();
+
+	static {
+		register(new JsonTableCodec());
+		register(new BinaryTableCodec());
+	}
+
+	private DbTableCodecs() {
+	}
+
+	/**
+	 * 形式を登録します
+	 *
+	 * @param codec
+	 *            形式
+	 */
+	public static void register(DbTableCodec codec) {
+		CODECS.put(codec.getName(), codec);
+		EXTENSIONS.put(codec.getExtension(), codec);
+	}
+
+	/**
+	 * 名称の形式を取得します
+	 *
+	 * @param name
+	 *            名称
+	 * @return 形式
+	 */
+	public static DbTableCodec get(String name) {
+		DbTableCodec codec = CODECS.get(name);
+		if (codec == null) {
+			throw new IllegalArgumentException("登録されていない形式です:" + name);
+		}
+		return codec;
+	}
+
+	/**
+	 * ファイルの拡張子から形式を取得します。該当する形式が無い場合はJSON形式です。
+	 *
+	 * @param file
+	 *            ファイル
+	 * @return 形式
+	 */
+	public static DbTableCodec get(File file) {
+		String fileName = file.getName();
+		int index = fileName.lastIndexOf(".");
+		DbTableCodec codec = null;
+		if (0 <= index) {
+			codec = EXTENSIONS.get(fileName.substring(index + 1));
+		}
+		return codec == null ? CODECS.get(JsonTableCodec.NAME) : codec;
+	}
+
+	/**
+	 * 拡張子がいずれかの形式のものか判定します
+	 *
+	 * @param extension
+	 *            拡張子
+	 * @return いずれかの形式の拡張子の場合はtrue
+	 */
+	public static boolean isExtension(String extension) {
+		return EXTENSIONS.containsKey(extension);
+	}
+
+	/**
+	 * テーブルのファイルを別の形式へ変換します。形式はそれぞれの拡張子から判断します。
+	 *
+	 * @param source
+	 *            変換元のファイル
+	 * @param dest
+	 *            変換先のファイル
+	 * @return 変換したレコードの件数
+	 */
+	public static int convert(File source, File dest) {
+		return convert(source, get(source), dest, get(dest));
+	}
+
+	/**
+	 * テーブルのファイルを別の形式へ変換します。
+	 * 変換元のチェックサムを検証し、変換先はテーブルのファイルと同様に置き換えて書き出します。
+	 * 読み込んだレコードは順に書き出す為、全件をメモリ上に保持しません
+	 *
+	 * @param source
+	 *            変換元のファイル
+	 * @param sourceCodec
+	 *            変換元の形式
+	 * @param dest
+	 *            変換先のファイル
+	 * @param destCodec
+	 *            変換先の形式
+	 * @return 変換したレコードの件数
+	 */
+	public static int convert(File source, DbTableCodec sourceCodec, File dest,
+			DbTableCodec destCodec) {
+		SourceRecords records = new SourceRecords(source, sourceCodec);
+		try {
+			DbTableFile.write(dest, destCodec, records);
+		} finally {
+			records.close();
+		}
+		LOGGER.info(source.getAbsolutePath() + "を" + dest.getAbsolutePath() + "へ変換しました");
+		return records.getCount();
+	}
+
+	/**
+	 * 変換元のファイルのレコードを読み込んだ順に返すコレクションです。
+	 * 読み込みは別のスレッドで行い、書き出しが追い付くまで待つ為、保持するのは一定件数までです。
+	 * 件数は形式から求められた場合のみ、ファイルを読み込んで数えます
+	 */
+	private static class SourceRecords extends AbstractCollection<Map<String, Object>> {
+
+		// 読み込みを終えたことを示す
+		private static final Object END = new Object();
+
+		// 読み込み済みで書き出していないレコードの上限
+		private static final int CAPACITY = 1024;
+
+		// 変換元のファイル
+		private final File source;
+
+		// 変換元の形式
+		private final DbTableCodec codec;
+
+		// 件数(数えていない場合は-1)
+		private int size = -1;
+
+		// 最後に返したレコードの件数
+		private int count = 0;
+
+		// 読み込み中のスレッド
+		private final List<Thread> readers = new ArrayList<>();
+
+		SourceRecords(File source, DbTableCodec codec) {
+			this.source = source;
+			this.codec = codec;
+		}
+
+		@Override
+		public Iterator<Map<String, Object>> iterator() {
+			final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(CAPACITY);
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Object last = END;
+					try {
+						read(new Consumer<Map<String, Object>>() {
+							@Override
+							public void accept(Map<String, Object> record) {
+								try {
+									queue.put(record);
+								} catch (InterruptedException e) {
+									// 書き出しを終えた為、読み込みを中断する
+									throw new CancellationException();
+								}
+							}
+						});
+					} catch (CancellationException e) {
+						return;
+					} catch (RuntimeException e) {
+						last = e;
+					}
+					try {
+						queue.put(last);
+					} catch (InterruptedException e) {
+						// 書き出しを終えた為、通知は不要
+					}
+				}
+			}, "db-table-convert");
+			reader.setDaemon(true);
+			synchronized (readers) {
+				readers.add(reader);
+			}
+			count = 0;
+			reader.start();
+			return new Iterator<Map<String, Object>>() {
+
+				// 次に返すレコード(取得していない場合はnull)
+				private Object next;
+
+				@Override
+				public boolean hasNext() {
+					if (next == null) {
+						try {
+							next = queue.take();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new FileIoException(source.getAbsolutePath() + "の読み込み中に割り込まれました", e);
+						}
+					}
+					if (next instanceof RuntimeException) {
+						throw (RuntimeException) next;
+					}
+					return next != END;
+				}
+
+				@Override
+				public Map<String, Object> next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					@SuppressWarnings("unchecked")
+					Map<String, Object> record = (Map<String, Object>) next;
+					next = null;
+					count++;
+					return record;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			if (size < 0) {
+				final int[] counter = { 0 };
+				read(new Consumer<Map<String, Object>>() {
+					@Override
+					public void accept(Map<String, Object> record) {
+						counter[0]++;
+					}
+				});
+				size = counter[0];
+			}
+			return size;
+		}
+
+		/**
+		 * 最後に返したレコードの件数を取得します
+		 *
+		 * @return 件数
+		 */
+		int getCount() {
+			return count;
+		}
+
+		/**
+		 * 読み込み中のスレッドを中断します
+		 */
+		void close() {
+			synchronized (readers) {
+				for (Thread reader : readers) {
+					reader.interrupt();
+				}
+				readers.clear();
+			}
+		}
+
+		// 変換元のファイルを読み込む
+		private void read(Consumer<Map<String, Object>> consumer) {
+			try {
+				DbTableFile.read(source, codec, consumer);
+			} catch (IOException e) {
+				LOGGER.error(source.getAbsolutePath() + "の読み込みに失敗しました");
+				throw new FileIoException(e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,297 @@
+package com.purejadeite.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.purejadeite.FileIoException;
+
+/**
+ * テーブルのファイルを破損しないように読み書きするクラスです。
+ * 一時ファイルへ書き出してディスクへの書き込みを待った後に置き換える為、
+ * 書き出し中に停止しても元のファイルが残ります。
+ * ファイルの末尾には形式に関わらず内容のチェックサムを付け、読み込み時に検証します。
+ *
+ * <pre>
+ * ファイル       : 内容 チェックサム
+ * チェックサム   : "\n#CRC32:" 内容のCRC32(16進数8桁) "\n"
+ * </pre>
+ *
+ * チェックサムの無いファイルは検証せずに読み込みます。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+class DbTableFile {
+
+	/**
+	 * 書き出し中の一時ファイルの拡張子
+	 */
+	static final String TEMP_EXTENSION = "tmp";
+
+	/**
+	 * ロガー
+	 */
+	private static final Logger LOGGER = LoggerFactory.getLogger(DbTableFile.class);
+
+	// チェックサムの開始
+	private static final byte[] TRAILER_PREFIX = "\n#CRC32:".getBytes(StandardCharsets.US_ASCII);
+
+	// チェックサムの長さ
+	private static final int TRAILER_LENGTH = TRAILER_PREFIX.length + 8 + 1;
+
+	private DbTableFile() {
+	}
+
+	/**
+	 * ファイルからレコードを1件ずつ読み込みます。
+	 * チェックサムが一致しない場合は読み込んだ途中のレコードに関わらず例外とします
+	 *
+	 * @param file
+	 *            ファイル
+	 * @param codec
+	 *            ファイルの形式
+	 * @param consumer
+	 *            読み込んだレコードを受け取る処理
+	 * @throws IOException
+	 *             読み込みに失敗した場合
+	 */
+	static void read(File file, DbTableCodec codec, Consumer<Map<String, Object>> consumer)
+			throws IOException {
+		Long expected = readChecksum(file);
+		if (expected == null) {
+			// チェックサムの無い以前のファイル
+			try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+				codec.read(in, consumer);
+			}
+			return;
+		}
+		long length = file.length() - TRAILER_LENGTH;
+		CRC32 crc = new CRC32();
+		try (InputStream fileIn = new BufferedInputStream(new FileInputStream(file))) {
+			// 形式が閉じた後も末尾まで読めるよう、閉じるのはファイルのストリームのみとする
+			InputStream in = new CheckedInputStream(new LimitedInputStream(fileIn, length), crc);
+			// 破損による例外よりチェックサムの不一致を優先して通知する
+			Exception error = null;
+			try {
+				codec.read(in, consumer);
+			} catch (IOException | RuntimeException e) {
+				error = e;
+			}
+			// 形式が読み込まなかった末尾もチェックサムへ含める
+			byte[] buffer = new byte[8192];
+			while (0 <= in.read(buffer)) {
+			}
+			if (crc.getValue() != expected.longValue()) {
+				throw new FileIoException(file.getAbsolutePath() + "のチェックサムが一致しません。ファイルが破損しています");
+			}
+			if (error instanceof IOException) {
+				throw (IOException) error;
+			} else if (error != null) {
+				throw (RuntimeException) error;
+			}
+		}
+	}
+
+	/**
+	 * レコードをファイルへ書き出します。
+	 * 同じフォルダの一時ファイルへ書き出し、ディスクへ書き込まれた後にファイルを置き換えます。
+	 * 一時ファイルは書き出し毎に別の名前とする為、同じファイルへ同時に書き出しても互いに壊しません
+	 *
+	 * @param file
+	 *            ファイル
+	 * @param codec
+	 *            ファイルの形式
+	 * @param records
+	 *            レコード
+	 */
+	static void write(File file, DbTableCodec codec, Collection<Map<String, Object>> records) {
+		File tempFile = null;
+		try {
+			tempFile = File.createTempFile(file.getName() + ".", "." + TEMP_EXTENSION,
+					file.getAbsoluteFile().getParentFile());
+			try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+				CRC32 crc = new CRC32();
+				// 形式が閉じた後にチェックサムを書き出せるよう、閉じるのはファイルのストリームのみとする
+				OutputStream out = new BufferedOutputStream(
+						new CheckedOutputStream(new UnclosedOutputStream(fos), crc));
+				codec.write(out, records);
+				out.flush();
+				fos.write(toTrailer(crc.getValue()));
+				fos.getFD().sync();
+			}
+			move(tempFile, file);
+		} catch (IOException e) {
+			LOGGER.error(file.getAbsolutePath() + "を保存できませんでした");
+			deleteTempFile(tempFile);
+			throw new FileIoException(e);
+		} catch (RuntimeException e) {
+			// レコードの取得に失敗した場合も書き出し途中の一時ファイルは残さない
+			LOGGER.error(file.getAbsolutePath() + "を保存できませんでした");
+			deleteTempFile(tempFile);
+			throw e;
+		}
+	}
+
+	// 書き出しに失敗した一時ファイルを削除する
+	private static void deleteTempFile(File tempFile) {
+		if (tempFile != null && tempFile.exists() && !tempFile.delete()) {
+			LOGGER.warn(tempFile.getAbsolutePath() + "を削除できませんでした");
+		}
+	}
+
+	// 一時ファイルでファイルを置き換え、置き換えたことをディスクへ書き込む
+	static void move(File tempFile, File file) throws IOException {
+		try {
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			LOGGER.warn(file.getAbsolutePath() + "をアトミックに置き換えられない為、通常の移動で置き換えます");
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		try (FileChannel channel = FileChannel.open(file.getParentFile().toPath(),
+				StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// フォルダを開けない環境(Windows等)ではファイルシステムに任せる
+		}
+	}
+
+	// 末尾のチェックサムを取得する。無い場合はnull
+	private static Long readChecksum(File file) throws IOException {
+		long length = file.length();
+		if (length < TRAILER_LENGTH) {
+			return null;
+		}
+		byte[] trailer = new byte[TRAILER_LENGTH];
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			raf.seek(length - TRAILER_LENGTH);
+			raf.readFully(trailer);
+		}
+		if (!Arrays.equals(TRAILER_PREFIX, Arrays.copyOf(trailer, TRAILER_PREFIX.length))
+				|| trailer[TRAILER_LENGTH - 1] != '\n') {
+			return null;
+		}
+		String hex = new String(trailer, TRAILER_PREFIX.length, 8, StandardCharsets.US_ASCII);
+		try {
+			return Long.valueOf(Long.parseLong(hex, 16));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	// チェックサムを末尾に付ける形式へ変換する
+	private static byte[] toTrailer(long checksum) {
+		String hex = String.format("%08x", Long.valueOf(checksum));
+		byte[] trailer = Arrays.copyOf(TRAILER_PREFIX, TRAILER_LENGTH);
+		System.arraycopy(hex.getBytes(StandardCharsets.US_ASCII), 0, trailer,
+				TRAILER_PREFIX.length, 8);
+		trailer[TRAILER_LENGTH - 1] = '\n';
+		return trailer;
+	}
+
+	/**
+	 * 指定の長さまでのみ読み込むストリームです
+	 */
+	private static class LimitedInputStream extends FilterInputStream {
+
+		// 残りの長さ
+		private long remaining;
+
+		LimitedInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = super.read();
+			if (0 <= b) {
+				remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int read = super.read(b, off, (int) Math.min(len, remaining));
+			if (0 < read) {
+				remaining -= read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+			// 元のストリームは読み込み後に閉じる
+		}
+	}
+
+	/**
+	 * 閉じても元のストリームを閉じないストリームです
+	 */
+	private static class UnclosedOutputStream extends FilterOutputStream {
+
+		UnclosedOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			// 元のストリームは書き出し後に閉じる
+			flush();
+		}
+	}
+
+}
@@ -0,0 +1,288 @@
+package com.purejadeite.db;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.purejadeite.FileIoException;
+
+/**
+ * テーブルの変更を追記していくログファイルです。
+ * 1行に1件の変更をJSON形式で保持し、1回のコミットの変更を開始と終了の行で囲みます。
+ *
+ * <pre>
+ * {"op":"begin","count":3}
+ * {"op":"add","record":{...}}
+ * {"op":"update","id":"0001","fields":{...}}
+ * {"op":"delete","id":"0001"}
+ * {"op":"commit","count":3}
+ * </pre>
+ *
+ * 終了の行が無いコミットは書き込み途中で停止したものとして、全ての変更を反映しません。
+ * 開始と終了の行で囲まれていない変更(以前の形式)は1行毎に反映します。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+class DbWal {
+
+	/**
+	 * ログファイルの拡張子
+	 */
+	static final String EXTENSION = "wal";
+
+	/**
+	 * ロガー
+	 */
+	private static final Logger LOGGER = LoggerFactory.getLogger(DbWal.class);
+
+	// コミットの開始
+	private static final String BEGIN = "begin";
+
+	// コミットの終了
+	private static final String COMMIT = "commit";
+
+	/**
+	 * JSON->Objectマッパー
+	 */
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private DbWal() {
+	}
+
+	/**
+	 * 1回のコミットの変更をログファイルへ追記する内容に変換します
+	 *
+	 * @param changes
+	 *            変更
+	 * @return 追記する内容
+	 */
+	static byte[] encode(List<DbChange> changes) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			sb.append(MAPPER.writeValueAsString(toMarker(BEGIN, changes.size()))).append('\n');
+			for (DbChange change : changes) {
+				sb.append(MAPPER.writeValueAsString(toEntry(change))).append('\n');
+			}
+			sb.append(MAPPER.writeValueAsString(toMarker(COMMIT, changes.size()))).append('\n');
+		} catch (IOException e) {
+			LOGGER.error("変更をログの形式へ変換できませんでした");
+			throw new FileIoException(e);
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 変更をログファイルへ追記し、ディスクへ書き込まれるまで待ちます
+	 *
+	 * @param file
+	 *            ログファイル
+	 * @param data
+	 *            {@link #encode(List)}で変換した追記する内容
+	 */
+	static void write(File file, List<byte[]> data) {
+		ByteBuffer[] buffers = new ByteBuffer[data.size()];
+		long length = 0;
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = ByteBuffer.wrap(data.get(i));
+			length += buffers[i].remaining();
+		}
+		if (length == 0) {
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			while (0 < length) {
+				length -= channel.write(buffers);
+			}
+			channel.force(false);
+		} catch (IOException e) {
+			LOGGER.error(file.getAbsolutePath() + "へ追記できませんでした");
+			throw new FileIoException(e);
+		}
+	}
+
+	/**
+	 * ログファイルの変更をテーブルへ反映します。
+	 * 終了の行まで書き込まれたコミットのみを反映し、書き込み途中で途切れた末尾は切り捨てます。
+	 *
+	 * @param file
+	 *            ログファイル
+	 * @param table
+	 *            テーブル
+	 * @return 反映した変更の件数
+	 */
+	static int replay(File file, DbTable table) {
+		int count = 0;
+		// 反映済みの長さ
+		long validLength = 0;
+		// 読み込んだ長さ
+		long length = 0;
+		// 終了の行を待っているコミットの変更。コミット中でない場合はnull
+		List<Map<String, Object>> pending = null;
+		boolean broken = false;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				length += line.getBytes(StandardCharsets.UTF_8).length + 1;
+				if (line.length() == 0) {
+					if (pending == null) {
+						validLength = length;
+					}
+					continue;
+				}
+				Map<String, Object> entry;
+				try {
+					@SuppressWarnings("unchecked")
+					Map<String, Object> parsed = MAPPER.readValue(line, Map.class);
+					entry = parsed;
+				} catch (IOException e) {
+					broken = true;
+					break;
+				}
+				Object op = entry.get("op");
+				if (BEGIN.equals(op)) {
+					if (pending != null) {
+						// 終了の行が無いまま次のコミットが始まった場合は、途切れたコミットを破棄する
+						LOGGER.warn(file.getAbsolutePath() + "の途切れたコミットの" + pending.size() + "件の変更を破棄します");
+					}
+					pending = new ArrayList<>();
+				} else if (COMMIT.equals(op)) {
+					if (pending == null || !isCount(entry, pending.size())) {
+						broken = true;
+						break;
+					}
+					for (Map<String, Object> change : pending) {
+						apply(table, change);
+					}
+					count += pending.size();
+					pending = null;
+					validLength = length;
+				} else if (pending != null) {
+					pending.add(entry);
+				} else {
+					// 以前の形式の変更
+					apply(table, entry);
+					count++;
+					validLength = length;
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.error(file.getAbsolutePath() + "の読み込みに失敗しました");
+			throw new FileIoException(e);
+		}
+		if (broken || pending != null) {
+			// 反映したコミット以降を切り捨て、以降の追記が読めなくなるのを防ぐ
+			LOGGER.warn(file.getAbsolutePath() + "の末尾が不正な為、" + validLength + "バイト目以降を切り捨てます");
+			truncate(file, validLength);
+		}
+		LOGGER.info(file.getAbsolutePath() + "から" + count + "件の変更を反映しました");
+		return count;
+	}
+
+	/**
+	 * ログファイルを削除します
+	 *
+	 * @param file
+	 *            ログファイル
+	 */
+	static void delete(File file) {
+		if (file.exists() && !file.delete()) {
+			LOGGER.error(file.getAbsolutePath() + "を削除できませんでした");
+			throw new FileIoException(file.getAbsolutePath() + "を削除できませんでした");
+		}
+	}
+
+	// コミットの開始・終了の行を作成する
+	private static Map<String, Object> toMarker(String op, int count) {
+		Map<String, Object> marker = new LinkedHashMap<>();
+		marker.put("op", op);
+		marker.put("count", Integer.valueOf(count));
+		return marker;
+	}
+
+	// 終了の行の件数が一致するか判定する
+	private static boolean isCount(Map<String, Object> marker, int count) {
+		Object expected = marker.get("count");
+		return expected instanceof Number && ((Number) expected).intValue() == count;
+	}
+
+	// 変更をログの1行に変換する
+	private static Map<String, Object> toEntry(DbChange change) {
+		Map<String, Object> entry = new LinkedHashMap<>();
+		switch (change.getType()) {
+		case ADD:
+			entry.put("op", "add");
+			entry.put("record", change.getAfter());
+			break;
+		case UPDATE:
+			entry.put("op", "update");
+			entry.put("id", change.getId());
+			entry.put("fields", change.getChangedFields());
+			break;
+		case DELETE:
+			entry.put("op", "delete");
+			entry.put("id", change.getId());
+			break;
+		}
+		return entry;
+	}
+
+	// ログの1行をテーブルへ反映する
+	@SuppressWarnings("unchecked")
+	private static void apply(DbTable table, Map<String, Object> entry) {
+		Object op = entry.get("op");
+		if ("add".equals(op)) {
+			// テーブルの形式へ変換して保持される為、読み込んだマップをそのまま渡す
+			Map<String, Object> record = (Map<String, Object>) entry.get("record");
+			long[] rowNos = table.getIndex("id").get(record.get("id"));
+			if (rowNos.length == 0) {
+				table.add(record);
+			} else {
+				// チェックポイントの途中で停止した場合はテーブルファイルへ反映済みの事がある
+				table.replace(rowNos[0], record);
+			}
+			return;
+		}
+		long[] rowNos = table.getIndex("id").get(entry.get("id"));
+		if (rowNos.length == 0) {
+			LOGGER.warn(table.getName() + "に対象のレコードがありません:" + entry);
+			return;
+		}
+		long rowNo = rowNos[0];
+		if ("update".equals(op)) {
+			Map<String, Object> record = DbRecord.copyOf(table.get(rowNo));
+			record.putAll((Map<String, Object>) entry.get("fields"));
+			table.replace(rowNo, record);
+		} else if ("delete".equals(op)) {
+			table.remove(rowNo);
+		}
+	}
+
+	// ファイルを指定の長さに切り詰める
+	private static void truncate(File file, long length) {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(length);
+		} catch (IOException e) {
+			LOGGER.error(file.getAbsolutePath() + "を切り詰められませんでした");
+			throw new FileIoException(e);
+		}
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.purejadeite.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * テーブルをレコードの配列としてJSON形式で読み書きします。
+ *
+ * @author mitsuhiroseino
+ *
+ */
+public class JsonTableCodec implements DbTableCodec {
+
+	/**
+	 * 形式の名称
+	 */
+	public static final String NAME = "json";
+
+	/**
+	 * JSON->Objectマッパー
+	 */
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	/**
+	 * レコード毎に書き出す為のライター
+	 */
+	private static final ObjectWriter RECORD_WRITER = MAPPER.writer()
+			.without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public String getExtension() {
+		return "json";
+	}
+
+	@Override
+	public void read(InputStream in, Consumer<Map<String, Object>> consumer)
+			throws IOException {
+		try (JsonParser parser = MAPPER.getFactory().createParser(in)) {
+			JsonToken token = parser.nextToken();
+			if (token == null) {
+				// 空のファイル
+				return;
+			}
+			if (token != JsonToken.START_ARRAY) {
+				throw new JsonParseException(parser, "テーブルは配列である必要があります");
+			}
+			while (parser.nextToken() == JsonToken.START_OBJECT) {
+				@SuppressWarnings("unchecked")
+				Map<String, Object> record = MAPPER.readValue(parser, Map.class);
+				consumer.accept(record);
+			}
+		}
+	}
+
+	@Override
+	public void write(OutputStream out, Collection<Map<String, Object>> records)
+			throws IOException {
+		try (JsonGenerator generator = MAPPER.getFactory().createGenerator(out,
+				JsonEncoding.UTF8)) {
+			generator.writeStartArray();
+			for (Map<String, Object> record : records) {
+				RECORD_WRITER.writeValue(generator, record);
+			}
+			generator.writeEndArray();
+		}
+	}
+
+}
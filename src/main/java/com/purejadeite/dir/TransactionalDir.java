@@ -98,7 +98,7 @@ public class TransactionalDir extends AbstractTransactional {
 		return removeFiles(Arrays.asList(path));
 	}
 
-	public List<File> removeFiles(List<String> path) {
+	public synchronized List<File> removeFiles(List<String> path) {
 		List<File> files = getFiles(path);
 		for (File file : files) {
 			put(removeFiles, dir.toKeys(file.getPath()), file);
@@ -112,7 +112,7 @@ public class TransactionalDir extends AbstractTransactional {
 		return removeFile(Arrays.asList(path));
 	}
 
-	public String removeFile(List<String> path) {
+	public synchronized String removeFile(List<String> path) {
 		File file = getFile(path);
 		if (file == null) {
 			return null;
@@ -138,7 +138,7 @@ public class TransactionalDir extends AbstractTransactional {
 		return saveFile(file, Arrays.asList(path));
 	}
 
-	public String saveFile(Object file, List<String> path) {
+	public synchronized String saveFile(Object file, List<String> path) {
 		List<String> keys = dir.toKeys(path);
 		put(saveFiles, keys, file);
 		return dir.toPathString(keys);
@@ -147,7 +147,7 @@ public class TransactionalDir extends AbstractTransactional {
 
 	// トランザクション関連
 	// --------------------------------------------------------------------
-	protected boolean commitImple() {
+	protected synchronized boolean commitImple() {
 		commitRemove(removeFiles);
 		commitSave(saveFiles);
 		clear();
@@ -231,7 +231,7 @@ public class TransactionalDir extends AbstractTransactional {
 	}
 
 	// 部分的なコミット
-	protected boolean commit(String... target) {
+	protected synchronized boolean commit(String... target) {
 		List<String> path = Arrays.asList(target);
 		// コミット
 		commitRemove(removeFiles, path);
@@ -243,14 +243,14 @@ public class TransactionalDir extends AbstractTransactional {
 	}
 
 	// 部分的なロールバック
-	protected boolean rollback(String... target) {
+	protected synchronized boolean rollback(String... target) {
 		List<String> path = Arrays.asList(target);
 		cancelTask(removeFiles, path);
 		cancelTask(saveFiles, path);
 		return true;
 	}
 
-	protected boolean rollbackImple() {
+	protected synchronized boolean rollbackImple() {
 		clear();
 		return true;
 	}
@@ -277,6 +277,10 @@ public class TransactionalDir extends AbstractTransactional {
 	}
 
 	private Object get(Object value, List<String> path) {
+		if (path == null || path.isEmpty()) {
+			// パスの指定が無い場合は全体が対象
+			return value;
+		}
 		if (value instanceof Map) {
 			@SuppressWarnings("unchecked")
 			Map<String, Object> map = (Map<String, Object>) value;
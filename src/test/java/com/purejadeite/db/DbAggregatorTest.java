@@ -0,0 +1,187 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.purejadeite.AbstractTest;
+
+/**
+ * DbAggregatorとDbの集計のテストです。
+ */
+public class DbAggregatorTest extends AbstractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void aggregatesByGroup() {
+		List<Map<String, Object>> records = Arrays.asList(record("a", Integer.valueOf(1)),
+				record("b", Long.valueOf(2)), record("a", Double.valueOf(0.5)),
+				record("a", null), record("b", Integer.valueOf(4)));
+		List<Map<String, Object>> results = new DbAggregator(Arrays.asList("group"),
+				new DbAggregation[] { DbAggregation.count(), DbAggregation.count("value"),
+						DbAggregation.sum("value"), DbAggregation.min("value"),
+						DbAggregation.max("value"), DbAggregation.avg("value") },
+				0).aggregate(records);
+		eq(results.size(), 2);
+		Map<String, Object> a = results.get(0);
+		eq(a.get("group"), (Object) "a");
+		eq(a.get("count"), (Object) Long.valueOf(3));
+		eq(a.get("count(value)"), (Object) Long.valueOf(2));
+		eq(a.get("sum(value)"), (Object) Double.valueOf(1.5));
+		eq(a.get("min(value)"), (Object) Double.valueOf(0.5));
+		eq(a.get("max(value)"), (Object) Integer.valueOf(1));
+		eq(a.get("avg(value)"), (Object) Double.valueOf(0.75));
+		Map<String, Object> b = results.get(1);
+		eq(b.get("sum(value)"), (Object) Long.valueOf(6));
+		eq(b.get("avg(value)"), (Object) Double.valueOf(3));
+	}
+
+	@Test
+	public void parallelMatchesSequential() {
+		List<Map<String, Object>> records = new ArrayList<>();
+		for (int i = 0; i < 50000; i++) {
+			records.add(record(String.valueOf(i % 13), Integer.valueOf(i)));
+		}
+		DbAggregation[] aggregations = { DbAggregation.count(), DbAggregation.sum("value"),
+				DbAggregation.min("value"), DbAggregation.max("value") };
+		List<Map<String, Object>> sequential = new DbAggregator(Arrays.asList("group"),
+				aggregations, 0).aggregate(records);
+		List<Map<String, Object>> parallel = new DbAggregator(Arrays.asList("group"),
+				aggregations, 1000).aggregate(records);
+		eq(parallel, sequential);
+	}
+
+	@Test
+	public void sumKeepsIntegerValues() throws Exception {
+		try (Db db = newDb()) {
+			db.add("t", record("a", Integer.valueOf(1)));
+			db.add("t", record("a", Integer.valueOf(2)));
+			db.add("t", record("b", Integer.valueOf(5)));
+			Map<List<Object>, Integer> sums = db.sum("t", null, "value", "group");
+			eq(sums.get(Collections.<Object> singletonList("a")), Integer.valueOf(3));
+			eq(sums.get(Collections.<Object> singletonList("b")), Integer.valueOf(5));
+			// 条件に合うレコードのみ
+			Map<String, Object> params = new HashMap<>();
+			params.put("group", "b");
+			eq(db.sum("t", params, "value", "group").size(), 1);
+		}
+	}
+
+	@Test
+	public void sumReadsTypedValues() throws Exception {
+		try (Db db = newDb()) {
+			db.add("t", record("a", Integer.valueOf(1)));
+			db.add("t", record("a", "2"));
+			db.add("t", record("a", Long.valueOf(3)));
+			db.add("t", record("b", Double.valueOf(1.5)));
+			db.add("t", record("b", "1.5"));
+			db.add("t", record("c", Double.valueOf(0.5)));
+			Map<String, Object> params = new HashMap<>();
+			params.put("group", "a");
+			// 数値の文字列も数値として合計する
+			eq(db.sum("t", params, "value", "group").get(Collections.<Object> singletonList("a")),
+					Integer.valueOf(6));
+			params.put("group", "b");
+			eq(db.sum("t", params, "value", "group").get(Collections.<Object> singletonList("b")),
+					Integer.valueOf(3));
+			try {
+				db.sum("t", null, "value", "group");
+				fail();
+			} catch (ArithmeticException e) {
+				// 整数でない合計はIntegerで表せない
+			}
+		}
+	}
+
+	@Test
+	public void sumRunsInParallel() throws Exception {
+		try (Db db = newDb()) {
+			db.setParallelScanThreshold(100);
+			List<Map<String, Object>> records = new ArrayList<>();
+			for (int i = 0; i < 30000; i++) {
+				records.add(record(String.valueOf(i % 3), Integer.valueOf(1)));
+			}
+			db.add("t", records);
+			Map<List<Object>, Integer> sums = db.sum("t", null, "value", "group");
+			eq(sums.size(), 3);
+			eq(sums.get(Collections.<Object> singletonList("0")), Integer.valueOf(10000));
+		}
+	}
+
+	@Test
+	public void longOverflowIsRejected() {
+		List<Map<String, Object>> records = new ArrayList<>();
+		records.add(record("a", Long.valueOf(Long.MAX_VALUE)));
+		for (int i = 0; i < 20000; i++) {
+			records.add(record("a", Integer.valueOf(1)));
+		}
+		DbAggregation[] aggregations = { DbAggregation.sum("value") };
+		for (int threshold : new int[] { 0, 1000 }) {
+			try {
+				new DbAggregator(Arrays.asList("group"), aggregations, threshold).aggregate(records);
+				fail();
+			} catch (ArithmeticException e) {
+				// 桁あふれは切り捨てない
+			}
+		}
+	}
+
+	@Test
+	public void sumRejectsOverflow() throws Exception {
+		try (Db db = newDb()) {
+			db.add("t", record("a", Integer.valueOf(Integer.MAX_VALUE)));
+			db.add("t", record("a", Integer.valueOf(1)));
+			try {
+				db.sum("t", null, "value", "group");
+				fail();
+			} catch (ArithmeticException e) {
+				// 切り捨てずに例外とする
+			}
+			// 途中で超えても合計が収まれば求められる
+			db.add("t", record("a", Integer.valueOf(-2)));
+			eq(db.sum("t", null, "value", "group").get(Collections.<Object> singletonList("a")),
+					Integer.valueOf(Integer.MAX_VALUE - 1));
+		}
+	}
+
+	@Test
+	public void countReturnsIntegerCountsInAscendingOrder() throws Exception {
+		try (Db db = newDb()) {
+			db.add("t", record("a", Integer.valueOf(1)));
+			db.add("t", record("a", Integer.valueOf(2)));
+			db.add("t", record("b", Integer.valueOf(3)));
+			db.setParallelScanThreshold(1);
+			List<Map<String, Object>> counts = db.count("t", "group");
+			eq(counts.size(), 2);
+			eq(counts.get(0).get("group"), (Object) "b");
+			eq(counts.get(0).get("count"), (Object) Integer.valueOf(1));
+			eq(counts.get(1).get("count"), (Object) Integer.valueOf(2));
+		}
+	}
+
+	private Db newDb() throws DbException, IOException {
+		File dir = folder.newFolder("db");
+		return new Db(dir.getPath());
+	}
+
+	private static Map<String, Object> record(String group, Object value) {
+		Map<String, Object> record = new HashMap<>();
+		record.put("group", group);
+		record.put("value", value);
+		return record;
+	}
+
+}
@@ -0,0 +1,110 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.purejadeite.AbstractTest;
+
+/**
+ * Dbのテーブルの別名のテストです。
+ */
+public class DbAliasTest extends AbstractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = folder.newFolder("db");
+		StringBuilder schema = new StringBuilder("{");
+		for (int i = 0; i < 10; i++) {
+			schema.append(i == 0 ? "" : ",").append("\"table").append(i)
+					.append("\":{\"alt\":\"alias").append(i).append("\"}");
+		}
+		// 正式な名称と同じ別名
+		schema.append(",\"other\":{\"alt\":\"table0\"}}");
+		writeSchema(schema.toString());
+	}
+
+	@Test
+	public void resolvesAliases() throws DbException {
+		try (Db db = newDb()) {
+			for (int i = 0; i < 10; i++) {
+				db.add("alias" + i, record("n" + i));
+			}
+			db.commit();
+			for (int i = 0; i < 10; i++) {
+				eq(db.select("table" + i).size(), 1);
+				eq(db.select("table" + i).get(0).get("name"), (Object) ("n" + i));
+			}
+		}
+		for (int i = 0; i < 10; i++) {
+			assertTrue(new File(dir, "table" + i + ".json").exists());
+			assertFalse(new File(dir, "alias" + i + ".json").exists());
+		}
+	}
+
+	@Test
+	public void formalNameWins() throws DbException {
+		try (Db db = newDb()) {
+			db.add("table0", record("formal"));
+			db.commit();
+			eq(db.select("other").size(), 0);
+			eq(db.select("table0").get(0).get("name"), (Object) "formal");
+		}
+	}
+
+	@Test
+	public void undefinedNameIsItself() throws DbException {
+		try (Db db = newDb()) {
+			db.add("unknown", record("x"));
+			db.commit();
+			eq(db.select("unknown").size(), 1);
+		}
+		assertTrue(new File(dir, "unknown.json").exists());
+	}
+
+	@Test
+	public void resolvesAliasesAfterReload() throws DbException, IOException {
+		try (Db db = newDb()) {
+			db.add("alias1", record("before"));
+			db.commit();
+			writeSchema("{\"table1\":{\"alt\":\"renamed\"}}");
+			db.reloadSchemas();
+			eq(db.select("renamed").get(0).get("name"), (Object) "before");
+			db.add("renamed", record("after"));
+			db.commit();
+			eq(db.select("table1").size(), 2);
+			// 外した別名は別のテーブルとなる
+			eq(db.select("alias1").size(), 0);
+		}
+	}
+
+	private Db newDb() throws DbException {
+		return new Db(dir.getPath(), "schema.json");
+	}
+
+	private void writeSchema(String schema) throws IOException {
+		Files.write(new File(dir, "schema.json").toPath(), schema.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static Map<String, Object> record(String name) {
+		Map<String, Object> record = new HashMap<>();
+		record.put("name", name);
+		return record;
+	}
+
+}
@@ -0,0 +1,155 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.purejadeite.AbstractTest;
+
+/**
+ * Dbの複数件のレコードの追加のテストです。
+ */
+public class DbBulkAddTest extends AbstractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = folder.newFolder("db");
+		// codeはインデックスあり、nameはインデックスなし
+		Files.write(new File(dir, "schema.json").toPath(),
+				"{\"t\":{\"indexes\":[\"code\"]}}".getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void assignsIdsInOrder() throws DbException {
+		try (Db db = newDb()) {
+			List<Map<String, Object>> added = db.add("t",
+					Arrays.asList(record("a", "x"), record("b", "y"), record("c", "z")));
+			eq(ids(added), Arrays.asList("1", "2", "3"));
+			eq(db.select("t").size(), 3);
+		}
+	}
+
+	@Test
+	public void keepsIssuedIds() throws DbException {
+		try (Db db = newDb()) {
+			db.add("t", Arrays.asList(record("a", "x"), record("b", "y")));
+			db.delete("t", "code", "a");
+			Map<String, Object> reused = record("a", "x");
+			reused.put("id", "1");
+			Map<String, Object> unknown = record("c", "z");
+			unknown.put("id", "99");
+			List<Map<String, Object>> added = db.add("t", Arrays.asList(reused, unknown));
+			// 発行済みのIDはそのまま、発行していないIDは振りなおす
+			eq(ids(added), Arrays.asList("1", "3"));
+		}
+	}
+
+	@Test
+	public void duplicateInBatchAddsNothing() throws DbException {
+		try (Db db = newDb()) {
+			List<Map<String, Object>> records = Arrays.asList(record("a", "x"), record("b", "y"),
+					record("a", "z"));
+			assertDuplicate(db, records, Arrays.asList("code"));
+			eq(db.select("t").size(), 0);
+			for (Map<String, Object> record : records) {
+				assertFalse(record.containsKey("id"));
+			}
+			// IDは消費されていない
+			eq(db.add("t", record("c", "x")).get("id"), (Object) "1");
+		}
+	}
+
+	@Test
+	public void duplicateWithIndexedTableAddsNothing() throws DbException {
+		try (Db db = newDb()) {
+			db.add("t", Arrays.asList(record("a", "x"), record("b", "y")));
+			List<Map<String, Object>> records = Arrays.asList(record("c", "x"), record("b", "z"));
+			assertDuplicate(db, records, Arrays.asList("code"));
+			eq(db.select("t").size(), 2);
+			assertFalse(records.get(0).containsKey("id"));
+			eq(db.add("t", record("d", "x")).get("id"), (Object) "3");
+		}
+	}
+
+	@Test
+	public void duplicateWithUnindexedTableAddsNothing() throws DbException {
+		try (Db db = newDb()) {
+			db.add("t", Arrays.asList(record("a", "x"), record("b", "y")));
+			assertDuplicate(db, Arrays.asList(record("c", "z"), record("d", "y")),
+					Arrays.asList("name"));
+			eq(db.select("t").size(), 2);
+		}
+	}
+
+	@Test
+	public void compoundKeyChecksAllFields() throws DbException {
+		try (Db db = newDb()) {
+			db.add("t", Arrays.asList(record("a", "x")));
+			// codeが一致してもnameが異なれば重複しない
+			List<Map<String, Object>> added = db.add("t", Arrays.asList(record("a", "y")),
+					Arrays.asList("code", "name"));
+			eq(added.size(), 1);
+			assertDuplicate(db, Arrays.asList(record("a", "x")), Arrays.asList("code", "name"));
+			eq(db.select("t", "code", "a").size(), 2);
+		}
+	}
+
+	@Test
+	public void duplicateIssuedIdIsRejected() throws DbException {
+		try (Db db = newDb()) {
+			db.add("t", Arrays.asList(record("a", "x")));
+			Map<String, Object> record = record("b", "y");
+			record.put("id", "1");
+			assertDuplicate(db, Arrays.asList(record), Arrays.asList("id"));
+			eq(db.select("t").size(), 1);
+		}
+	}
+
+	private Db newDb() throws DbException {
+		return new Db(dir.getPath(), "schema.json");
+	}
+
+	private static void assertDuplicate(Db db, List<Map<String, Object>> records,
+			List<String> keyFields) {
+		try {
+			db.add("t", records, keyFields);
+			fail();
+		} catch (DbException e) {
+			assertTrue(e.getMessage().contains("重複"));
+		}
+	}
+
+	private static List<Object> ids(List<Map<String, Object>> records) {
+		List<Object> ids = new ArrayList<>();
+		for (Map<String, Object> record : records) {
+			ids.add(record.get("id"));
+		}
+		return ids;
+	}
+
+	private static Map<String, Object> record(String code, String name) {
+		Map<String, Object> record = new HashMap<>();
+		record.put("code", code);
+		record.put("name", name);
+		return record;
+	}
+
+}
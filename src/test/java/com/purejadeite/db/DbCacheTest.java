@@ -0,0 +1,140 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.purejadeite.AbstractTest;
+
+/**
+ * Dbのテーブルのキャッシュのテストです。
+ */
+public class DbCacheTest extends AbstractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.newFolder("db");
+		// 5件ずつのテーブルを3つ作成
+		try (Db db = new Db(dir.getPath())) {
+			for (String tableName : new String[] { "a", "b", "c" }) {
+				for (int i = 0; i < 5; i++) {
+					db.add(tableName, record(tableName + i));
+				}
+			}
+			db.commit();
+		}
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() throws Exception {
+		try (Db db = new Db(dir.getPath())) {
+			db.setMaxCachedRows(10);
+			db.select("a");
+			db.select("b");
+			db.select("a");
+			db.select("c");
+			DbCacheStats stats = db.getCacheStats();
+			eq(stats.getHitCount(), 1L);
+			eq(stats.getMissCount(), 3L);
+			eq(stats.getEvictionCount(), 1L);
+			eq(stats.getTableCount(), 2);
+			eq(stats.getRowCount(), 10L);
+			// 破棄したテーブルはファイルから読み込みなおす
+			eq(db.select("b").size(), 5);
+			stats = db.getCacheStats();
+			eq(stats.getMissCount(), 4L);
+			eq(stats.getEvictionCount(), 2L);
+		}
+	}
+
+	@Test
+	public void unlimitedByDefault() throws Exception {
+		try (Db db = new Db(dir.getPath())) {
+			db.select("a");
+			db.select("b");
+			db.select("c");
+			DbCacheStats stats = db.getCacheStats();
+			eq(stats.getEvictionCount(), 0L);
+			eq(stats.getTableCount(), 3);
+			eq(stats.getRowCount(), 15L);
+		}
+	}
+
+	@Test
+	public void keepsDirtyTables() throws Exception {
+		try (Db db = new Db(dir.getPath())) {
+			db.setMaxCachedRows(5);
+			db.add("a", record("new"));
+			db.select("b");
+			db.select("c");
+			// コミットされていない変更は破棄されない
+			eq(db.select("a").size(), 6);
+			eq(db.select("a", "name", "new").size(), 1);
+			db.commit();
+			db.select("b");
+			eq(db.select("a", "name", "new").size(), 1);
+		}
+		try (Db db = new Db(dir.getPath())) {
+			eq(db.select("a").size(), 6);
+		}
+	}
+
+	@Test
+	public void checkpointFoldsEvictedTables() throws Exception {
+		try (Db db = new Db(dir.getPath())) {
+			db.setWalMode(true);
+			db.setMaxCachedRows(5);
+			db.add("a", record("new"));
+			db.commit();
+			// ログファイルのみに変更のあるテーブルを破棄させる
+			db.select("b");
+			db.select("c");
+			assertTrue(new File(dir, "a." + DbWal.EXTENSION).exists());
+			int tableCount = db.getCacheStats().getTableCount();
+			db.checkpoint();
+			assertFalse(new File(dir, "a." + DbWal.EXTENSION).exists());
+			// チェックポイントの為に読み込んだテーブルは保持しない
+			eq(db.getCacheStats().getTableCount(), tableCount);
+		}
+		try (Db db = new Db(dir.getPath())) {
+			eq(db.select("a", "name", "new").size(), 1);
+		}
+	}
+
+	@Test
+	public void checkpointSkipsDirtyTables() throws Exception {
+		try (Db db = new Db(dir.getPath())) {
+			db.setWalMode(true);
+			db.add("a", record("committed"));
+			db.commit();
+			db.add("a", record("dirty"));
+			db.checkpoint();
+			assertTrue(new File(dir, "a." + DbWal.EXTENSION).exists());
+			db.commit();
+			db.checkpoint();
+			assertFalse(new File(dir, "a." + DbWal.EXTENSION).exists());
+		}
+		try (Db db = new Db(dir.getPath())) {
+			eq(db.select("a").size(), 7);
+		}
+	}
+
+	private static Map<String, Object> record(String name) {
+		Map<String, Object> record = new HashMap<>();
+		record.put("name", name);
+		return record;
+	}
+
+}
@@ -0,0 +1,138 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.purejadeite.AbstractTest;
+
+/**
+ * Dbの変更の通知のテストです。
+ */
+public class DbChangeFeedTest extends AbstractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void notifiesCommittedChanges() throws Exception {
+		File dir = folder.newFolder("db");
+		Recorder recorder = new Recorder();
+		try (Db db = new Db(dir.getPath())) {
+			db.addChangeListener(recorder);
+			db.add("t", record("a"));
+			db.commit();
+			Map<String, Object> record = record("b");
+			record.put("id", "1");
+			db.update("t", record);
+			db.delete("t", "name", "b");
+			db.commit();
+		}
+		// 閉じた時点で通知は完了している
+		eq(recorder.describe(), "[ADD t a, UPDATE t b, DELETE t b]");
+	}
+
+	@Test
+	public void skipsRolledBackChanges() throws Exception {
+		File dir = folder.newFolder("db");
+		Recorder recorder = new Recorder();
+		try (Db db = new Db(dir.getPath())) {
+			db.addChangeListener(recorder);
+			db.add("t", record("a"));
+			db.commit();
+			db.add("t", record("b"));
+			db.delete("t", "name", "a");
+			db.rollback();
+			db.add("t", record("c"));
+			db.commit();
+		}
+		eq(recorder.describe(), "[ADD t a, ADD t c]");
+	}
+
+	@Test
+	public void skipsConflictingChanges() throws Exception {
+		File dir = folder.newFolder("db");
+		Recorder recorder = new Recorder();
+		try (final Db db = new Db(dir.getPath())) {
+			db.setSnapshotIsolation(true);
+			db.addChangeListener(recorder);
+			db.add("t", record("a"));
+			db.commit();
+			db.add("t", record("b"));
+			// 他のスレッドが先にコミット
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						db.add("t", record("c"));
+						db.commit();
+					} catch (DbException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			});
+			thread.start();
+			thread.join();
+			eq(db.commit(), false);
+		}
+		eq(recorder.describe(), "[ADD t a, ADD t c]");
+	}
+
+	@Test
+	public void closeWaitsForDelivery() throws Exception {
+		File dir = folder.newFolder("db");
+		final List<DbChange> delivered = Collections.synchronizedList(new ArrayList<DbChange>());
+		try (Db db = new Db(dir.getPath())) {
+			db.addChangeListener(new DbChangeListener() {
+				@Override
+				public void onChanges(List<DbChange> changes) {
+					try {
+						Thread.sleep(200);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					delivered.addAll(changes);
+				}
+			});
+			db.add("t", record("a"));
+			db.commit();
+		}
+		eq(delivered.size(), 1);
+	}
+
+	private static Map<String, Object> record(String name) {
+		Map<String, Object> record = new HashMap<>();
+		record.put("name", name);
+		return record;
+	}
+
+	/**
+	 * 通知された変更を記録するリスナーです
+	 */
+	private static class Recorder implements DbChangeListener {
+
+		private final List<String> changes = new ArrayList<>();
+
+		@Override
+		public synchronized void onChanges(List<DbChange> changes) {
+			for (DbChange change : changes) {
+				Map<String, Object> record = change.getAfter() != null ? change.getAfter() : change.getBefore();
+				this.changes.add(change.getType() + " " + change.getTableName() + " " + record.get("name"));
+			}
+		}
+
+		synchronized String describe() {
+			return changes.toString();
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.purejadeite.AbstractTest;
+
+/**
+ * DbColumnsのテストです。
+ */
+public class DbColumnsTest extends AbstractTest {
+
+	@Test
+	public void keepsValuesAndTypes() {
+		DbColumns columns = newColumns();
+		Map<String, Object> record = new HashMap<>();
+		record.put("name", "a");
+		record.put("int", Integer.valueOf(1));
+		record.put("long", Long.valueOf(Long.MAX_VALUE));
+		record.put("double", Double.valueOf(1.5));
+		record.put("flag", Boolean.FALSE);
+		record.put("note", null);
+		record.put("extra", "x");
+		columns.put(Long.valueOf(0), record);
+		Map<String, Object> row = columns.get(Long.valueOf(0));
+		eq(row, record);
+		eq(row.size(), 7);
+		// IntegerとLongは保持した型のまま返す
+		eq(row.get("int").getClass(), (Object) Integer.class);
+		eq(row.get("long").getClass(), (Object) Long.class);
+		assertTrue(row.containsKey("note"));
+		assertFalse(row.containsKey("missing"));
+	}
+
+	@Test
+	public void keepsValuesNotMatchingTheType() {
+		DbColumns columns = newColumns();
+		Map<String, Object> record = new HashMap<>();
+		record.put("int", "1");
+		record.put("double", Integer.valueOf(2));
+		record.put("flag", "true");
+		columns.put(Long.valueOf(0), record);
+		eq(columns.get(Long.valueOf(0)), record);
+	}
+
+	@Test
+	public void viewsKeepValuesWhenReplaced() {
+		DbColumns columns = newColumns();
+		columns.put(Long.valueOf(0), record("a", 1));
+		Map<String, Object> before = columns.get(Long.valueOf(0));
+		columns.put(Long.valueOf(0), record("b", 2));
+		eq(before, record("a", 1));
+		eq(columns.get(Long.valueOf(0)), record("b", 2));
+		eq(columns.size(), 1);
+	}
+
+	@Test
+	public void removesAndIteratesInRowOrder() {
+		DbColumns columns = newColumns();
+		for (int i = 0; i < 5; i++) {
+			columns.put(Long.valueOf(i), record("n" + i, i));
+		}
+		Map<String, Object> removed = columns.remove(Long.valueOf(2));
+		eq(removed, record("n2", 2));
+		assertNull(columns.get(Long.valueOf(2)));
+		assertNull(columns.remove(Long.valueOf(2)));
+		List<Long> rowNos = new ArrayList<>(columns.keySet());
+		eq(rowNos.toString(), "[0, 1, 3, 4]");
+		eq(columns.size(), 4);
+	}
+
+	@Test
+	public void compactsWithoutChangingRecords() {
+		DbColumns columns = newColumns();
+		for (int i = 0; i < 100; i++) {
+			columns.put(Long.valueOf(i), record("n" + i, i));
+		}
+		Map<String, Object> view = columns.get(Long.valueOf(0));
+		// 詰め直すまで置き換える
+		for (int j = 0; j < 30; j++) {
+			for (int i = 0; i < 100; i++) {
+				columns.put(Long.valueOf(i), record("n" + i + "-" + j, i));
+			}
+		}
+		eq(columns.size(), 100);
+		eq(view, record("n0", 0));
+		eq(columns.get(Long.valueOf(99)), record("n99-29", 99));
+	}
+
+	@Test
+	public void forkSharesUntilChanged() {
+		DbColumns columns = newColumns();
+		columns.put(Long.valueOf(0), record("a", 1));
+		DbColumns fork = columns.fork();
+		fork.put(Long.valueOf(0), record("b", 2));
+		fork.put(Long.valueOf(1), record("c", 3));
+		columns.put(Long.valueOf(2), record("d", 4));
+		eq(columns.get(Long.valueOf(0)), record("a", 1));
+		assertNull(columns.get(Long.valueOf(1)));
+		eq(fork.get(Long.valueOf(0)), record("b", 2));
+		assertNull(fork.get(Long.valueOf(2)));
+	}
+
+	@Test
+	public void clearRemovesAll() {
+		DbColumns columns = newColumns();
+		columns.put(Long.valueOf(0), record("a", 1));
+		columns.clear();
+		eq(columns.size(), 0);
+		assertNull(columns.get(Long.valueOf(0)));
+		columns.put(Long.valueOf(0), record("b", 2));
+		eq(columns.get(Long.valueOf(0)), record("b", 2));
+	}
+
+	private static DbColumns newColumns() {
+		Map<String, DbFieldType> types = new LinkedHashMap<>();
+		types.put("name", DbFieldType.STRING);
+		types.put("int", DbFieldType.LONG);
+		types.put("long", DbFieldType.LONG);
+		types.put("double", DbFieldType.DOUBLE);
+		types.put("flag", DbFieldType.BOOLEAN);
+		types.put("note", DbFieldType.STRING);
+		types.put("any", DbFieldType.ANY);
+		return new DbColumns(types);
+	}
+
+	private static Map<String, Object> record(String name, int value) {
+		Map<String, Object> record = new HashMap<>();
+		record.put("name", name);
+		record.put("int", Integer.valueOf(value));
+		return record;
+	}
+
+}
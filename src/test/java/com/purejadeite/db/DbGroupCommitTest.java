@@ -0,0 +1,80 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.purejadeite.AbstractTest;
+
+/**
+ * DbGroupCommitのテストです。
+ */
+public class DbGroupCommitTest extends AbstractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void completesInAppendOrder() throws IOException {
+		File[] files = { folder.newFile("a.wal"), folder.newFile("b.wal"), folder.newFile("c.wal") };
+		DbGroupCommit groupCommit = new DbGroupCommit();
+		final List<Integer> completed = Collections.synchronizedList(new ArrayList<Integer>());
+		for (int i = 0; i < 300; i++) {
+			final int index = i;
+			CompletableFuture<Void> future = groupCommit.append(files[i % files.length],
+					(i + "\n").getBytes(StandardCharsets.UTF_8));
+			future.thenRun(new Runnable() {
+				@Override
+				public void run() {
+					completed.add(Integer.valueOf(index));
+				}
+			});
+		}
+		groupCommit.close();
+		eq(completed.size(), 300);
+		for (int i = 0; i < completed.size(); i++) {
+			eq(completed.get(i), Integer.valueOf(i));
+		}
+	}
+
+	@Test
+	public void flushWaitsForEveryFile() throws IOException {
+		File first = folder.newFile("first.wal");
+		File second = folder.newFile("second.wal");
+		DbGroupCommit groupCommit = new DbGroupCommit();
+		for (int i = 0; i < 100; i++) {
+			groupCommit.append(first, "a\n".getBytes(StandardCharsets.UTF_8));
+			groupCommit.append(second, "b\n".getBytes(StandardCharsets.UTF_8));
+			groupCommit.append(first, "c\n".getBytes(StandardCharsets.UTF_8));
+			groupCommit.flush();
+			eq(Files.readAllLines(second.toPath()).size(), i + 1);
+			eq(Files.readAllLines(first.toPath()).size(), (i + 1) * 2);
+		}
+		groupCommit.close();
+	}
+
+	@Test
+	public void failedFileDoesNotFailOthers() throws IOException {
+		File good = folder.newFile("good.wal");
+		File bad = new File(folder.newFolder("dir"), "missing/bad.wal");
+		DbGroupCommit groupCommit = new DbGroupCommit();
+		CompletableFuture<Void> failed = groupCommit.append(bad, "x\n".getBytes(StandardCharsets.UTF_8));
+		CompletableFuture<Void> written = groupCommit.append(good, "y\n".getBytes(StandardCharsets.UTF_8));
+		groupCommit.close();
+		assertTrue(failed.isCompletedExceptionally());
+		assertFalse(written.isCompletedExceptionally());
+		eq(Files.readAllLines(good.toPath()).size(), 1);
+	}
+
+}
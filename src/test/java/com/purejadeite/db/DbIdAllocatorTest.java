@@ -0,0 +1,157 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.purejadeite.AbstractTest;
+
+/**
+ * DbIdAllocatorのテストです。
+ */
+public class DbIdAllocatorTest extends AbstractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void issuesFormattedIds() throws Exception {
+		File metaFile = new File(folder.getRoot(), "t.meta");
+		DbIdAllocator allocator = new DbIdAllocator("000", metaFile);
+		assertTrue(allocator.isScanRequired());
+		allocator.scan(Arrays.asList(record("007"), record("x"), new HashMap<String, Object>()));
+		assertFalse(allocator.isScanRequired());
+		eq(allocator.getIssuedNo(), 7L);
+		eq(allocator.next(), "008");
+		eq(allocator.reserve(3), 9L);
+		eq(allocator.next(), "012");
+		assertTrue(allocator.isIssued("012"));
+		assertFalse(allocator.isIssued("013"));
+		assertFalse(allocator.isIssued("x"));
+		// 発行済みの番号は下げない
+		allocator.raise(5);
+		eq(allocator.getIssuedNo(), 12L);
+	}
+
+	@Test
+	public void persistsIssuedNo() throws Exception {
+		File metaFile = new File(folder.getRoot(), "t.meta");
+		DbIdAllocator allocator = new DbIdAllocator("0", metaFile);
+		allocator.scan(new ArrayList<Map<String, Object>>());
+		allocator.next();
+		allocator.next();
+		allocator.persist(metaFile);
+		DbIdAllocator reloaded = new DbIdAllocator("0", metaFile);
+		assertFalse(reloaded.isScanRequired());
+		eq(reloaded.next(), "3");
+	}
+
+	@Test
+	public void scansWhenMetaIsBroken() throws Exception {
+		File metaFile = new File(folder.getRoot(), "t.meta");
+		Files.write(metaFile.toPath(), "{".getBytes(StandardCharsets.UTF_8));
+		assertTrue(new DbIdAllocator("0", metaFile).isScanRequired());
+	}
+
+	@Test
+	public void continuesAfterRestart() throws Exception {
+		File dir = folder.newFolder("db");
+		try (Db db = new Db(dir.getPath())) {
+			addAll(db, 3);
+			// 最後のIDを削除しても再利用しない
+			db.delete("t", "id", "3");
+			db.commit();
+		}
+		assertTrue(new File(dir, "t." + DbIdAllocator.EXTENSION).exists());
+		try (Db db = new Db(dir.getPath())) {
+			eq(db.add("t", record(null)).get("id"), (Object) "4");
+			db.commit();
+		}
+	}
+
+	@Test
+	public void rollbackDoesNotReuseIds() throws Exception {
+		File dir = folder.newFolder("db");
+		try (Db db = new Db(dir.getPath())) {
+			addAll(db, 2);
+			db.add("t", record(null));
+			db.rollback();
+			eq(db.add("t", record(null)).get("id"), (Object) "4");
+			db.commit();
+		}
+	}
+
+	@Test
+	public void recoversFromRecordsWithoutMeta() throws Exception {
+		File dir = folder.newFolder("db");
+		try (Db db = new Db(dir.getPath())) {
+			addAll(db, 5);
+		}
+		File metaFile = new File(dir, "t." + DbIdAllocator.EXTENSION);
+		assertTrue(metaFile.delete());
+		try (Db db = new Db(dir.getPath())) {
+			// レコードの最大のIDから続ける
+			eq(db.add("t", record(null)).get("id"), (Object) "6");
+			db.commit();
+		}
+		assertTrue(metaFile.exists());
+	}
+
+	@Test
+	public void unissuedIdIsReplaced() throws Exception {
+		File dir = folder.newFolder("db");
+		try (Db db = new Db(dir.getPath())) {
+			addAll(db, 1);
+			// 発行していないIDは新しいIDに置き換える
+			eq(db.add("t", record("10")).get("id"), (Object) "2");
+			// 発行済みのIDはそのまま使う
+			db.delete("t", "id", "1");
+			eq(db.add("t", record("1")).get("id"), (Object) "1");
+		}
+	}
+
+	@Test
+	public void bulkAddReservesIds() throws Exception {
+		File dir = folder.newFolder("db");
+		try (Db db = new Db(dir.getPath())) {
+			List<Map<String, Object>> records = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				records.add(record(null));
+			}
+			List<Map<String, Object>> added = db.add("t", records);
+			eq(added.get(0).get("id"), (Object) "1");
+			eq(added.get(2).get("id"), (Object) "3");
+			eq(db.add("t", record(null)).get("id"), (Object) "4");
+			db.commit();
+		}
+	}
+
+	// レコードを追加してコミットする
+	private static void addAll(Db db, int count) throws DbException {
+		for (int i = 0; i < count; i++) {
+			db.add("t", record(null));
+		}
+		db.commit();
+	}
+
+	private static Map<String, Object> record(String id) {
+		Map<String, Object> record = new HashMap<>();
+		if (id != null) {
+			record.put("id", id);
+		}
+		record.put("name", "n");
+		return record;
+	}
+
+}
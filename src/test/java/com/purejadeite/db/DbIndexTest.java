@@ -0,0 +1,257 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.purejadeite.AbstractTest;
+
+/**
+ * DbIndexのテストです。
+ */
+public class DbIndexTest extends AbstractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void hashIndex() {
+		DbIndex index = new DbIndex("code");
+		index.add(0, record("code", "a"));
+		index.add(1, record("code", "b"));
+		index.add(2, record("code", "a"));
+		eq(Arrays.toString(index.get("a")), "[0, 2]");
+		eq(index.count("a"), 2);
+		eq(index.distinctCount(), 2);
+		assertTrue(index.contains("b", 1));
+		assertFalse(index.contains("b", 0));
+		index.remove(1, record("code", "b"));
+		eq(index.get("b").length, 0);
+		// 空になった値は残さない
+		eq(index.distinctCount(), 1);
+	}
+
+	@Test
+	public void sortedIndex() {
+		DbIndex index = new DbIndex("n", DbIndex.SORTED);
+		index.add(0, record("n", "9"));
+		index.add(1, record("n", 10));
+		index.add(2, record("n", null));
+		index.add(3, record("n", "x"));
+		// 数値は数値として比較する
+		eq(Arrays.toString(index.getRange("5", null)), "[0, 1, 3]");
+		eq(Arrays.toString(index.getRange(null, "9")), "[0]");
+		eq(index.countRange("9", true, "10", true), 2);
+		eq(index.countRange("9", false, "10", true), 1);
+		// 文字列表現が同じ値は同じキー
+		eq(Arrays.toString(index.get("10")), "[1]");
+	}
+
+	@Test
+	public void hugeExponentIsString() throws Exception {
+		eq(DbIndex.toSortKey("1e9999999999"), (Object) "1e9999999999");
+		eq(DbIndex.toSortKey("1e5"), (Object) new BigDecimal("1e5"));
+		File dir = folder.newFolder("db");
+		writeSchema(dir, "{\"t\":{\"indexes\":{\"n\":\"sorted\"}}}");
+		try (Db db = new Db(dir.getPath(), "schema.json")) {
+			db.add("t", record("n", "1e9999999999"));
+			db.add("t", record("n", "5"));
+			db.commit();
+			eq(db.select("t", "n", "1e9999999999").size(), 1);
+		}
+		// 読み込み直せる
+		try (Db db = new Db(dir.getPath(), "schema.json")) {
+			eq(db.select("t").size(), 2);
+			eq(db.select("t", "n", "1e9999999999").size(), 1);
+			eq(db.selectRange("t", "n", "1", "9").size(), 1);
+		}
+	}
+
+	@Test
+	public void tableKeepsIndexesConsistent() {
+		Map<String, String> indexTypes = new LinkedHashMap<>();
+		indexTypes.put("code", DbIndex.HASH);
+		indexTypes.put("n", DbIndex.SORTED);
+		DbTable table = new DbTable("t", indexTypes);
+		Random random = new Random(1);
+		List<Long> rowNos = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			int op = random.nextInt(3);
+			Map<String, Object> record = record("code", "c" + random.nextInt(20));
+			record.put("n", Integer.valueOf(random.nextInt(50)));
+			if (op == 0 || rowNos.isEmpty()) {
+				rowNos.add(Long.valueOf(table.add(record)));
+			} else if (op == 1) {
+				Long rowNo = rowNos.get(random.nextInt(rowNos.size()));
+				assertNotNull(table.replace(rowNo.longValue(), record));
+			} else {
+				Long rowNo = rowNos.remove(random.nextInt(rowNos.size()));
+				assertNotNull(table.remove(rowNo.longValue()));
+			}
+		}
+		assertConsistent(table, "code");
+		assertConsistent(table, "n");
+		// 存在しない行番号は変更しない
+		assertNull(table.replace(-1, record("code", "c0")));
+		assertNull(table.remove(-1));
+		assertConsistent(table, "code");
+	}
+
+	@Test
+	public void forkDoesNotShareIndexes() {
+		DbTable table = new DbTable("t", Collections.singletonMap("code", DbIndex.HASH));
+		long rowNo = table.add(record("code", "a"));
+		DbTable fork = table.fork(0);
+		fork.replace(rowNo, record("code", "b"));
+		fork.add(record("code", "a"));
+		eq(table.getIndex("code").count("a"), 1);
+		eq(table.getIndex("code").count("b"), 0);
+		eq(fork.getIndex("code").count("a"), 1);
+		eq(fork.getIndex("code").count("b"), 1);
+	}
+
+	@Test
+	public void typedKeys() {
+		DbIndex typed = new DbIndex("age", DbIndex.HASH, DbFieldType.LONG);
+		typed.add(0, record("age", "1"));
+		typed.add(1, record("age", Long.valueOf(1)));
+		typed.add(2, record("age", Double.valueOf(1.0)));
+		typed.add(3, record("age", Double.valueOf(1.5)));
+		eq(typed.count(Integer.valueOf(1)), 3);
+		eq(typed.count("1.5"), 1);
+		// 型の無いインデックスは文字列で比較する
+		DbIndex untyped = new DbIndex("age");
+		untyped.add(0, record("age", "1"));
+		untyped.add(1, record("age", Integer.valueOf(1)));
+		untyped.add(2, record("age", Double.valueOf(1.0)));
+		eq(untyped.count(Integer.valueOf(1)), 2);
+	}
+
+	@Test
+	public void dbIndexesFollowChanges() throws Exception {
+		File dir = folder.newFolder("db");
+		writeSchema(dir, "{\"t\":{\"indexes\":{\"code\":\"hash\",\"n\":\"sorted\"}}}");
+		try (Db db = new Db(dir.getPath(), "schema.json")) {
+			for (int i = 0; i < 10; i++) {
+				Map<String, Object> record = record("code", i % 2 == 0 ? "even" : "odd");
+				record.put("n", Integer.valueOf(i));
+				db.add("t", record);
+			}
+			db.commit();
+			Map<String, Object> record = record("id", "1");
+			record.put("code", "odd");
+			record.put("n", Integer.valueOf(100));
+			db.update("t", record);
+			db.delete("t", "code", "even");
+			eq(db.select("t", "code", "even").size(), 0);
+			eq(db.select("t", "code", "odd").size(), 6);
+			eq(db.selectRange("t", "n", 50, null).size(), 1);
+			db.rollback();
+			// ロールバックでインデックスも元に戻る
+			eq(db.select("t", "code", "even").size(), 5);
+			eq(db.selectRange("t", "n", 50, null).size(), 0);
+			db.delete("t", "code", "odd");
+			db.commit();
+		}
+		// 読み込み直した後もインデックスで検索できる
+		try (Db db = new Db(dir.getPath(), "schema.json")) {
+			eq(db.select("t", "code", "odd").size(), 0);
+			eq(db.select("t", "code", "even").size(), 5);
+			eq(db.selectRange("t", "n", 4, 8).size(), 3);
+			eq(db.explain("t", record("code", "even")).getSteps().get(0).getIndexType(), DbIndex.HASH);
+		}
+	}
+
+	@Test
+	public void typedMatching() throws Exception {
+		File dir = folder.newFolder("db");
+		writeSchema(dir, "{\"t\":{\"fields\":{\"age\":\"long\"},\"indexes\":[\"age\"]}}");
+		try (Db db = new Db(dir.getPath(), "schema.json")) {
+			db.setTypedMatching(true);
+			db.add("t", record("age", "20"));
+			db.add("t", record("age", Long.valueOf(20)));
+			db.add("t", record("age", "020x"));
+			db.add("t", record("other", "20"));
+			eq(db.select("t", "age", Integer.valueOf(20)).size(), 2);
+			eq(db.select("t", "age", "20").size(), 2);
+			// 宣言の無いフィールドは値の型のまま比較する
+			eq(db.select("t", "other", Integer.valueOf(20)).size(), 0);
+			eq(db.select("t", "other", "20").size(), 1);
+		}
+	}
+
+	@Test
+	public void untypedMatching() throws Exception {
+		File dir = folder.newFolder("db");
+		try (Db db = new Db(dir.getPath())) {
+			db.add("t", record("age", "20"));
+			db.add("t", record("age", Integer.valueOf(20)));
+			// 文字列に変換して比較する
+			eq(db.select("t", "age", Long.valueOf(20)).size(), 2);
+		}
+	}
+
+	// インデックスの内容が全件の走査と一致することを確認する
+	private void assertConsistent(DbTable table, String fieldName) {
+		DbIndex index = table.getIndex(fieldName);
+		Map<Object, List<Long>> expected = new HashMap<>();
+		for (Map.Entry<Long, Map<String, Object>> row : rows(table).entrySet()) {
+			Object key = index.toKey(row.getValue().get(fieldName));
+			List<Long> rowNos = expected.get(key);
+			if (rowNos == null) {
+				rowNos = new ArrayList<>();
+				expected.put(key, rowNos);
+			}
+			rowNos.add(row.getKey());
+		}
+		eq(index.distinctCount(), expected.size());
+		for (Map.Entry<Object, List<Long>> entry : expected.entrySet()) {
+			long[] actual = index.get(entry.getKey());
+			List<Long> actualList = new ArrayList<>();
+			for (long rowNo : actual) {
+				actualList.add(Long.valueOf(rowNo));
+			}
+			Collections.sort(actualList);
+			Collections.sort(entry.getValue());
+			eq(actualList, entry.getValue());
+		}
+	}
+
+	// 行番号->レコード
+	private static Map<Long, Map<String, Object>> rows(DbTable table) {
+		Map<Long, Map<String, Object>> rows = new HashMap<>();
+		for (long rowNo = 0; rows.size() < table.size(); rowNo++) {
+			Map<String, Object> record = table.get(rowNo);
+			if (record != null) {
+				rows.put(Long.valueOf(rowNo), record);
+			}
+		}
+		return rows;
+	}
+
+	private static void writeSchema(File dir, String json) throws Exception {
+		Files.write(new File(dir, "schema.json").toPath(), json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static Map<String, Object> record(String fieldName, Object value) {
+		Map<String, Object> record = new HashMap<>();
+		record.put(fieldName, value);
+		return record;
+	}
+
+}
@@ -0,0 +1,197 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.purejadeite.AbstractTest;
+
+/**
+ * DbMappedTableのテストです。
+ */
+public class DbMappedTableTest extends AbstractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = folder.newFolder("db");
+		writeSchema("{\"t\":{\"storage\":\"mapped\",\"indexes\":{\"name\":\"hash\"}}}");
+		writeTable(Arrays.asList(record("0001", "a"), record("0002", "b"), record("0003", "b")));
+	}
+
+	@Test
+	public void selectsFromMappedFile() throws DbException {
+		try (Db db = newDb()) {
+			eq(db.select("t").size(), 3);
+			eq(db.select("t", "name", "b").size(), 2);
+			eq(db.selectOne("t", "id", "0001").get("name"), (Object) "a");
+		}
+		assertTrue(mappedFile().exists());
+	}
+
+	@Test
+	public void writesAreRejected() throws DbException {
+		try (Db db = newDb()) {
+			try {
+				db.add("t", record("0004", "c"));
+				fail();
+			} catch (DbException e) {
+				assertTrue(e.getMessage().contains("読み込み専用"));
+			}
+			try {
+				db.deleteOne("t", "name", "a");
+				fail();
+			} catch (DbException e) {
+				assertTrue(e.getMessage().contains("読み込み専用"));
+			}
+			// 例外を宣言していない削除では非検査例外
+			try {
+				db.delete("t", "name", "a");
+				fail();
+			} catch (IllegalStateException e) {
+				assertTrue(e.getMessage().contains("読み込み専用"));
+			}
+			eq(db.select("t").size(), 3);
+		}
+	}
+
+	@Test
+	public void reusesMappedFileWhileSourceIsUnchanged() throws DbException {
+		try (Db db = newDb()) {
+			db.select("t");
+		}
+		long compiled = 1000000000000L;
+		assertTrue(mappedFile().setLastModified(compiled));
+		try (Db db = newDb()) {
+			eq(db.select("t").size(), 3);
+		}
+		eq(mappedFile().lastModified(), compiled);
+	}
+
+	@Test
+	public void recompilesWhenSourceChanges() throws DbException, IOException {
+		try (Db db = newDb()) {
+			eq(db.select("t").size(), 3);
+		}
+		File tableFile = new File(dir, "t.json");
+		long modified = tableFile.lastModified();
+		writeTable(Collections.singletonList(record("0001", "x")));
+		// 同じ時刻に更新された場合も長さの違いで検出する
+		assertTrue(tableFile.setLastModified(modified));
+		try (Db db = newDb()) {
+			List<Map<String, Object>> records = db.select("t");
+			eq(records.size(), 1);
+			eq(records.get(0).get("name"), (Object) "x");
+		}
+	}
+
+	@Test
+	public void recompilesWhenWalIsAdded() throws DbException, IOException {
+		try (Db db = newDb()) {
+			eq(db.select("t").size(), 3);
+		}
+		Map<String, Object> added = record("0004", "c");
+		Files.write(new File(dir, "t." + DbWal.EXTENSION).toPath(), DbWal.encode(Arrays.asList(
+				new DbChange("t", DbChange.Type.ADD, null, added))));
+		try (Db db = newDb()) {
+			eq(db.select("t").size(), 4);
+			eq(db.select("t", "name", "c").size(), 1);
+		}
+	}
+
+	@Test
+	public void recompilesWhenIndexesChange() throws DbException, IOException {
+		try (Db db = newDb()) {
+			db.select("t");
+		}
+		long compiled = 1000000000000L;
+		assertTrue(mappedFile().setLastModified(compiled));
+		writeSchema("{\"t\":{\"storage\":\"mapped\",\"indexes\":{\"name\":\"sorted\"}}}");
+		try (Db db = newDb()) {
+			eq(db.select("t", "name", "b").size(), 2);
+		}
+		assertNotEquals(mappedFile().lastModified(), compiled);
+	}
+
+	@Test
+	public void readsMappedFileWithoutSource() throws DbException, IOException {
+		try (Db db = newDb()) {
+			db.select("t");
+		}
+		Files.delete(new File(dir, "t.json").toPath());
+		try (Db db = newDb()) {
+			eq(db.select("t").size(), 3);
+			eq(db.select("t", "name", "b").size(), 2);
+		}
+	}
+
+	@Test
+	public void scansWithoutCopyingToHeap() throws DbException, IOException {
+		try (Db db = newDb()) {
+			// 全件を分割して走査させる
+			db.setParallelScanThreshold(1);
+			eq(db.select("t", "id", "0002").size(), 1);
+			Map<String, Object> params = new HashMap<>();
+			params.put("id", "0003");
+			eq(db.stream("t", params).count(), 1L);
+			params.clear();
+			params.put("name", "b");
+			eq(db.stream("t", params).count(), 2L);
+			List<Map<String, Object>> groups = db.aggregate("t", null, Arrays.asList("name"),
+					DbAggregation.count());
+			eq(groups.size(), 2);
+			eq(groups.get(1).get("count"), (Object) Long.valueOf(2));
+		}
+		DbTable table = new DbTable("t", DbMappedTable.open(mappedFile()), null);
+		DbTable.Snapshot snapshot = table.getSnapshot();
+		eq(snapshot.size(), 3);
+		eq(snapshot.getRowNo(2), 2L);
+		List<Map<String, Object>> records = snapshot.getRecords();
+		eq(records.get(0).get("id"), (Object) "0001");
+		// 配列へ展開せず、参照する度にファイルの内容から作成する
+		assertNotSame(records.get(0), records.get(0));
+	}
+
+	private Db newDb() throws DbException {
+		return new Db(dir.getPath(), "schema.json");
+	}
+
+	private File mappedFile() {
+		return new File(dir, "t." + DbMappedTable.EXTENSION);
+	}
+
+	private void writeSchema(String schema) throws IOException {
+		Files.write(new File(dir, "schema.json").toPath(), schema.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void writeTable(List<Map<String, Object>> records) {
+		DbTableFile.write(new File(dir, "t.json"), DbTableCodecs.get(JsonTableCodec.NAME),
+				records);
+	}
+
+	private static Map<String, Object> record(String id, String name) {
+		Map<String, Object> record = new LinkedHashMap<>();
+		record.put("id", id);
+		record.put("name", name);
+		return record;
+	}
+
+}
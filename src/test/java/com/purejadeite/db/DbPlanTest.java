@@ -0,0 +1,174 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.purejadeite.AbstractTest;
+
+/**
+ * DbPlanのテストです。
+ */
+public class DbPlanTest extends AbstractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void selectiveIndexIsUsed() throws Exception {
+		try (Db db = newDb()) {
+			DbPlan plan = db.explain("t", params("code", "c1"));
+			eq(plan.getAccess(), DbPlan.Access.INDEX);
+			eq(plan.getRowCount(), 1000);
+			eq(plan.getEstimatedRows(), 10L);
+			eq(plan.getSteps().size(), 1);
+			DbPlan.Step step = plan.getSteps().get(0);
+			eq(step.getFieldName(), "code");
+			eq(step.getIndexType(), DbIndex.HASH);
+			eq(step.getRows(), 10);
+			eq(step.getDistinctCount(), 100);
+			assertTrue(step.isUsed());
+			eq(db.select("t", "code", "c1").size(), 10);
+		}
+	}
+
+	@Test
+	public void unselectiveIndexIsScanned() throws Exception {
+		try (Db db = newDb()) {
+			DbPlan plan = db.explain("t", params("flag", "on"));
+			eq(plan.getAccess(), DbPlan.Access.SCAN);
+			assertFalse(plan.getSteps().get(0).isUsed());
+			eq(db.select("t", "flag", "on").size(), 800);
+			// インデックスの無いフィールドは走査する
+			plan = db.explain("t", params("name", "n1"));
+			eq(plan.getAccess(), DbPlan.Access.SCAN);
+			eq(plan.getSteps().size(), 0);
+			eq(plan.getEstimatedRows(), 1000L);
+		}
+	}
+
+	@Test
+	public void missingValueReadsNothing() throws Exception {
+		try (Db db = newDb()) {
+			DbPlan plan = db.explain("t", params("code", "none"));
+			eq(plan.getAccess(), DbPlan.Access.NONE);
+			eq(plan.getEstimatedRows(), 0L);
+			eq(db.select("t", "code", "none").size(), 0);
+		}
+	}
+
+	@Test
+	public void smallestIndexLeads() throws Exception {
+		try (Db db = newDb()) {
+			Map<String, Object> params = params("flag", "off");
+			params.put("code", "c3");
+			DbPlan plan = db.explain("t", params);
+			eq(plan.getAccess(), DbPlan.Access.INDEX);
+			// 件数の少ない順に並ぶ
+			eq(plan.getSteps().get(0).getFieldName(), "code");
+			assertTrue(plan.getSteps().get(0).isUsed());
+			eq(plan.getSteps().get(1).getFieldName(), "flag");
+			eq(plan.getSteps().get(1).getRows(), 200);
+			assertTrue(plan.getSteps().get(1).isUsed());
+			eq(db.select("t", params).size(), expected(params));
+
+			// 突き合わせる件数が多いインデックスはレコード毎に判定する
+			params.put("flag", "on");
+			plan = db.explain("t", params);
+			assertFalse(plan.getSteps().get(1).isUsed());
+			eq(db.select("t", params).size(), expected(params));
+		}
+	}
+
+	@Test
+	public void conditionsUseSortedIndex() throws Exception {
+		try (Db db = newDb()) {
+			DbCondition greater = DbCondition.of("n", ">", Integer.valueOf(990));
+			DbPlan plan = db.explain("t", greater);
+			eq(plan.getAccess(), DbPlan.Access.INDEX);
+			eq(plan.getSteps().get(0).getIndexType(), DbIndex.SORTED);
+			eq(plan.getSteps().get(0).getRows(), 9);
+			eq(db.select("t", greater).size(), 9);
+
+			DbCondition between = DbCondition.between("n", Integer.valueOf(100), Integer.valueOf(199));
+			DbCondition code = DbCondition.of("code", "==", "c5");
+			plan = db.explain("t", between, code);
+			eq(plan.getAccess(), DbPlan.Access.INDEX);
+			eq(db.select("t", between, code).size(), 1);
+
+			DbCondition most = DbCondition.of("n", ">=", Integer.valueOf(10));
+			eq(db.explain("t", most).getAccess(), DbPlan.Access.SCAN);
+			eq(db.select("t", most).size(), 990);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNullPattern() {
+		DbCondition.match("name", null);
+	}
+
+	@Test
+	public void describesPlan() throws Exception {
+		try (Db db = newDb()) {
+			String text = db.explain("t", params("code", "c1")).toString();
+			assertTrue(text, text.startsWith("t: INDEX rows=1000 estimated=10"));
+			assertTrue(text, text.contains("code(hash, distinct=100) =c1 rows=10 used"));
+		}
+	}
+
+	@Test
+	public void planFollowsChanges() throws Exception {
+		try (Db db = newDb()) {
+			db.delete("t", "code", "c1");
+			eq(db.explain("t", params("code", "c1")).getAccess(), DbPlan.Access.NONE);
+			db.rollback();
+			eq(db.explain("t", params("code", "c1")).getAccess(), DbPlan.Access.INDEX);
+		}
+	}
+
+	// 1000件のテーブル。codeは100種類、flagはonが800件・offが200件、nは0から999
+	private Db newDb() throws Exception {
+		File dir = folder.newFolder("db");
+		Files.write(new File(dir, "schema.json").toPath(),
+				"{\"t\":{\"indexes\":{\"code\":\"hash\",\"flag\":\"hash\",\"n\":\"sorted\"}}}"
+						.getBytes(StandardCharsets.UTF_8));
+		Db db = new Db(dir.getPath(), "schema.json");
+		for (int i = 0; i < 1000; i++) {
+			Map<String, Object> record = new HashMap<>();
+			record.put("code", "c" + (i % 100));
+			record.put("flag", i % 5 == 0 ? "off" : "on");
+			record.put("n", Integer.valueOf(i));
+			record.put("name", "n" + i);
+			db.add("t", record);
+		}
+		db.commit();
+		return db;
+	}
+
+	// 全件から条件に合う件数を数える
+	private static int expected(Map<String, Object> params) {
+		int count = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (("c" + (i % 100)).equals(params.get("code"))
+					&& (i % 5 == 0 ? "off" : "on").equals(params.get("flag"))) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static Map<String, Object> params(String fieldName, Object value) {
+		Map<String, Object> params = new HashMap<>();
+		params.put(fieldName, value);
+		return params;
+	}
+
+}
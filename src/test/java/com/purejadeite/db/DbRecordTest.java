@@ -0,0 +1,131 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.purejadeite.AbstractTest;
+
+/**
+ * DbRecordのテストです。
+ */
+public class DbRecordTest extends AbstractTest {
+
+	@Test
+	public void behavesAsMap() {
+		DbRecord record = DbRecord.of(new DbRecord.Layout(), map("a", 1, "b", null));
+		eq(record.size(), 2);
+		eq(record.get("a"), (Object) Integer.valueOf(1));
+		assertTrue(record.containsKey("b"));
+		assertNull(record.get("b"));
+		assertFalse(record.containsKey("c"));
+		assertNull(record.put("c", "x"));
+		eq(record.put("a", Integer.valueOf(2)), (Object) Integer.valueOf(1));
+		eq(record.remove("b"), null);
+		assertFalse(record.containsKey("b"));
+		eq(record.size(), 2);
+		eq(record, map("a", 2, "c", "x"));
+		eq(record.hashCode(), map("a", 2, "c", "x").hashCode());
+	}
+
+	@Test
+	public void iteratesInLayoutOrder() {
+		DbRecord.Layout layout = DbRecord.of(new DbRecord.Layout(), map("a", 1, "b", 2, "c", 3))
+				.getLayout();
+		DbRecord record = DbRecord.of(layout, map("c", 3, "a", 1));
+		List<String> names = new ArrayList<>(record.keySet());
+		eq(names.toString(), "[a, c]");
+		Iterator<Map.Entry<String, Object>> iterator = record.entrySet().iterator();
+		iterator.next();
+		iterator.remove();
+		eq(record, map("c", 3));
+	}
+
+	@Test
+	public void sharesLayout() {
+		DbRecord first = DbRecord.of(new DbRecord.Layout(), map("a", 1, "b", 2));
+		DbRecord second = DbRecord.of(first.getLayout(), map("b", 3, "a", 4));
+		assertSame(first.getLayout(), second.getLayout());
+		// 同じフィールドを追加した並びは再利用する
+		DbRecord third = DbRecord.of(new DbRecord.Layout(), map("a", 1));
+		DbRecord fourth = DbRecord.of(new DbRecord.Layout(), map("a", 2));
+		assertNotSame(third.getLayout(), fourth.getLayout());
+		first.put("c", "x");
+		second.put("c", "y");
+		assertSame(first.getLayout(), second.getLayout());
+	}
+
+	@Test
+	public void copiesValues() {
+		DbRecord record = DbRecord.of(new DbRecord.Layout(), map("a", 1));
+		Map<String, Object> copy = DbRecord.copyOf(record);
+		assertTrue(copy instanceof DbRecord);
+		copy.put("a", Integer.valueOf(2));
+		copy.put("b", "x");
+		eq(record, map("a", 1));
+		Map<String, Object> plain = DbRecord.copyOf(map("a", 1));
+		assertTrue(plain instanceof HashMap);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void rejectsNullFieldName() {
+		DbRecord.of(new DbRecord.Layout(), map("a", 1)).put(null, "x");
+	}
+
+	@Test
+	public void detectsSparseRecords() {
+		DbRecord.Layout layout = new DbRecord.Layout();
+		Map<String, Object> wide = new LinkedHashMap<>();
+		for (int i = 0; i < 20; i++) {
+			wide.put("f" + i, Integer.valueOf(i));
+		}
+		assertFalse(DbRecord.isSparse(layout, wide));
+		layout = DbRecord.of(layout, wide).getLayout();
+		assertFalse(DbRecord.isSparse(layout, map("f0", 1, "f1", 2, "f2", 3, "f3", 4, "f4", 5)));
+		assertTrue(DbRecord.isSparse(layout, map("f0", 1, "f1", 2, "f2", 3, "f3", 4)));
+		// 狭い並びでは判定しない
+		assertFalse(DbRecord.isSparse(new DbRecord.Layout(), map("a", 1)));
+	}
+
+	@Test
+	public void tableKeepsSparseRecordsAsMaps() {
+		DbTable table = new DbTable("t", Collections.singletonMap("id", DbIndex.HASH));
+		for (int i = 0; i < 100; i++) {
+			// レコード毎に異なるフィールドを持つ
+			Map<String, Object> record = new HashMap<>();
+			record.put("id", String.valueOf(i));
+			record.put("field" + i, Integer.valueOf(i));
+			table.add(record);
+		}
+		int widest = 0;
+		int maps = 0;
+		for (Map<String, Object> record : table.records()) {
+			if (record instanceof DbRecord) {
+				widest = Math.max(widest, ((DbRecord) record).getLayout().size());
+			} else {
+				maps++;
+			}
+		}
+		// 並びは全てのフィールドの和まで広がらない
+		assertTrue(widest < 16);
+		assertTrue(0 < maps);
+		eq(table.get(table.getIndex("id").get("99")[0]), map("id", "99", "field99", 99));
+	}
+
+	private static Map<String, Object> map(Object... keyValues) {
+		Map<String, Object> map = new LinkedHashMap<>();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			map.put((String) keyValues[i], keyValues[i + 1]);
+		}
+		return map;
+	}
+
+}
@@ -0,0 +1,131 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.purejadeite.AbstractTest;
+
+/**
+ * DbRecordViewのテストです。
+ */
+public class DbRecordViewTest extends AbstractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void readsSharedRecord() {
+		Map<String, Object> stored = record("1", "a");
+		DbRecordView view = new DbRecordView(stored);
+		eq(view.size(), 2);
+		eq(view.get("name"), (Object) "a");
+		assertTrue(view.containsKey("id"));
+		assertTrue(view.containsValue("a"));
+		eq(view, stored);
+		eq(view.hashCode(), stored.hashCode());
+	}
+
+	@Test
+	public void copiesOnPut() {
+		Map<String, Object> stored = record("1", "a");
+		DbRecordView view = new DbRecordView(stored);
+		eq(view.put("name", "b"), (Object) "a");
+		eq(view.get("name"), (Object) "b");
+		eq(stored.get("name"), (Object) "a");
+		// 複製後の変更も共有していたレコードへ反映しない
+		view.put("extra", "x");
+		assertFalse(stored.containsKey("extra"));
+	}
+
+	@Test
+	public void copiesOnRemoveAndClear() {
+		Map<String, Object> stored = record("1", "a");
+		DbRecordView view = new DbRecordView(stored);
+		// 存在しないフィールドの削除では複製しない
+		assertNull(view.remove("none"));
+		eq(view.remove("name"), (Object) "a");
+		eq(stored.size(), 2);
+		view = new DbRecordView(stored);
+		view.clear();
+		assertTrue(view.isEmpty());
+		eq(stored.size(), 2);
+	}
+
+	@Test
+	public void copiesOnIteratorChanges() {
+		Map<String, Object> stored = record("1", "a");
+		DbRecordView view = new DbRecordView(stored);
+		for (Map.Entry<String, Object> entry : view.entrySet()) {
+			if ("name".equals(entry.getKey())) {
+				entry.setValue("b");
+			}
+		}
+		eq(view.get("name"), (Object) "b");
+		eq(stored.get("name"), (Object) "a");
+
+		view = new DbRecordView(stored);
+		Iterator<Map.Entry<String, Object>> iterator = view.entrySet().iterator();
+		while (iterator.hasNext()) {
+			if ("id".equals(iterator.next().getKey())) {
+				iterator.remove();
+			}
+		}
+		assertFalse(view.containsKey("id"));
+		eq(view.size(), 1);
+		eq(stored.size(), 2);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void rejectsRemoveBeforeNext() {
+		new DbRecordView(record("1", "a")).entrySet().iterator().remove();
+	}
+
+	@Test
+	public void copiesByDefault() throws Exception {
+		File dir = folder.newFolder("db");
+		try (Db db = new Db(dir.getPath())) {
+			assertTrue(db.isCopyRecords());
+			db.add("t", record(null, "a"));
+			List<Map<String, Object>> records = db.select("t");
+			assertFalse(records.get(0) instanceof DbRecordView);
+			records.get(0).put("name", "b");
+			eq(db.select("t").get(0).get("name"), (Object) "a");
+		}
+	}
+
+	@Test
+	public void returnsViewsWhenEnabled() throws Exception {
+		File dir = folder.newFolder("db");
+		try (Db db = new Db(dir.getPath())) {
+			db.setCopyRecords(false);
+			db.add("t", record(null, "a"));
+			List<Map<String, Object>> records = db.select("t");
+			assertTrue(records.get(0) instanceof DbRecordView);
+			records.get(0).put("name", "b");
+			eq(db.select("t").get(0).get("name"), (Object) "a");
+			List<Map<String, Object>> removed = db.delete("t", "name", "a");
+			assertTrue(removed.get(0) instanceof DbRecordView);
+			eq(removed.get(0).get("name"), (Object) "a");
+			eq(db.select("t").size(), 0);
+		}
+	}
+
+	private static Map<String, Object> record(String id, String name) {
+		Map<String, Object> record = new HashMap<>();
+		if (id != null) {
+			record.put("id", id);
+		}
+		record.put("name", name);
+		return record;
+	}
+
+}
@@ -0,0 +1,153 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.purejadeite.AbstractTest;
+
+/**
+ * Dbのスナップショット分離のテストです。
+ */
+public class DbSnapshotIsolationTest extends AbstractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void uncommittedChangesAreNotVisible() throws Exception {
+		File dir = folder.newFolder("db");
+		try (final Db db = newDb(dir)) {
+			db.add("t", record("a"));
+			db.commit();
+			db.add("t", record("b"));
+			eq(db.select("t").size(), 2);
+			eq(inOtherThread(new Task<Integer>() {
+				@Override
+				public Integer run() {
+					return db.select("t").size();
+				}
+			}), 1);
+			db.commit();
+			eq(inOtherThread(new Task<Integer>() {
+				@Override
+				public Integer run() {
+					return db.select("t").size();
+				}
+			}), 2);
+		}
+	}
+
+	@Test
+	public void conflictingCommitIsDiscarded() throws Exception {
+		File dir = folder.newFolder("db");
+		try (final Db db = newDb(dir)) {
+			db.add("t", record("a"));
+			db.commit();
+			db.add("t", record("b"));
+			// 他のスレッドが先にコミット
+			eq(inOtherThread(new Task<Boolean>() {
+				@Override
+				public Boolean run() throws DbException {
+					db.add("t", record("c"));
+					return db.commit();
+				}
+			}), true);
+			eq(db.commit(), false);
+			List<Map<String, Object>> records = db.select("t");
+			eq(records.size(), 2);
+			eq(db.select("t", "name", "b").size(), 0);
+			eq(db.select("t", "name", "c").size(), 1);
+			// 破棄された後は最新のテーブルから変更できる
+			db.add("t", record("d"));
+			eq(db.commit(), true);
+			eq(db.select("t").size(), 3);
+		}
+	}
+
+	@Test
+	public void conflictInOneTableDiscardsAllTables() throws Exception {
+		File dir = folder.newFolder("db");
+		try (final Db db = newDb(dir)) {
+			db.add("t1", record("a"));
+			db.add("t2", record("a"));
+			db.commit();
+			db.add("t1", record("b"));
+			db.add("t2", record("b"));
+			eq(inOtherThread(new Task<Boolean>() {
+				@Override
+				public Boolean run() throws DbException {
+					db.add("t2", record("c"));
+					return db.commit();
+				}
+			}), true);
+			eq(db.commit(), false);
+			eq(db.select("t1").size(), 1);
+			eq(db.select("t2").size(), 2);
+		}
+	}
+
+	@Test
+	public void committedTableIsSaved() throws Exception {
+		File dir = folder.newFolder("db");
+		try (Db db = newDb(dir)) {
+			db.add("t", record("a"));
+			db.add("t", record("b"));
+			db.commit();
+			db.delete("t", "name", "a");
+			db.commit();
+		}
+		try (Db db = new Db(dir.getPath())) {
+			List<Map<String, Object>> records = db.select("t");
+			eq(records.size(), 1);
+			eq(records.get(0).get("name"), (Object) "b");
+		}
+	}
+
+	private static Db newDb(File dir) throws DbException {
+		Db db = new Db(dir.getPath());
+		db.setSnapshotIsolation(true);
+		return db;
+	}
+
+	private static Map<String, Object> record(String name) {
+		Map<String, Object> record = new HashMap<>();
+		record.put("name", name);
+		return record;
+	}
+
+	// 別のスレッドで実行し、結果を返す
+	private static <T> T inOtherThread(final Task<T> task) throws Exception {
+		final AtomicReference<T> result = new AtomicReference<>();
+		final AtomicReference<Exception> error = new AtomicReference<>();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					result.set(task.run());
+				} catch (Exception e) {
+					error.set(e);
+				}
+			}
+		});
+		thread.start();
+		thread.join();
+		if (error.get() != null) {
+			throw error.get();
+		}
+		return result.get();
+	}
+
+	private interface Task<T> {
+		T run() throws Exception;
+	}
+
+}
@@ -0,0 +1,144 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.purejadeite.AbstractTest;
+
+/**
+ * DbSpliteratorのテストです。
+ */
+public class DbSpliteratorTest extends AbstractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void filtersLazily() {
+		DbTable table = newTable(100);
+		DbSpliterator spliterator = DbSpliterator.create(table,
+				new DbQuery(table, params("group", "0")));
+		final List<Map<String, Object>> records = new ArrayList<>();
+		Consumer<Map<String, Object>> consumer = new Consumer<Map<String, Object>>() {
+			@Override
+			public void accept(Map<String, Object> record) {
+				records.add(record);
+			}
+		};
+		assertTrue(spliterator.tryAdvance(consumer));
+		eq(records.get(0).get("id"), (Object) "0");
+		// 最初に一致したレコードまでしか判定していない
+		eq(spliterator.estimateSize(), 99L);
+		assertTrue(spliterator.tryAdvance(consumer));
+		eq(records.get(1).get("id"), (Object) "10");
+		eq(spliterator.estimateSize(), 89L);
+	}
+
+	@Test
+	public void splitsInHalves() {
+		DbTable table = newTable(10000);
+		DbSpliterator spliterator = DbSpliterator.create(table,
+				new DbQuery(table, new HashMap<String, Object>()));
+		Spliterator<Map<String, Object>> left = spliterator.trySplit();
+		eq(left.estimateSize(), 5000L);
+		eq(spliterator.estimateSize(), 5000L);
+		// 分割しない範囲まで小さくなったら分割しない
+		assertNull(left.trySplit().trySplit());
+	}
+
+	@Test
+	public void recordsAreReadOnly() {
+		DbTable table = newTable(1);
+		DbSpliterator spliterator = DbSpliterator.create(table,
+				new DbQuery(table, new HashMap<String, Object>()));
+		spliterator.tryAdvance(new Consumer<Map<String, Object>>() {
+			@Override
+			public void accept(Map<String, Object> record) {
+				try {
+					record.put("id", "x");
+					fail();
+				} catch (UnsupportedOperationException e) {
+					// 変更できない
+				}
+			}
+		});
+	}
+
+	@Test
+	public void streamMatchesSelect() throws DbException, IOException {
+		File dir = folder.newFolder("db");
+		Files.write(new File(dir, "schema.json").toPath(),
+				"{\"t\":{\"indexes\":[\"code\"]}}".getBytes(StandardCharsets.UTF_8));
+		try (Db db = new Db(dir.getPath(), "schema.json")) {
+			List<Map<String, Object>> records = new ArrayList<>();
+			for (int i = 0; i < 10000; i++) {
+				Map<String, Object> record = new HashMap<>();
+				record.put("code", String.valueOf(i % 100));
+				record.put("group", String.valueOf(i % 7));
+				records.add(record);
+			}
+			db.add("t", records);
+			// インデックスで絞り込む場合
+			eq(db.stream("t", params("code", "3")).collect(Collectors.toList()),
+					db.select("t", "code", "3"));
+			// 全件を走査する場合
+			eq(db.stream("t", params("group", "3")).collect(Collectors.toList()),
+					db.select("t", "group", "3"));
+			eq(db.stream("t", params("group", "3")).parallel().collect(Collectors.toList()),
+					db.select("t", "group", "3"));
+			eq(db.stream("t", null).count(), 10000L);
+			eq(db.stream("t", params("code", "x")).count(), 0L);
+			eq(db.stream("u", null).count(), 0L);
+		}
+	}
+
+	@Test
+	public void streamIsNotAffectedByLaterChanges() throws DbException, IOException {
+		File dir = folder.newFolder("db");
+		try (Db db = new Db(dir.getPath())) {
+			for (int i = 0; i < 3; i++) {
+				db.add("t", params("name", "a"));
+			}
+			List<Map<String, Object>> before = db.select("t", "name", "a");
+			Stream<Map<String, Object>> stream = db.stream("t", params("name", "a"));
+			db.add("t", params("name", "a"));
+			db.delete("t", "id", before.get(0).get("id"));
+			eq(stream.collect(Collectors.toList()), before);
+		}
+	}
+
+	private static DbTable newTable(int size) {
+		DbTable table = new DbTable("t", Collections.singletonMap("id", DbIndex.HASH));
+		for (int i = 0; i < size; i++) {
+			Map<String, Object> record = new HashMap<>();
+			record.put("id", String.valueOf(i));
+			record.put("group", String.valueOf(i % 10));
+			table.add(record);
+		}
+		return table;
+	}
+
+	private static Map<String, Object> params(String fieldName, Object value) {
+		Map<String, Object> params = new HashMap<>();
+		params.put(fieldName, value);
+		return params;
+	}
+
+}
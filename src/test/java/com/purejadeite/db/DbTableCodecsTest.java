@@ -0,0 +1,200 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.purejadeite.AbstractTest;
+
+/**
+ * DbTableCodecsのテストです。
+ */
+public class DbTableCodecsTest extends AbstractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void jsonRoundTrip() throws IOException {
+		List<Map<String, Object>> records = records();
+		eq(roundTrip(DbTableCodecs.get(JsonTableCodec.NAME), records), records);
+	}
+
+	@Test
+	public void binaryRoundTrip() throws IOException {
+		List<Map<String, Object>> records = records();
+		eq(roundTrip(DbTableCodecs.get(BinaryTableCodec.NAME), records), records);
+	}
+
+	@Test
+	public void binaryKeepsBigDecimal() throws IOException {
+		Map<String, Object> record = new LinkedHashMap<>();
+		record.put("decimal", new BigDecimal("12345678901234567890.123"));
+		List<Map<String, Object>> records = Arrays.asList(record);
+		eq(roundTrip(DbTableCodecs.get(BinaryTableCodec.NAME), records), records);
+	}
+
+	@Test
+	public void binaryReadsSameValuesAsJson() throws IOException {
+		List<Map<String, Object>> records = records();
+		eq(roundTrip(DbTableCodecs.get(BinaryTableCodec.NAME), records),
+				roundTrip(DbTableCodecs.get(JsonTableCodec.NAME), records));
+	}
+
+	@Test
+	public void emptyFileHasNoRecords() throws IOException {
+		eq(read(DbTableCodecs.get(JsonTableCodec.NAME), new byte[0]).size(), 0);
+		eq(read(DbTableCodecs.get(BinaryTableCodec.NAME), new byte[0]).size(), 0);
+	}
+
+	@Test
+	public void getByExtension() {
+		eq(DbTableCodecs.get(new File("t.json")).getName(), JsonTableCodec.NAME);
+		eq(DbTableCodecs.get(new File("t.pjdb")).getName(), BinaryTableCodec.NAME);
+		// 不明な拡張子はJSON形式
+		eq(DbTableCodecs.get(new File("t")).getName(), JsonTableCodec.NAME);
+	}
+
+	@Test
+	public void convertStreamsRecords() throws IOException {
+		List<Map<String, Object>> records = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			Map<String, Object> record = new LinkedHashMap<>();
+			record.put("id", String.format("%04d", Integer.valueOf(i)));
+			record.put("value", Integer.valueOf(i));
+			records.add(record);
+		}
+		File json = new File(folder.getRoot(), "t.json");
+		File binary = new File(folder.getRoot(), "t.pjdb");
+		File back = new File(folder.getRoot(), "u.json");
+		DbTableFile.write(json, DbTableCodecs.get(JsonTableCodec.NAME), records);
+		eq(DbTableCodecs.convert(json, binary), 5000);
+		eq(DbTableCodecs.convert(binary, back), 5000);
+		eq(readFile(back), records);
+	}
+
+	@Test
+	public void convertCountsForCodecUsingSize() throws IOException {
+		File source = new File(folder.getRoot(), "t.json");
+		DbTableFile.write(source, DbTableCodecs.get(JsonTableCodec.NAME), records());
+		final List<Integer> sizes = new ArrayList<>();
+		DbTableCodec sized = new JsonTableCodec() {
+			@Override
+			public void write(OutputStream out, Collection<Map<String, Object>> records)
+					throws IOException {
+				sizes.add(Integer.valueOf(records.size()));
+				super.write(out, records);
+			}
+		};
+		File dest = new File(folder.getRoot(), "u.json");
+		eq(DbTableCodecs.convert(source, DbTableCodecs.get(source), dest, sized), 2);
+		eq(sizes, Arrays.asList(Integer.valueOf(2)));
+		eq(readFile(dest), records());
+	}
+
+	@Test
+	public void dbReadsLegacyJsonTable() throws IOException, DbException {
+		File dir = folder.newFolder("db");
+		// チェックサムの無い以前の形式のファイル
+		Files.write(new File(dir, "t.json").toPath(),
+				"[{\"id\":\"0001\",\"name\":\"a\"},{\"id\":\"0002\",\"name\":\"b\"}]"
+						.getBytes(StandardCharsets.UTF_8));
+		try (Db db = new Db(dir.getPath())) {
+			eq(db.select("t").size(), 2);
+			eq(db.selectOne("t", "id", "0002").get("name"), (Object) "b");
+		}
+	}
+
+	@Test
+	public void dbReplacesLegacyJsonTableWithBinary() throws IOException, DbException {
+		File dir = folder.newFolder("db");
+		Files.write(new File(dir, "t.json").toPath(),
+				"[{\"id\":\"0001\",\"name\":\"a\"}]".getBytes(StandardCharsets.UTF_8));
+		try (Db db = new Db(dir.getPath())) {
+			db.setTableFormat(BinaryTableCodec.NAME);
+			Map<String, Object> record = new HashMap<>();
+			record.put("name", "b");
+			db.add("t", record);
+			db.commit();
+		}
+		assertFalse(new File(dir, "t.json").exists());
+		assertTrue(new File(dir, "t.pjdb").exists());
+		try (Db db = new Db(dir.getPath())) {
+			eq(db.select("t").size(), 2);
+			eq(db.selectOne("t", "id", "0001").get("name"), (Object) "a");
+		}
+	}
+
+	private static List<Map<String, Object>> records() {
+		Map<String, Object> nested = new LinkedHashMap<>();
+		nested.put("x", Integer.valueOf(1));
+		nested.put("y", Arrays.asList("a", null, Boolean.TRUE));
+		Map<String, Object> first = new LinkedHashMap<>();
+		first.put("id", "0001");
+		first.put("int", Integer.valueOf(-12));
+		first.put("long", Long.valueOf(Long.MAX_VALUE));
+		first.put("double", Double.valueOf(1.5));
+		first.put("bool", Boolean.FALSE);
+		first.put("null", null);
+		first.put("text", "日本語");
+		first.put("nested", nested);
+		Map<String, Object> second = new LinkedHashMap<>();
+		second.put("id", "0002");
+		second.put("text", "");
+		second.put("list", new ArrayList<>());
+		return Arrays.asList(first, second);
+	}
+
+	private static List<Map<String, Object>> roundTrip(DbTableCodec codec,
+			List<Map<String, Object>> records) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.write(out, records);
+		return read(codec, out.toByteArray());
+	}
+
+	private static List<Map<String, Object>> read(DbTableCodec codec, byte[] bytes)
+			throws IOException {
+		final List<Map<String, Object>> records = new ArrayList<>();
+		try (InputStream in = new ByteArrayInputStream(bytes)) {
+			codec.read(in, new Consumer<Map<String, Object>>() {
+				@Override
+				public void accept(Map<String, Object> record) {
+					records.add(record);
+				}
+			});
+		}
+		return records;
+	}
+
+	private static List<Map<String, Object>> readFile(File file) throws IOException {
+		final List<Map<String, Object>> records = new ArrayList<>();
+		DbTableFile.read(file, DbTableCodecs.get(file), new Consumer<Map<String, Object>>() {
+			@Override
+			public void accept(Map<String, Object> record) {
+				records.add(record);
+			}
+		});
+		return records;
+	}
+
+}
@@ -0,0 +1,143 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.purejadeite.AbstractTest;
+import com.purejadeite.FileIoException;
+
+/**
+ * DbTableFileのテストです。
+ */
+public class DbTableFileTest extends AbstractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void writesAndReadsWithChecksum() throws IOException {
+		File file = new File(folder.getRoot(), "t.json");
+		DbTableFile.write(file, DbTableCodecs.get(JsonTableCodec.NAME),
+				Arrays.asList(record("0001", "a"), record("0002", "b")));
+		String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+		assertTrue(content.contains("\n#CRC32:"));
+		List<Map<String, Object>> records = read(file);
+		eq(records.size(), 2);
+		eq(records.get(1).get("name"), (Object) "b");
+		// 一時ファイルは残らない
+		eq(folder.getRoot().list().length, 1);
+	}
+
+	@Test
+	public void readsFileWithoutChecksum() throws IOException {
+		File file = new File(folder.getRoot(), "t.json");
+		Files.write(file.toPath(),
+				"[{\"id\":\"0001\",\"name\":\"a\"}]".getBytes(StandardCharsets.UTF_8));
+		List<Map<String, Object>> records = read(file);
+		eq(records.size(), 1);
+		eq(records.get(0).get("id"), (Object) "0001");
+	}
+
+	@Test
+	public void checksumMismatchIsRejected() throws IOException {
+		File file = new File(folder.getRoot(), "t.json");
+		DbTableFile.write(file, DbTableCodecs.get(JsonTableCodec.NAME),
+				Arrays.asList(record("0001", "a")));
+		// 内容を同じ長さのまま書き換える
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		int index = new String(bytes, StandardCharsets.UTF_8).indexOf("\"a\"");
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(index + 1);
+			raf.write('z');
+		}
+		try {
+			read(file);
+			fail();
+		} catch (FileIoException e) {
+			assertTrue(e.getMessage().contains("チェックサム"));
+		}
+	}
+
+	@Test
+	public void checksumMismatchIsPreferredToBrokenContent() throws IOException {
+		File file = new File(folder.getRoot(), "t.pjdb");
+		DbTableFile.write(file, DbTableCodecs.get(BinaryTableCodec.NAME),
+				Arrays.asList(record("0001", "a")));
+		// 形式として読めなくなるよう先頭を壊す
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.write(0);
+		}
+		try {
+			read(file, DbTableCodecs.get(BinaryTableCodec.NAME));
+			fail();
+		} catch (FileIoException e) {
+			assertTrue(e.getMessage().contains("チェックサム"));
+		}
+	}
+
+	@Test
+	public void convertRejectsBrokenSource() throws IOException {
+		File source = new File(folder.getRoot(), "t.json");
+		File dest = new File(folder.getRoot(), "t.pjdb");
+		DbTableFile.write(source, DbTableCodecs.get(JsonTableCodec.NAME),
+				Arrays.asList(record("0001", "a")));
+		DbTableFile.write(dest, DbTableCodecs.get(BinaryTableCodec.NAME),
+				Arrays.asList(record("0002", "b")));
+		try (RandomAccessFile raf = new RandomAccessFile(source, "rw")) {
+			// チェックサムの最後の桁を書き換える
+			raf.seek(source.length() - 2);
+			int digit = raf.read();
+			raf.seek(source.length() - 2);
+			raf.write(digit == '0' ? '1' : '0');
+		}
+		try {
+			DbTableCodecs.convert(source, dest);
+			fail();
+		} catch (FileIoException e) {
+			assertTrue(e.getMessage().contains("チェックサム"));
+		}
+		// 変換先は元のまま
+		List<Map<String, Object>> records = read(dest, DbTableCodecs.get(BinaryTableCodec.NAME));
+		eq(records.size(), 1);
+		eq(records.get(0).get("id"), (Object) "0002");
+	}
+
+	private static List<Map<String, Object>> read(File file) throws IOException {
+		return read(file, DbTableCodecs.get(JsonTableCodec.NAME));
+	}
+
+	private static List<Map<String, Object>> read(File file, DbTableCodec codec)
+			throws IOException {
+		final List<Map<String, Object>> records = new ArrayList<>();
+		DbTableFile.read(file, codec, new Consumer<Map<String, Object>>() {
+			@Override
+			public void accept(Map<String, Object> record) {
+				records.add(record);
+			}
+		});
+		return records;
+	}
+
+	private static Map<String, Object> record(String id, String name) {
+		Map<String, Object> record = new HashMap<>();
+		record.put("id", id);
+		record.put("name", name);
+		return record;
+	}
+
+}
@@ -0,0 +1,157 @@
+package com.purejadeite.db;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.purejadeite.AbstractTest;
+
+/**
+ * DbWalのテストです。
+ */
+public class DbWalTest extends AbstractTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void replaysCommittedChanges() throws IOException {
+		File file = folder.newFile("t.wal");
+		append(file, DbWal.encode(Arrays.asList(add("0001", "a"), add("0002", "b"))));
+		Map<String, Object> updated = record("0001", "a2");
+		append(file, DbWal.encode(Arrays.asList(
+				new DbChange("t", DbChange.Type.UPDATE, record("0001", "a"), updated),
+				new DbChange("t", DbChange.Type.DELETE, record("0002", "b"), null))));
+		DbTable table = newTable();
+		eq(DbWal.replay(file, table), 4);
+		eq(table.size(), 1);
+		eq(table.get(table.getIndex("id").get("0001")[0]).get("name"), (Object) "a2");
+	}
+
+	@Test
+	public void discardsCommitWithoutMarker() throws IOException {
+		File file = folder.newFile("t.wal");
+		byte[] committed = DbWal.encode(Arrays.asList(add("0001", "a")));
+		byte[] torn = DbWal.encode(Arrays.asList(add("0002", "b"), add("0003", "c")));
+		append(file, committed);
+		// 終了の行の手前で途切れたコミット
+		append(file, Arrays.copyOf(torn, lastLineStart(torn)));
+		DbTable table = newTable();
+		eq(DbWal.replay(file, table), 1);
+		eq(table.size(), 1);
+		eq(table.getIndex("id").get("0002").length, 0);
+		eq(file.length(), (long) committed.length);
+	}
+
+	@Test
+	public void discardsTornLine() throws IOException {
+		File file = folder.newFile("t.wal");
+		byte[] committed = DbWal.encode(Arrays.asList(add("0001", "a")));
+		byte[] torn = DbWal.encode(Arrays.asList(add("0002", "b")));
+		append(file, committed);
+		append(file, Arrays.copyOf(torn, torn.length - 5));
+		DbTable table = newTable();
+		eq(DbWal.replay(file, table), 1);
+		eq(file.length(), (long) committed.length);
+		// 切り捨てた後の追記は読み込める
+		append(file, torn);
+		table = newTable();
+		eq(DbWal.replay(file, table), 2);
+	}
+
+	@Test
+	public void discardsTornCommitFollowedByCommit() throws IOException {
+		File file = folder.newFile("t.wal");
+		byte[] torn = DbWal.encode(Arrays.asList(add("0001", "a"), add("0002", "b")));
+		append(file, Arrays.copyOf(torn, lastLineStart(torn)));
+		append(file, DbWal.encode(Arrays.asList(add("0003", "c"))));
+		DbTable table = newTable();
+		eq(DbWal.replay(file, table), 1);
+		eq(table.getIndex("id").get("0001").length, 0);
+		eq(table.getIndex("id").get("0003").length, 1);
+	}
+
+	@Test
+	public void replaysLegacyLines() throws IOException {
+		File file = folder.newFile("t.wal");
+		append(file, ("{\"op\":\"add\",\"record\":{\"id\":\"0001\",\"name\":\"a\"}}\n"
+				+ "{\"op\":\"add\",\"record\":{\"id\":\"0002\",\"name\":\"b\"}}\n")
+						.getBytes(StandardCharsets.UTF_8));
+		append(file, DbWal.encode(Arrays.asList(
+				new DbChange("t", DbChange.Type.DELETE, record("0001", "a"), null))));
+		DbTable table = newTable();
+		eq(DbWal.replay(file, table), 3);
+		eq(table.size(), 1);
+		eq(table.getIndex("id").get("0002").length, 1);
+	}
+
+	@Test
+	public void dbRecoversFromWal() throws Exception {
+		File dir = folder.newFolder("db");
+		try (Db db = new Db(dir.getPath())) {
+			db.setWalMode(true);
+			db.beginTransaction();
+			db.add("t", record(null, "a"));
+			db.add("t", record(null, "b"));
+			db.commit();
+			db.beginTransaction();
+			Map<String, Object> a = db.selectOne("t", "name", "a");
+			a.put("name", "a2");
+			db.update("t", a);
+			db.delete("t", "name", "b");
+			db.commit();
+		}
+		assertTrue(new File(dir, "t.wal").exists());
+		try (Db db = new Db(dir.getPath())) {
+			List<Map<String, Object>> records = db.select("t");
+			eq(records.size(), 1);
+			eq(records.get(0).get("name"), (Object) "a2");
+		}
+	}
+
+	private static DbTable newTable() {
+		return new DbTable("t", Collections.singletonMap("id", DbIndex.HASH));
+	}
+
+	private static DbChange add(String id, String name) {
+		return new DbChange("t", DbChange.Type.ADD, null, record(id, name));
+	}
+
+	private static Map<String, Object> record(String id, String name) {
+		Map<String, Object> record = new HashMap<>();
+		if (id != null) {
+			record.put("id", id);
+		}
+		record.put("name", name);
+		return record;
+	}
+
+	// 最後の行の開始位置
+	private static int lastLineStart(byte[] data) {
+		for (int i = data.length - 2; 0 <= i; i--) {
+			if (data[i] == '\n') {
+				return i + 1;
+			}
+		}
+		return 0;
+	}
+
+	private static void append(File file, byte[] data) throws IOException {
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			out.write(data);
+		}
+	}
+
+}